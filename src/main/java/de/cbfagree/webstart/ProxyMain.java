@@ -15,7 +15,7 @@ import de.cbfagree.webstart.cache.CacheRepository;
 import de.cbfagree.webstart.config.Config;
 import de.cbfagree.webstart.config.ConfigException;
 import de.cbfagree.webstart.config.ConfigReader;
-import de.cbfagree.webstart.frontend.MainSelector;
+import de.cbfagree.webstart.frontend.Frontend;
 import de.cbfagree.webstart.messages.MsgFactory;
 import lombok.extern.log4j.Log4j2;
 
@@ -23,7 +23,7 @@ import lombok.extern.log4j.Log4j2;
  * Die Haupt-Klasse des Webstart-Proxies.
  * 
  * Im wesentlichen wird die Konfiguration gelesen, alle SubSysteme hoch gezogen
- * und der MainSelector gestartet.
+ * und das Frontend gestartet.
  * 
  */
 @Log4j2
@@ -41,9 +41,9 @@ public class ProxyMain
 
             DownloaderEngine downloadEngine = new DownloaderEngine(cfg.getBackend());
             CacheRepository cacheRepo = new CacheRepository(cfg.getCache(), downloadEngine);
-            MainSelector mainSelector = new MainSelector(cfg.getFrontend(), cacheRepo);
+            Frontend frontend = new Frontend(cfg.getFrontend(), cacheRepo);
 
-            mainSelector.run();
+            frontend.run();
         }
         catch (ConfigException | IOException e)
         {
@@ -0,0 +1,344 @@
+package de.cbfagree.webstart.backend;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.cbfagree.webstart.config.BackendConfig;
+import de.cbfagree.webstart.httputils.HttpDate;
+import de.cbfagree.webstart.messages.MsgFactory;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Die asynchrone Alternative zu den {@link DownloadWorker}n.
+ *
+ * Der Dispatcher entnimmt die Downloads dem {@link DownloadScheduler} und
+ * startet sie über einen {@link HttpClient}. Die Anzahl paralleler Downloads
+ * wird nicht durch die Anzahl von Threads, sondern durch ein
+ * {@link ConcurrencyLimit} (maxThreads) begrenzt. Spricht das Backend HTTP/2,
+ * so laufen die Downloads gemultiplexed über wenige Connections.
+ *
+ * Der Body wird über einen {@link BufferSubscriber} direkt in den
+ * {@link WriteThroughBuffer} geschrieben. Die Behandlung von StatusCodes,
+ * abgebrochenen Downloads und Revalidierungen entspricht exakt der des
+ * {@link UrlConnectionDownloader}s.
+ */
+@Log4j2
+class AsyncDownloadDispatcher extends Thread
+{
+    private URL baseUrl;
+    private long connTimeout;
+    private long readTimeout;
+    private DownloadScheduler scheduler;
+    private ConcurrencyLimit limit;
+    private HttpClient client;
+    private ScheduledExecutorService timer;
+
+    /**
+     * @param cfg
+     * @param httpProxy
+     * @param scheduler
+     * @param limit
+     */
+    public AsyncDownloadDispatcher(BackendConfig cfg, Proxy httpProxy, DownloadScheduler scheduler,
+        ConcurrencyLimit limit)
+    {
+        this.baseUrl = cfg.getBaseUrl();
+        this.connTimeout = cfg.getConnTimeout();
+        this.readTimeout = cfg.getReadTimeout();
+        this.scheduler = scheduler;
+        this.limit = limit;
+        this.client = this.createClient(httpProxy);
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "download-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.setName("download-dispatcher");
+        this.setDaemon(true);
+        this.start();
+    }
+
+    /**
+     * Warte bis das Limit einen weiteren Download erlaubt und danach auf
+     * einen Download. Erst dann wird der Download mit der höchsten Priorität
+     * entnommen, so kann sich die Reihenfolge bis zum letzten Moment noch
+     * ändern.
+     */
+    @Override
+    public void run()
+    {
+        while (!Thread.currentThread().isInterrupted())
+        {
+            try
+            {
+                this.limit.acquire();
+                try
+                {
+                    this.startDownload(this.scheduler.take(false));
+                }
+                catch (InterruptedException e)
+                {
+                    this.limit.release(null);
+                    throw e;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.timer.shutdownNow();
+    }
+
+    /**
+     * Starte den Download, ohne auf das Ergebnis zu warten.
+     *
+     * Sobald der ResponseHeader eintrifft werden die Meta-Daten erzeugt und
+     * der Body an einen {@link BufferSubscriber} übergeben. Abgeschlossen
+     * wird der Download in {@link #downloadFinished(DownloadTask, Throwable, long, long)}.
+     *
+     * @param task
+     */
+    private void startDownload(DownloadTask task)
+    {
+        long startTime = System.nanoTime();
+        AtomicLong ttfb = new AtomicLong(-1);
+        try
+        {
+            HttpRequest request = this.createRequest(task.fileName(), task.cachedMetaData());
+            this.client.sendAsync(request, info -> {
+                ttfb.set(System.nanoTime() - startTime);
+                return new BufferSubscriber( //
+                    task.buffer(), //
+                    this.createMetaData(info), //
+                    this.readTimeout, //
+                    this.timer);
+            }).whenComplete((response, e) -> this.downloadFinished(task, e, startTime, ttfb.get()));
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            this.downloadFinished(task, e, startTime, -1);
+        }
+    }
+
+    /**
+     * Schließe den Download ab. Wird auf einem Thread des HttpClients oder,
+     * wenn der {@link BufferSubscriber} den Body wegen eines Timeouts 
+     * abbricht, auf dem Thread des Watchdogs aufgerufen.
+     *
+     * Bricht der Download ab, bevor das Backend geantwortet hat, so bekommen
+     * die Leser "502 Bad Gateway". Bricht er später ab, so bekommen die Leser
+     * die Exception.
+     *
+     * @param task
+     * @param error
+     * @param startTime
+     * @param ttfb die Zeit bis zum ResponseHeader oder -1
+     */
+    private void downloadFinished(DownloadTask task, Throwable error, long startTime, long ttfb)
+    {
+        WriteThroughBuffer taskBuffer = task.buffer();
+        DownloadSample sample = null;
+        try
+        {
+            Exception failure = this.unwrap(error);
+            if (failure == null)
+            {
+                try
+                {
+                    this.completeDownload(task);
+                }
+                catch (IOException | InterruptedException e)
+                {
+                    failure = e;
+                }
+            }
+
+            if (failure != null)
+            {
+                taskBuffer.abort(failure, UrlConnectionDownloader.BAD_GATEWAY);
+                task.observer().downloadFailed(task.fileName(), taskBuffer, failure);
+            }
+
+            ResourceMetaData metaData = taskBuffer.getMetaData();
+            boolean throttled = failure instanceof HttpTimeoutException
+                || (metaData != null && DownloadSample.isThrottleStatus(metaData.statusCode()));
+            sample = new DownloadSample(ttfb, taskBuffer.getTotalLength(), System.nanoTime() - startTime,
+                throttled);
+        }
+        finally
+        {
+            this.releaseBuffer(task.fileName(), taskBuffer);
+            this.limit.release(sample);
+        }
+    }
+
+    /**
+     * Der Body ist komplett im Buffer. Nur Resourcen mit dem StatusCode 200
+     * werden in den Cache übernommen.
+     *
+     * @param task
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void completeDownload(DownloadTask task) throws IOException, InterruptedException
+    {
+        WriteThroughBuffer taskBuffer = task.buffer();
+        ResourceMetaData metaData = taskBuffer.getMetaData();
+        long expectedLength = metaData.contentLength();
+        if (expectedLength >= 0 && taskBuffer.getTotalLength() != expectedLength)
+        {
+            throw new IOException(String.format("premature EOF after %1$d of %2$d bytes",
+                taskBuffer.getTotalLength(), expectedLength));
+        }
+        taskBuffer.close();
+
+        if (metaData.statusCode() == 200)
+        {
+            this.scheduler.recordSize(task.fileName(), taskBuffer.getTotalLength());
+            task.observer().downloadCompleted(task.fileName(), taskBuffer);
+        }
+        else
+        {
+            task.observer().downloadRejected(task.fileName(), taskBuffer);
+        }
+    }
+
+    /**
+     * Die Futures des HttpClients verpacken die eigentliche Ursache ggf. in
+     * einer {@link CompletionException}.
+     *
+     * @param error
+     * @return die eigentliche Ursache oder <code>null</code>
+     */
+    private Exception unwrap(Throwable error)
+    {
+        Throwable cause = error;
+        if (cause instanceof CompletionException && cause.getCause() != null)
+        {
+            cause = cause.getCause();
+        }
+
+        if (cause == null || cause instanceof Exception)
+        {
+            return (Exception) cause;
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * Übernimm die Meta-Daten aus dem ResponseHeader
+     *
+     * @param info
+     * @return
+     */
+    private ResourceMetaData createMetaData(HttpResponse.ResponseInfo info)
+    {
+        HttpHeaders headers = info.headers();
+        return new ResourceMetaData( //
+            info.statusCode(), //
+            headers.firstValue("Content-Type").orElse(null), //
+            headers.firstValueAsLong("Content-Length").orElse(-1), //
+            headers.firstValue("ETag").orElse(null), //
+            headers.firstValue("Last-Modified").map(HttpDate::parse).filter(t -> t > 0).orElse(0L));
+    }
+
+    /**
+     * @param fileName
+     * @param cachedMetaData die Meta-Daten der gecachten Version für einen
+     *        bedingten Download oder <code>null</code>
+     * @return
+     * @throws IOException
+     */
+    private HttpRequest createRequest(String fileName, ResourceMetaData cachedMetaData) throws IOException
+    {
+        try
+        {
+            // Der Timeout des HttpClients läuft bis zum Eintreffen des
+            // ResponseHeaders, schließt also den Verbindungsaufbau ein.
+            HttpRequest.Builder builder = HttpRequest
+                .newBuilder(UrlConnectionDownloader.createDownloadURL(this.baseUrl, fileName).toURI())
+                .timeout(Duration.ofMillis(this.connTimeout + this.readTimeout))
+                .header("Accept", "*/*")
+                .GET();
+
+            if (cachedMetaData != null)
+            {
+                if (cachedMetaData.etag() != null)
+                {
+                    builder.header("If-None-Match", cachedMetaData.etag());
+                }
+                if (cachedMetaData.lastModified() > 0)
+                {
+                    builder.header("If-Modified-Since", HttpDate.format(cachedMetaData.lastModified()));
+                }
+            }
+            return builder.build();
+        }
+        catch (URISyntaxException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * HTTP/2 wird bevorzugt. Spricht das Backend nur HTTP/1.1, so fällt der
+     * HttpClient selbstständig darauf zurück.
+     *
+     * @param httpProxy
+     * @return
+     */
+    private HttpClient createClient(Proxy httpProxy)
+    {
+        HttpClient.Builder builder = HttpClient.newBuilder() //
+            .version(HttpClient.Version.HTTP_2) //
+            .followRedirects(HttpClient.Redirect.NORMAL) //
+            .connectTimeout(Duration.ofMillis(this.connTimeout));
+
+        if (httpProxy.type() == Proxy.Type.HTTP)
+        {
+            builder.proxy(ProxySelector.of((InetSocketAddress) httpProxy.address()));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Gib die Referenz des Dispatchers auf den Buffer frei.
+     *
+     * @param fileName
+     * @param taskBuffer
+     */
+    private void releaseBuffer(String fileName, WriteThroughBuffer taskBuffer)
+    {
+        try
+        {
+            taskBuffer.release();
+        }
+        catch (IOException e)
+        {
+            log.warn(MsgFactory.get(this.getClass(), EMsgIds.ERR_RELEASE_BUFFER, fileName, e));
+        }
+    }
+
+    /**
+     * 
+     */
+    private enum EMsgIds
+    {
+        ERR_RELEASE_BUFFER, //
+    }
+}
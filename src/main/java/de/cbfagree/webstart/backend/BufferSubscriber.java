@@ -0,0 +1,222 @@
+package de.cbfagree.webstart.backend;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Schreibt den Body einer Response des {@link java.net.http.HttpClient}
+ * direkt in einen {@link WriteThroughBuffer}.
+ *
+ * Es wird immer nur ein Block angefordert, der nächste erst, wenn der
+ * vorherige im Staging-File steht. Ein langsames Dateisystem bremst also den
+ * Download und nicht den Speicher.
+ *
+ * Der HttpClient kennt nur einen Timeout bis zum Eintreffen des
+ * ResponseHeaders. Ein hängender Body wird deshalb von einem Watchdog
+ * abgebrochen, sobald für die Dauer des ReadTimeouts keine Daten eingetroffen
+ * sind.
+ *
+ * Der {@link WriteThroughBuffer} kennt nur einen Schreiber. Der Watchdog darf
+ * den Download also nicht abbrechen, während der Thread des HttpClients noch
+ * in den Buffer schreibt. Beide Seiten sind deshalb über ein Lock
+ * serialisiert. Bekommt der Watchdog das Lock nicht, so wird gerade
+ * geschrieben und der Download gilt nicht als hängend. Nach dem Abbruch
+ * schreibt der Subscriber nichts mehr in den Buffer.
+ */
+class BufferSubscriber implements HttpResponse.BodySubscriber<Void>
+{
+    private WriteThroughBuffer buffer;
+    private ResourceMetaData metaData;
+    private long readTimeout;
+    private CompletableFuture<Void> body;
+    private Flow.Subscription subscription;
+    private ScheduledFuture<?> watchdog;
+    private volatile long lastActivity;
+    private ReentrantLock lock;
+    private boolean done;
+
+    /**
+     * @param buffer
+     * @param metaData die Meta-Daten der Response, diese werden beim Start
+     *        des Bodies in den Buffer gestellt
+     * @param readTimeout
+     * @param timer
+     */
+    public BufferSubscriber(WriteThroughBuffer buffer, ResourceMetaData metaData, long readTimeout,
+        ScheduledExecutorService timer)
+    {
+        this.buffer = buffer;
+        this.metaData = metaData;
+        this.readTimeout = readTimeout;
+        this.body = new CompletableFuture<>();
+        this.lock = new ReentrantLock();
+        this.lastActivity = System.currentTimeMillis();
+        this.watchdog = timer.scheduleWithFixedDelay(this::checkTimeout, readTimeout, readTimeout,
+            TimeUnit.MILLISECONDS);
+        this.body.whenComplete((result, e) -> this.watchdog.cancel(false));
+    }
+
+    /**
+     *
+     */
+    @Override
+    public void onSubscribe(Flow.Subscription subscription)
+    {
+        Exception failure = null;
+        this.lock.lock();
+        try
+        {
+            this.subscription = subscription;
+            if (this.done)
+            {
+                subscription.cancel();
+                return;
+            }
+            this.buffer.setMetaData(this.metaData);
+        }
+        catch (IOException e)
+        {
+            this.done = true;
+            failure = e;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        this.requestNext(failure);
+    }
+
+    /**
+     *
+     */
+    @Override
+    public void onNext(List<ByteBuffer> items)
+    {
+        Exception failure = null;
+        this.lock.lock();
+        try
+        {
+            if (this.done)
+            {
+                return;
+            }
+
+            this.lastActivity = System.currentTimeMillis();
+            for (ByteBuffer item : items)
+            {
+                this.buffer.append(item);
+            }
+            this.lastActivity = System.currentTimeMillis();
+        }
+        catch (IOException e)
+        {
+            this.done = true;
+            failure = e;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        this.requestNext(failure);
+    }
+
+    /**
+     * Fordere den nächsten Block an oder brich den Download ab. Erfolgt 
+     * außerhalb des Locks, da der HttpClient den nächsten Block auch direkt
+     * aus dem request() heraus liefern kann.
+     *
+     * @param failure die Ursache für den Abbruch oder <code>null</code>
+     */
+    private void requestNext(Exception failure)
+    {
+        if (failure != null)
+        {
+            this.fail(failure);
+        }
+        else
+        {
+            this.subscription.request(1);
+        }
+    }
+
+    /**
+     *
+     */
+    @Override
+    public void onError(Throwable throwable)
+    {
+        this.body.completeExceptionally(throwable);
+    }
+
+    /**
+     *
+     */
+    @Override
+    public void onComplete()
+    {
+        this.body.complete(null);
+    }
+
+    /**
+     *
+     */
+    @Override
+    public CompletionStage<Void> getBody()
+    {
+        return this.body;
+    }
+
+    /**
+     * Brich den Download ab, wenn zu lange keine Daten eingetroffen sind.
+     * Läuft auf dem Thread des Watchdogs.
+     */
+    private void checkTimeout()
+    {
+        if (!this.lock.tryLock())
+        {
+            // es wird gerade in den Buffer geschrieben
+            return;
+        }
+
+        long idle;
+        try
+        {
+            idle = System.currentTimeMillis() - this.lastActivity;
+            if (this.done || idle < this.readTimeout)
+            {
+                return;
+            }
+            this.done = true;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        this.fail(new HttpTimeoutException(String.format("no data received for %1$d ms", idle)));
+    }
+
+    /**
+     * Brich den Download ab. Der Aufrufer hat bereits <code>done</code>
+     * gesetzt, es wird also nicht mehr in den Buffer geschrieben.
+     *
+     * @param cause
+     */
+    private void fail(Exception cause)
+    {
+        if (this.subscription != null)
+        {
+            this.subscription.cancel();
+        }
+        this.body.completeExceptionally(cause);
+    }
+}
@@ -0,0 +1,313 @@
+package de.cbfagree.webstart.backend;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.cbfagree.webstart.messages.MsgFactory;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Begrenzt die Anzahl gleichzeitiger Downloads.
+ *
+ * Im adaptiven Modus wird das Limit zur Laufzeit nach dem AIMD-Verfahren
+ * (additive increase, multiplicative decrease) zwischen einem Minimum und
+ * einem Maximum angepasst. Gestartet wird mit dem Maximum, ohne Anzeichen
+ * einer Überlast verhält sich das Limit also wie ein festes Limit.
+ *
+ * Als Überlast gilt:
+ * <ul>
+ * <li>eine Time-To-First-Byte, welche deutlich über der besten bisher
+ * beobachteten liegt. Die beste TTFB steigt langsam mit, damit sich das Limit
+ * an eine dauerhaft langsamere Strecke anpasst.</li>
+ * <li>ein Durchsatz je Connection, welcher deutlich unter dem bisher besten
+ * liegt. Dieser wird nur bei großen Downloads gemessen, bei kleinen
+ * Resourcen überwiegt die Latenz.</li>
+ * <li>eine Überlast-Meldung des Backends (429, 503) oder ein Timeout.</li>
+ * </ul>
+ *
+ * Bei Überlast wird das Limit um ein Viertel gesenkt, höchstens aber einmal
+ * pro Sekunde, da die noch laufenden Downloads die Überlast ebenfalls melden.
+ * Ohne Überlast steigt das Limit um 1/limit je Download, also um etwa eins
+ * je "Runde", aber nur solange das Limit auch ausgeschöpft wird.
+ */
+@Log4j2
+class ConcurrencyLimit
+{
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final long MIN_LATENCY_DELTA = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final double LATENCY_FLOOR_DRIFT = 0.01;
+
+    private static final long MIN_THROUGHPUT_BYTES = 1024 * 1024;
+    private static final double THROUGHPUT_TOLERANCE = 0.5;
+    private static final double THROUGHPUT_PEAK_DECAY = 0.95;
+
+    private static final double DECREASE_FACTOR = 0.75;
+    private static final long DECREASE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private int minLimit;
+    private int maxLimit;
+    private boolean adaptive;
+
+    private ReentrantLock lock;
+    private Condition permitAvailable;
+    private double limit;
+    private int inFlight;
+    private long minTtfb;
+    private double peakThroughput;
+    private long lastDecrease;
+    private long increases;
+    private long decreases;
+
+    /**
+     * @param minLimit
+     * @param maxLimit
+     * @param adaptive soll das Limit angepasst werden? Andernfalls gilt
+     *        immer maxLimit
+     */
+    public ConcurrencyLimit(int minLimit, int maxLimit, boolean adaptive)
+    {
+        this.minLimit = Math.min(minLimit, maxLimit);
+        this.maxLimit = maxLimit;
+        this.adaptive = adaptive;
+        this.lock = new ReentrantLock(true);
+        this.permitAvailable = this.lock.newCondition();
+        this.limit = maxLimit;
+        this.lastDecrease = System.nanoTime() - DECREASE_INTERVAL;
+    }
+
+    /**
+     * Warte, bis ein weiterer Download gestartet werden darf.
+     *
+     * @throws InterruptedException
+     */
+    public void acquire() throws InterruptedException
+    {
+        this.lock.lock();
+        try
+        {
+            while (this.inFlight >= (int) this.limit)
+            {
+                this.permitAvailable.await();
+            }
+            this.inFlight++;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Belege einen Platz, ohne zu warten. Gedacht für zusätzliche
+     * Connections eines bereits laufenden Downloads (Segmente), diese nutzen
+     * nur freie Kapazität: wartet bereits jemand auf einen Platz, so geht
+     * dieser vor.
+     *
+     * @return <code>true</code>, wenn ein Platz belegt wurde. Dieser muss mit
+     *         {@link #release(DownloadSample)} wieder freigegeben werden.
+     */
+    public boolean tryAcquire()
+    {
+        this.lock.lock();
+        try
+        {
+            if (this.inFlight >= (int) this.limit || this.lock.hasWaiters(this.permitAvailable))
+            {
+                return false;
+            }
+            this.inFlight++;
+            return true;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Gib einen Download frei und passe ggf. das Limit an.
+     *
+     * @param sample die Messwerte des Downloads oder <code>null</code>, wenn
+     *        der Download nicht stattgefunden hat
+     */
+    public void release(DownloadSample sample)
+    {
+        this.lock.lock();
+        try
+        {
+            boolean saturated = this.inFlight >= (int) this.limit;
+            this.inFlight--;
+            if (this.adaptive && sample != null)
+            {
+                this.adjust(sample, saturated);
+            }
+            this.permitAvailable.signalAll();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return das aktuelle Limit
+     */
+    public int getLimit()
+    {
+        this.lock.lock();
+        try
+        {
+            return (int) this.limit;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return die Anzahl laufender Downloads
+     */
+    public int getInFlight()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.inFlight;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return die Anzahl der Erhöhungen des (ganzzahligen) Limits
+     */
+    public long getIncreases()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.increases;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return die Anzahl der Senkungen des Limits
+     */
+    public long getDecreases()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.decreases;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return die beste beobachtete Time-To-First-Byte in Millisekunden
+     */
+    public long getMinTimeToFirstByte()
+    {
+        this.lock.lock();
+        try
+        {
+            return TimeUnit.NANOSECONDS.toMillis(this.minTtfb);
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Muss unter dem Lock aufgerufen werden.
+     *
+     * @param sample
+     * @param saturated war das Limit beim Ende des Downloads ausgeschöpft?
+     */
+    private void adjust(DownloadSample sample, boolean saturated)
+    {
+        String cause = null;
+        if (sample.throttled())
+        {
+            cause = "backend throttled";
+        }
+
+        if (sample.ttfbNanos() >= 0)
+        {
+            if (this.minTtfb == 0 || sample.ttfbNanos() < this.minTtfb)
+            {
+                this.minTtfb = Math.max(1, sample.ttfbNanos());
+            }
+            else
+            {
+                this.minTtfb += (long) ((sample.ttfbNanos() - this.minTtfb) * LATENCY_FLOOR_DRIFT);
+            }
+
+            if (cause == null && sample.ttfbNanos() > this.minTtfb * LATENCY_TOLERANCE
+                && sample.ttfbNanos() - this.minTtfb > MIN_LATENCY_DELTA)
+            {
+                cause = String.format("ttfb %1$d ms", TimeUnit.NANOSECONDS.toMillis(sample.ttfbNanos()));
+            }
+        }
+
+        if (sample.bytes() >= MIN_THROUGHPUT_BYTES && sample.durationNanos() > 0)
+        {
+            double throughput = (double) sample.bytes() / sample.durationNanos();
+            this.peakThroughput = Math.max(throughput, this.peakThroughput * THROUGHPUT_PEAK_DECAY);
+            if (cause == null && throughput < this.peakThroughput * THROUGHPUT_TOLERANCE)
+            {
+                cause = String.format("throughput %1$d kb/s", (long) (throughput * 1000000000 / 1024));
+            }
+        }
+
+        int oldLimit = (int) this.limit;
+        long now = System.nanoTime();
+        if (cause != null)
+        {
+            if (now - this.lastDecrease >= DECREASE_INTERVAL)
+            {
+                this.limit = Math.max(this.minLimit, Math.floor(this.limit * DECREASE_FACTOR));
+                this.lastDecrease = now;
+            }
+        }
+        else if (saturated)
+        {
+            this.limit = Math.min(this.maxLimit, this.limit + 1.0 / this.limit);
+        }
+
+        int newLimit = (int) this.limit;
+        if (newLimit != oldLimit)
+        {
+            if (newLimit > oldLimit)
+            {
+                this.increases++;
+            }
+            else
+            {
+                this.decreases++;
+            }
+            log.info(MsgFactory.get(this.getClass(), EMsgIds.LIMIT_CHANGED, oldLimit, newLimit,
+                (cause != null) ? cause : "no congestion"));
+        }
+    }
+
+    /**
+     *
+     */
+    private enum EMsgIds
+    {
+        LIMIT_CHANGED, //
+    }
+}
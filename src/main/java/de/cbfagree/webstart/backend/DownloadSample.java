@@ -0,0 +1,24 @@
+package de.cbfagree.webstart.backend;
+
+/**
+ * Die Messwerte eines abgeschlossenen Downloads für das
+ * {@link ConcurrencyLimit}.
+ *
+ * @param ttfbNanos die Zeit bis zum Eintreffen des ResponseHeaders oder -1,
+ *        wenn das Backend nicht geantwortet hat
+ * @param bytes die Anzahl empfangener Bytes
+ * @param durationNanos die Gesamt-Dauer des Downloads
+ * @param throttled hat das Backend eine Überlast gemeldet (429, 503) oder
+ *        ist ein Timeout aufgetreten?
+ */
+record DownloadSample(long ttfbNanos, long bytes, long durationNanos, boolean throttled)
+{
+    /**
+     * @param statusCode
+     * @return zeigt der StatusCode eine Überlast des Backends an?
+     */
+    static boolean isThrottleStatus(int statusCode)
+    {
+        return statusCode == 429 || statusCode == 503;
+    }
+}
@@ -0,0 +1,317 @@
+package de.cbfagree.webstart.backend;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Die Warteschlange der {@link DownloaderEngine}. Anders als eine einfache
+ * FIFO-Queue liefert der Scheduler immer den Download mit der höchsten
+ * Priorität.
+ *
+ * Die Priorität ergibt sich in dieser Reihenfolge aus:
+ * <ol>
+ * <li>der Klasse des Downloads: JNLP-Files vor kleinen Resourcen vor
+ * Resourcen unbekannter Größe vor großen Resourcen. Revalidierungen laufen
+ * im Hintergrund und kommen immer zuletzt.</li>
+ * <li>der Anzahl der Clients, welche bereits auf den Download warten. Diese
+ * wird erst bei der Entnahme ermittelt, da sich bis dahin weitere Clients an
+ * den Download hängen können.</li>
+ * <li>der Reihenfolge des Eintreffens.</li>
+ * </ol>
+ *
+ * Die erwartete Größe einer Resource stammt aus vorherigen Downloads (bzw.
+ * bei Revalidierungen aus dem Cache-Eintrag). Ein zusätzlicher HEAD-Request
+ * wird dafür nicht gestellt.
+ *
+ * Damit große Downloads nicht alle Worker belegen, können Worker für kleine
+ * Resourcen reserviert werden. Diese entnehmen nur Downloads der ersten
+ * beiden Klassen.
+ *
+ * Die Queue ist durch die maximale Anzahl wartender Downloads begrenzt, bei
+ * der Entnahme wird sie also komplett durchsucht. Gegenüber der Dauer eines
+ * Downloads fällt das nicht ins Gewicht.
+ */
+class DownloadScheduler
+{
+    private static final int CLASS_JNLP = 0;
+    private static final int CLASS_SMALL = 1;
+    private static final int CLASS_UNKNOWN = 2;
+    private static final int CLASS_LARGE = 3;
+    private static final int CLASS_REVALIDATION = 4;
+
+    private static final int MAX_SIZE_HISTORY = 4096;
+
+    private int capacity;
+    private long smallResourceSize;
+
+    private ReentrantLock lock;
+    private Condition taskAvailable;
+    private List<Entry> entries;
+    private Map<String, Long> sizeHistory;
+    private long sequence;
+
+    /**
+     * @param capacity die maximale Anzahl wartender Downloads
+     * @param smallResourceSize die maximale Größe einer "kleinen" Resource
+     */
+    public DownloadScheduler(int capacity, long smallResourceSize)
+    {
+        this.capacity = capacity;
+        this.smallResourceSize = smallResourceSize;
+        this.lock = new ReentrantLock();
+        this.taskAvailable = this.lock.newCondition();
+        this.entries = new ArrayList<>();
+        this.sizeHistory = new LinkedHashMap<>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+            {
+                return this.size() > MAX_SIZE_HISTORY;
+            }
+        };
+    }
+
+    /**
+     * Stelle einen Download ein, ohne zu blockieren.
+     *
+     * @param task
+     * @return <code>false</code>, wenn bereits die maximale Anzahl von
+     *         Downloads wartet.
+     */
+    public boolean offer(DownloadTask task)
+    {
+        this.lock.lock();
+        try
+        {
+            if (this.entries.size() >= this.capacity)
+            {
+                return false;
+            }
+
+            this.entries.add(new Entry(task, this.classify(task), this.sequence++));
+            this.taskAvailable.signalAll();
+            return true;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Entnimm den Download mit der höchsten Priorität. Liegt kein passender
+     * Download vor, so wird gewartet.
+     *
+     * @param smallOnly sollen nur JNLP-Files und kleine Resourcen entnommen
+     *        werden?
+     * @return
+     * @throws InterruptedException
+     */
+    public DownloadTask take(boolean smallOnly) throws InterruptedException
+    {
+        this.lock.lock();
+        try
+        {
+            int best = this.findBest(smallOnly);
+            while (best == -1)
+            {
+                this.taskAvailable.await();
+                best = this.findBest(smallOnly);
+            }
+            return this.entries.remove(best).task();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Entnimm den Download mit der höchsten Priorität, sobald das Limit einen
+     * weiteren Download zulässt.
+     *
+     * Auf einen Platz im Limit wird erst gewartet, wenn ein passender
+     * Download vorliegt, und zwar ohne diesen zu entnehmen. Entnommen wird
+     * erst mit dem Platz, und zwar der Download, welcher dann die höchste
+     * Priorität hat. Ein wartender Worker hält also weder einen Platz noch
+     * einen Download fest. Hat ein anderer Worker den letzten passenden
+     * Download bereits entnommen, so wird der Platz wieder freigegeben.
+     *
+     * @param smallOnly sollen nur JNLP-Files und kleine Resourcen entnommen
+     *        werden?
+     * @param limit
+     * @return der Download, für welchen ein Platz im Limit belegt wurde.
+     *         Dieser muss mit {@link ConcurrencyLimit#release(DownloadSample)}
+     *         wieder freigegeben werden.
+     * @throws InterruptedException
+     */
+    public DownloadTask take(boolean smallOnly, ConcurrencyLimit limit) throws InterruptedException
+    {
+        while (true)
+        {
+            this.awaitTask(smallOnly);
+            limit.acquire();
+
+            this.lock.lock();
+            try
+            {
+                int best = this.findBest(smallOnly);
+                if (best != -1)
+                {
+                    return this.entries.remove(best).task();
+                }
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+            limit.release(null);
+        }
+    }
+
+    /**
+     * Merke die Größe einer erfolgreich geladenen Resource für zukünftige
+     * Downloads.
+     *
+     * @param resourceName
+     * @param size
+     */
+    public void recordSize(String resourceName, long size)
+    {
+        this.lock.lock();
+        try
+        {
+            this.sizeHistory.put(resourceName, size);
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return die Anzahl wartender Downloads
+     */
+    public int size()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.entries.size();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Warte, bis ein passender Download vorliegt, ohne ihn zu entnehmen.
+     *
+     * @param smallOnly
+     * @throws InterruptedException
+     */
+    private void awaitTask(boolean smallOnly) throws InterruptedException
+    {
+        this.lock.lock();
+        try
+        {
+            while (this.findBest(smallOnly) == -1)
+            {
+                this.taskAvailable.await();
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Muss unter dem Lock aufgerufen werden.
+     *
+     * @param smallOnly
+     * @return der Index des Downloads mit der höchsten Priorität oder -1
+     */
+    private int findBest(boolean smallOnly)
+    {
+        int best = -1;
+        int bestWaiting = 0;
+        for (int i = 0; i < this.entries.size(); i++)
+        {
+            Entry entry = this.entries.get(i);
+            if (smallOnly && entry.sizeClass() > CLASS_SMALL)
+            {
+                continue;
+            }
+
+            int waiting = entry.task().buffer().getReaderCount();
+            if (best == -1 || this.isBefore(entry, waiting, this.entries.get(best), bestWaiting))
+            {
+                best = i;
+                bestWaiting = waiting;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param entry
+     * @param waiting
+     * @param other
+     * @param otherWaiting
+     * @return <code>true</code>, wenn entry vor other geladen werden soll
+     */
+    private boolean isBefore(Entry entry, int waiting, Entry other, int otherWaiting)
+    {
+        if (entry.sizeClass() != other.sizeClass())
+        {
+            return entry.sizeClass() < other.sizeClass();
+        }
+
+        if (waiting != otherWaiting)
+        {
+            return waiting > otherWaiting;
+        }
+        return entry.sequence() < other.sequence();
+    }
+
+    /**
+     * Muss unter dem Lock aufgerufen werden.
+     *
+     * @param task
+     * @return die Klasse des Downloads
+     */
+    private int classify(DownloadTask task)
+    {
+        if (task.cachedMetaData() != null)
+        {
+            return CLASS_REVALIDATION;
+        }
+
+        if (task.fileName().toLowerCase().endsWith(".jnlp"))
+        {
+            return CLASS_JNLP;
+        }
+
+        Long expectedSize = this.sizeHistory.get(task.fileName());
+        if (expectedSize == null || expectedSize < 0)
+        {
+            return CLASS_UNKNOWN;
+        }
+        return (expectedSize <= this.smallResourceSize) ? CLASS_SMALL : CLASS_LARGE;
+    }
+
+    /**
+     * Ein wartender Download
+     */
+    private static record Entry(DownloadTask task, int sizeClass, long sequence)
+    {
+    }
+}
@@ -4,11 +4,31 @@ package de.cbfagree.webstart.backend;
  * Beschreibt einen Download-Auftrag.
  * 
  * Da es sich um ein immutable ValueObject handelt ist ein record grade richtig.
+ * 
+ * @param fileName
+ * @param buffer
+ * @param observer
+ * @param cachedMetaData die Meta-Daten der gecachten Version, wenn es sich um 
+ *        die Revalidierung eines Cache-Eintrages handelt. Der Download erfolgt
+ *        dann bedingt (If-None-Match, If-Modified-Since). Für normale 
+ *        Downloads <code>null</code>.
  */
 public record DownloadTask(//
     String fileName, //
     WriteThroughBuffer buffer, //
-    IDownloadObserver observer)
+    IDownloadObserver observer, //
+    ResourceMetaData cachedMetaData)
 {
+    /**
+     * Ein normaler, unbedingter Download
+     * 
+     * @param fileName
+     * @param buffer
+     * @param observer
+     */
+    public DownloadTask(String fileName, WriteThroughBuffer buffer, IDownloadObserver observer)
+    {
+        this(fileName, buffer, observer, null);
+    }
 
 }
@@ -1,49 +1,34 @@
 package de.cbfagree.webstart.backend;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.Proxy;
-import java.net.URL;
-import java.util.concurrent.LinkedBlockingQueue;
-
-import de.cbfagree.webstart.config.BackendConfig;
-
 /**
- * Der DownloadWorker fungiert als DaemonThread, welcher an der JobQueue
- * lauscht. Sobald einn neuer Job gefunden wird, so wird die Resource
- * herunter geladen und in den im Job angegebenen {@link WriteThroughBuffer}
- * eingestellt.
- * 
+ * Der DownloadWorker fungiert als DaemonThread, welcher am 
+ * {@link DownloadScheduler} lauscht. Sobald einn neuer Job gefunden wird, so
+ * wird die Resource über den {@link UrlConnectionDownloader} herunter geladen
+ * und in den im Job angegebenen {@link WriteThroughBuffer} eingestellt.
  */
 class DownloadWorker extends Thread
 {
-    private static final String CHUNK_HEADER_PATTERN = "%x\r\n";
-    private static final byte[] CHUNK_TRAILER = "\r\n".getBytes();
-    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes();
-
     private static int workerNr = 0;
 
-    private URL baseUrl;
-    private Proxy proxy;
-    private int connTimeout;
-    private int readTimeout;
-    private LinkedBlockingQueue<DownloadTask> queue;
+    private UrlConnectionDownloader downloader;
+    private DownloadScheduler scheduler;
+    private ConcurrencyLimit limit;
+    private boolean smallOnly;
 
     /**
-     * @param baseUrl
-     * @param queue
+     * @param downloader
+     * @param scheduler
+     * @param limit
+     * @param smallOnly ist der Worker für JNLP-Files und kleine Resourcen
+     *        reserviert?
      */
-    public DownloadWorker(BackendConfig cfg, Proxy httpProxy, LinkedBlockingQueue<DownloadTask> queue)
+    public DownloadWorker(UrlConnectionDownloader downloader, DownloadScheduler scheduler, ConcurrencyLimit limit,
+        boolean smallOnly)
     {
-        this.baseUrl = cfg.getBaseUrl();
-        this.proxy = httpProxy;
-        this.queue = queue;
-        this.connTimeout = cfg.getConnTimeout();
-        this.readTimeout = cfg.getReadTimeout();
+        this.downloader = downloader;
+        this.scheduler = scheduler;
+        this.limit = limit;
+        this.smallOnly = smallOnly;
         this.setName(String.format("download-worker-%1$d", workerNr++));
         this.setDaemon(true);
         this.start();
@@ -53,6 +38,13 @@ class DownloadWorker extends Thread
      * Warte an der Queue bis ein Job verfügbar ist und führe diesen dann
      * aus. Nach dem Ausführen des Jobs hängt sich der Thread wieder an 
      * die Queue und wartet auf den nächsten Job.
+     * 
+     * Der Job wird erst entnommen, wenn das {@link ConcurrencyLimit} einen
+     * Platz für ihn hat, siehe
+     * {@link DownloadScheduler#take(boolean, ConcurrencyLimit)}. Bei einem
+     * gesenkten Limit hält ein wartender Worker also keinen Job fest, der
+     * nächste freie Platz geht immer an den Job mit der dann höchsten
+     * Priorität.
      */
     @Override
     public void run()
@@ -61,8 +53,8 @@ class DownloadWorker extends Thread
         {
             try
             {
-                DownloadTask job = this.queue.take();
-                this.doDownload(job);
+                DownloadTask job = this.scheduler.take(this.smallOnly, this.limit);
+                this.runDownload(job);
             }
             catch (InterruptedException e)
             {
@@ -72,144 +64,20 @@ class DownloadWorker extends Thread
     }
 
     /**
-     * @param task
-     */
-    private void doDownload(DownloadTask task)
-    {
-        try
-        {
-            HttpURLConnection conn = this.createDownloadConnection(task.fileName());
-            WriteThroughBuffer taskBuffer = task.buffer();
-
-            int statusCode = conn.getResponseCode();
-            this.writeHTTPHeader(conn, taskBuffer);
-            taskBuffer.setReadyForRead(true);
-
-            if (statusCode < 300)
-            {
-                try (InputStream in = conn.getInputStream())
-                {
-                    byte[] buffer = new byte[0xffff];
-                    int read = in.read(buffer);
-                    while (read != -1)
-                    {
-                        taskBuffer.append(String.format(CHUNK_HEADER_PATTERN, read).getBytes());
-                        taskBuffer.append(buffer, read);
-                        taskBuffer.append(CHUNK_TRAILER); // TODO: zusammen fassen um nicht 3* den RWLock anfordern zu müssen
-                        read = in.read(buffer);
-                    }
-                    taskBuffer.append(LAST_CHUNK);
-                    taskBuffer.close();
-
-                    if (statusCode == 200)
-                    {
-                        File tmpFile = this.createCacheFile(taskBuffer);
-                        task.observer().downloadCompleted(task.fileName(), tmpFile);
-                    }
-                }
-            }
-        }
-        catch (IOException | InterruptedException e)
-        {
-            e.printStackTrace();
-        }
-    }
-
-    /**
-     * @param conn
-     * @param taskBuffer
-     * @throws IOException
-     * @throws InterruptedException
-     */
-    private void writeHTTPHeader(HttpURLConnection conn, WriteThroughBuffer taskBuffer)
-        throws IOException, InterruptedException
-    {
-        StringBuilder hdr = new StringBuilder() //
-            .append(String.format("HTTP/1.1 %d OK\r\n", conn.getResponseCode())) //
-            .append("Connection: close\r\n") //
-            .append("Transfer-Encoding: chunked\r\n") //
-            .append(String.format("Content-Type: %s\r\n", conn.getContentType())) //
-            .append("\r\n");
-        taskBuffer.append(hdr.toString().getBytes());
-    }
-
-    /**
-     * @param fileName
-     * @return
-     * @throws IOException
-     */
-    private HttpURLConnection createDownloadConnection(String fileName) throws IOException
-    {
-        URL url = this.createDownloadURL(fileName);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection(this.proxy);
-        conn.setRequestProperty("Accept", "*/*");
-        conn.setConnectTimeout(this.connTimeout);
-        conn.setReadTimeout(this.readTimeout);
-        conn.setDoInput(true);
-        conn.setDoOutput(true);
-        //        conn.setInstanceFollowRedirects(true);
-        return conn;
-    }
-
-    /**
-     * @param fileName
-     * @return
-     * @throws MalformedURLException
-     */
-    private URL createDownloadURL(String fileName) throws MalformedURLException
-    {
-        String path = this.baseUrl.getPath();
-        if (!path.endsWith("/") && !fileName.startsWith("/"))
-        {
-            path += "/";
-        }
-        path += fileName;
-
-        return new URL(this.baseUrl.getProtocol(), this.baseUrl.getHost(), this.baseUrl.getPort(), path);
-    }
-
-    /**
-     * 
-     * Generiere das File für den Cache. Das Cache-File beinhaltet eine komplette
-     * Http-Response, inklusive dem Header.Der Inhalt sieht also folgendermassen aus:
-     * 
-     * <pre>
-     * HTTP &lt;responseCode&gt; &lt;reasonPhrase&gt\r\n
-     * Content-Type: &lt;empfangener ContentType aus der URLConnection&gt;\r\n
-     * Transfer-Encoding: chunked\r\n
-     * Connection: close\r\n
-     * \r\n
-     * &lt;Inhalt des Buffers als Http-Chunks&gt;
-     * </pre>
+     * Führe den Job aus und gib danach seinen Platz im Limit frei.
      * 
-     * @param content
-     * @return
-     * @throws IOException
-     * @throws InterruptedException
+     * @param job
      */
-    private File createCacheFile(WriteThroughBuffer content) throws IOException, InterruptedException
+    private void runDownload(DownloadTask job)
     {
-        File tmpFile = File.createTempFile("jwsproxy_", ".tmp");
-
-        try (FileOutputStream fileOut = new FileOutputStream(tmpFile))
+        DownloadSample sample = null;
+        try
         {
-            byte[] tmpBuf = new byte[8192];
-            int currPos = 0;
-            int read = content.getBytes(currPos, tmpBuf, 0, tmpBuf.length);
-            while (read != -1)
-            {
-                fileOut.write(tmpBuf, 0, read);
-                currPos += read;
-                read = content.getBytes(currPos, tmpBuf, 0, tmpBuf.length);
-            }
-            fileOut.flush();
-
-            return tmpFile;
+            sample = this.downloader.download(job);
         }
-        catch (IOException | InterruptedException e)
+        finally
         {
-            tmpFile.delete();
-            throw e;
+            this.limit.release(sample);
         }
     }
 }
@@ -1,29 +1,61 @@
 package de.cbfagree.webstart.backend;
 
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import de.cbfagree.webstart.backend.EngineOverloadException.EMsgId;
 import de.cbfagree.webstart.config.BackendConfig;
+import de.cbfagree.webstart.messages.MsgFactory;
+import lombok.extern.log4j.Log4j2;
 
 /**
+ * Verteilt die Downloads über den {@link DownloadScheduler} an die 
+ * {@link DownloadWorker}. Die Downloads werden dabei nicht in der Reihenfolge
+ * des Eintreffens, sondern nach ihrer Priorität abgearbeitet.
+ * 
+ * Downloads werden vom Selector-Thread des Frontends ausgelöst. Das Einstellen
+ * in die Queue blockiert deshalb niemals: Ist die Queue voll, so wird der
+ * Download sofort mit einer {@link EngineOverloadException} abgewiesen. 
+ * Treffer im Cache sind davon nicht betroffen.
  * 
+ * Die Anzahl gleichzeitiger Downloads begrenzt ein {@link ConcurrencyLimit},
+ * welches sich auf Wunsch an die Last des Backends anpasst.
  */
-public class DownloaderEngine
+@Log4j2
+public class DownloaderEngine implements DownloaderEngineMXBean
 {
-    private List<DownloadWorker> threads;
-    private LinkedBlockingQueue<DownloadTask> taskQueue;
-    private boolean isInShutdown = false;
+    private static final String MBEAN_NAME = "de.cbfagree.webstart:type=DownloaderEngine";
+
+    private List<Thread> threads;
+    private DownloadScheduler scheduler;
+    private ConcurrencyLimit limit;
+    private int queueCapacity;
+    private volatile boolean isInShutdown = false;
+
+    private AtomicInteger maxQueueDepth;
+    private AtomicLong submittedTasks;
+    private AtomicLong rejectedTasks;
 
     /**
      * 
      */
     public DownloaderEngine(BackendConfig cfg)
     {
-        this.taskQueue = new LinkedBlockingQueue<DownloadTask>(1000);
-        this.startThreads(cfg, this.taskQueue);
+        this.queueCapacity = cfg.getQueueSize();
+        this.scheduler = new DownloadScheduler(this.queueCapacity, cfg.getSmallResourceSize());
+        this.maxQueueDepth = new AtomicInteger(0);
+        this.submittedTasks = new AtomicLong(0);
+        this.rejectedTasks = new AtomicLong(0);
+        this.startThreads(cfg, this.scheduler);
+        this.registerMBean();
     }
 
     /**
@@ -49,16 +81,28 @@ public class DownloaderEngine
     }
 
     /**
+     * Stelle einen Download in die Queue, ohne zu blockieren.
+     * 
      * @param task
-     * @throws InterruptedException
+     * @throws EngineOverloadException wenn die Queue voll ist oder die Engine
+     *         bereits herunter gefahren wird.
      */
-    public void submit(DownloadTask task) throws InterruptedException
+    public void submit(DownloadTask task) throws EngineOverloadException
     {
         if (this.isInShutdown)
         {
-            // TODO Exception werfen!
+            this.rejectedTasks.incrementAndGet();
+            throw new EngineOverloadException(EMsgId.ERR_SHUTDOWN, task.fileName());
         }
-        this.taskQueue.put(task);
+
+        if (!this.scheduler.offer(task))
+        {
+            this.rejectedTasks.incrementAndGet();
+            throw new EngineOverloadException(EMsgId.ERR_QUEUE_FULL, this.queueCapacity, task.fileName());
+        }
+
+        this.submittedTasks.incrementAndGet();
+        this.maxQueueDepth.accumulateAndGet(this.scheduler.size(), Math::max);
     }
 
     /**
@@ -69,7 +113,7 @@ public class DownloaderEngine
         if (!this.isInShutdown)
         {
             this.isInShutdown = true;
-            for (DownloadWorker worker : this.threads)
+            for (Thread worker : this.threads)
             {
                 this.shutdownWorker(worker);
             }
@@ -77,27 +121,152 @@ public class DownloaderEngine
     }
 
     /**
-     * @param baseUrl
-     * @param httpProxy 
-     * @param maxThreads
-     * @param taskQueue
+     * Starte die Worker. Die ersten Worker werden für kleine Resourcen 
+     * reserviert, es bleibt aber immer mindestens ein Worker für alle
+     * Resourcen übrig.
+     * 
+     * Bei der asynchronen Engine und bei virtuellen Threads gibt es nur einen
+     * Dispatcher-Thread, dort begrenzt maxThreads die Anzahl paralleler 
+     * Downloads unabhängig von der Anzahl der CPUs. Reservierte Worker gibt
+     * es dort nicht.
+     * 
+     * @param cfg
+     * @param scheduler
      */
-    private void startThreads(BackendConfig cfg, LinkedBlockingQueue<DownloadTask> taskQueue)
+    private void startThreads(BackendConfig cfg, DownloadScheduler scheduler)
     {
         Proxy httpProxy = this.setupDownloadProxy(cfg);
+        switch (cfg.getEngine())
+        {
+            case ASYNC:
+                this.limit = this.createLimit(cfg, cfg.getMaxThreads());
+                this.threads = List.of(new AsyncDownloadDispatcher(cfg, httpProxy, scheduler, this.limit));
+                break;
+
+            case VIRTUAL:
+                this.limit = this.createLimit(cfg, cfg.getMaxThreads());
+                this.threads = List.of(new VirtualThreadDispatcher( //
+                    new UrlConnectionDownloader(cfg, httpProxy, scheduler, this.limit), //
+                    scheduler, //
+                    this.limit));
+                break;
+
+            default:
+                this.threads = this.startWorkers(cfg, httpProxy, scheduler);
+                break;
+        }
+    }
+
+    /**
+     * @param cfg
+     * @param httpProxy
+     * @param scheduler
+     * @return
+     */
+    private List<Thread> startWorkers(BackendConfig cfg, Proxy httpProxy, DownloadScheduler scheduler)
+    {
         int nrOfThreads = Math.min(cfg.getMaxThreads(), Runtime.getRuntime().availableProcessors());
-        this.threads = new ArrayList<>(nrOfThreads);
+        int nrOfReserved = Math.min(cfg.getReservedWorkers(), nrOfThreads - 1);
+        this.limit = this.createLimit(cfg, nrOfThreads);
+        UrlConnectionDownloader downloader = new UrlConnectionDownloader(cfg, httpProxy, scheduler, this.limit);
 
+        List<Thread> workers = new ArrayList<>(nrOfThreads);
         for (int i = 0; i < nrOfThreads; ++i)
         {
-            this.threads.add(new DownloadWorker(cfg, httpProxy, taskQueue));
+            workers.add(new DownloadWorker(downloader, scheduler, this.limit, i < nrOfReserved));
         }
+        return workers;
+    }
+
+    /**
+     * @param cfg
+     * @param maxLimit die maximale Anzahl gleichzeitiger Downloads der Engine
+     * @return
+     */
+    private ConcurrencyLimit createLimit(BackendConfig cfg, int maxLimit)
+    {
+        return new ConcurrencyLimit(cfg.getMinThreads(), maxLimit, cfg.isAdaptiveLimit());
+    }
+
+    /**
+     * 
+     */
+    private void registerMBean()
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(MBEAN_NAME));
+        }
+        catch (JMException e)
+        {
+            log.warn(MsgFactory.get(this.getClass(), EMsgIds.ERR_REGISTER_MBEAN, MBEAN_NAME, e));
+        }
+    }
+
+    @Override
+    public int getQueueDepth()
+    {
+        return this.scheduler.size();
+    }
+
+    @Override
+    public int getQueueCapacity()
+    {
+        return this.queueCapacity;
+    }
+
+    @Override
+    public int getMaxQueueDepth()
+    {
+        return this.maxQueueDepth.get();
+    }
+
+    @Override
+    public long getSubmittedTasks()
+    {
+        return this.submittedTasks.get();
+    }
+
+    @Override
+    public long getRejectedTasks()
+    {
+        return this.rejectedTasks.get();
+    }
+
+    @Override
+    public int getConcurrencyLimit()
+    {
+        return this.limit.getLimit();
+    }
+
+    @Override
+    public int getActiveDownloads()
+    {
+        return this.limit.getInFlight();
+    }
+
+    @Override
+    public long getLimitIncreases()
+    {
+        return this.limit.getIncreases();
+    }
+
+    @Override
+    public long getLimitDecreases()
+    {
+        return this.limit.getDecreases();
+    }
+
+    @Override
+    public long getMinTimeToFirstByte()
+    {
+        return this.limit.getMinTimeToFirstByte();
     }
 
     /**
      * @param worker
      */
-    private void shutdownWorker(DownloadWorker worker)
+    private void shutdownWorker(Thread worker)
     {
         try
         {
@@ -109,4 +278,12 @@ public class DownloaderEngine
             Thread.currentThread().interrupt();
         }
     }
+
+    /**
+     * 
+     */
+    private enum EMsgIds
+    {
+        ERR_REGISTER_MBEAN, //
+    }
 }
@@ -0,0 +1,62 @@
+package de.cbfagree.webstart.backend;
+
+/**
+ * Die Management-Schnittstelle der {@link DownloaderEngine}. Sie wird unter
+ * dem Namen <code>de.cbfagree.webstart:type=DownloaderEngine</code> im
+ * Platform-MBeanServer registriert.
+ */
+public interface DownloaderEngineMXBean
+{
+    /**
+     * @return die Anzahl der Downloads, welche auf einen Worker warten
+     */
+    public int getQueueDepth();
+
+    /**
+     * @return die maximale Anzahl wartender Downloads
+     */
+    public int getQueueCapacity();
+
+    /**
+     * @return die höchste bisher beobachtete Anzahl wartender Downloads
+     */
+    public int getMaxQueueDepth();
+
+    /**
+     * @return die Anzahl der bisher angenommenen Downloads
+     */
+    public long getSubmittedTasks();
+
+    /**
+     * @return die Anzahl der wegen Überlast abgewiesenen Downloads
+     */
+    public long getRejectedTasks();
+
+    /**
+     * @return die aktuell erlaubte Anzahl gleichzeitiger Downloads
+     */
+    public int getConcurrencyLimit();
+
+    /**
+     * @return die Anzahl der laufenden Downloads. Im async- und
+     *         virtual-Modus zählt der Platz mit, welchen der Dispatcher
+     *         bereits für den nächsten Download reserviert hat.
+     */
+    public int getActiveDownloads();
+
+    /**
+     * @return wie oft das Limit bisher erhöht wurde
+     */
+    public long getLimitIncreases();
+
+    /**
+     * @return wie oft das Limit bisher wegen Überlast gesenkt wurde
+     */
+    public long getLimitDecreases();
+
+    /**
+     * @return die beste beobachtete Time-To-First-Byte des Backends in
+     *         Millisekunden
+     */
+    public long getMinTimeToFirstByte();
+}
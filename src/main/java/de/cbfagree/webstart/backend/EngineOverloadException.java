@@ -0,0 +1,26 @@
+package de.cbfagree.webstart.backend;
+
+import de.cbfagree.webstart.messages.MsgFactory;
+
+/**
+ * Die {@link DownloaderEngine} kann im Moment keine weiteren Downloads 
+ * annehmen. Der Request, welcher den Download ausgelöst hat, wird mit
+ * "503 Service Unavailable" beantwortet.
+ */
+public class EngineOverloadException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    public EngineOverloadException(EMsgId msgId, Object... args)
+    {
+        super( //
+            MsgFactory.get(EngineOverloadException.class, msgId, args).getFormattedMessage() //
+        );
+    }
+
+    public enum EMsgId
+    {
+        ERR_QUEUE_FULL, //
+        ERR_SHUTDOWN, //
+    }
+}
@@ -0,0 +1,15 @@
+package de.cbfagree.webstart.backend;
+
+/**
+ * Ein {@link IBufferListener} wird von einem {@link WriteThroughBuffer}
+ * benachrichtigt, wenn sich dessen Zustand ändert. Das ist der Fall wenn
+ * neue Daten angefügt wurden, der Buffer bereit zum lesen wird oder er
+ * geschlossen wurde.
+ *
+ * Die Benachrichtigung erfolgt im Thread des Schreibers, der Listener darf
+ * also nicht blockieren.
+ */
+public interface IBufferListener
+{
+    public void bufferChanged(WriteThroughBuffer buffer);
+}
@@ -1,12 +1,38 @@
 package de.cbfagree.webstart.backend;
 
-import java.io.File;
-
 /**
  * Die Download-Worker benachrichtigen einen {@link IDownloadObserver}
  * wenn der Status des DownloadTasks sich ändert.
  */
 public interface IDownloadObserver
 {
-    public void downloadCompleted(String string, File file);
+    /**
+     * Der Download der Resource wurde erfolgreich abgeschlossen. Der Buffer
+     * ist bereits geschlossen, sein Staging-File kann übernommen werden.
+     * 
+     * @param resourceName
+     * @param buffer
+     */
+    public void downloadCompleted(String resourceName, WriteThroughBuffer buffer);
+
+    /**
+     * Das Backend hat nicht mit dem StatusCode 200 geantwortet. Der Buffer ist
+     * bereits geschlossen, seine Meta-Daten beschreiben die Fehler-Response.
+     * 
+     * @param resourceName
+     * @param buffer
+     */
+    public void downloadRejected(String resourceName, WriteThroughBuffer buffer);
+
+    /**
+     * Der Download ist abgebrochen. Hatte das Backend noch nicht geantwortet,
+     * so beschreiben die Meta-Daten des Buffers eine "502 Bad Gateway" 
+     * Response ohne Content. Andernfalls steht die Ursache bereits im Buffer,
+     * die Leser bekommen sie beim nächsten Lese-Versuch.
+     * 
+     * @param resourceName
+     * @param buffer
+     * @param cause
+     */
+    public void downloadFailed(String resourceName, WriteThroughBuffer buffer, Exception cause);
 }
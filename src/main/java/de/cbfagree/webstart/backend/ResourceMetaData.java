@@ -0,0 +1,34 @@
+package de.cbfagree.webstart.backend;
+
+/**
+ * Die Meta-Informationen einer Resource, so wie sie vom Parent-Proxy bzw.
+ * vom Download-Portal geliefert wurden.
+ *
+ * Aus diesen Informationen erzeugt das Frontend beim ausliefern den
+ * HTTP-ResponseHeader.
+ *
+ * @param statusCode der HTTP-StatusCode der Backend-Response
+ * @param contentType der ContentType oder <code>null</code> wenn unbekannt
+ * @param contentLength die Länge des Contents oder -1 wenn unbekannt
+ * @param etag der ETag oder <code>null</code> wenn keiner geliefert wurde
+ * @param lastModified der Zeitpunkt der letzten Änderung (in Millisekunden seit
+ *        der Epoche) oder 0 wenn unbekannt
+ */
+public record ResourceMetaData(//
+    int statusCode, //
+    String contentType, //
+    long contentLength, //
+    String etag, //
+    long lastModified)
+{
+    /**
+     * Liefere eine Kopie mit der angegebenen Content-Länge.
+     *
+     * @param length
+     * @return
+     */
+    public ResourceMetaData withContentLength(long length)
+    {
+        return new ResourceMetaData(this.statusCode, this.contentType, length, this.etag, this.lastModified);
+    }
+}
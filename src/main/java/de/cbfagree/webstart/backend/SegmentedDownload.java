@@ -0,0 +1,423 @@
+package de.cbfagree.webstart.backend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import de.cbfagree.webstart.messages.MsgFactory;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Lädt eine große Resource in mehreren Segmenten parallel herunter.
+ *
+ * Das erste Segment kommt aus der bereits laufenden Response des normalen
+ * Downloads, diese wird nach dem ersten Segment abgebrochen. Alle weiteren
+ * Segmente werden parallel per Range-Request geladen und direkt an ihrer
+ * Position in das Staging-File geschrieben, jeder Content wird also nur
+ * einmal geschrieben. Über If-Range wird sicher gestellt, dass alle Segmente
+ * aus der selben Version der Resource stammen.
+ *
+ * Jedes weitere Segment ist eine zusätzliche Connection zum Backend und
+ * belegt daher einen Platz im {@link ConcurrencyLimit} der Engine. Die Plätze
+ * werden nur genommen, wenn sie frei sind: die Resource wird in so viele
+ * Segmente geteilt, wie Plätze zu bekommen sind. Ist kein Platz frei, so
+ * wird die Resource einfach in dem laufenden Stream geladen. Jedes Segment
+ * gibt seinen Platz (mit seinen Messwerten) frei, sobald es beendet ist.
+ *
+ * Jedes Segment verwendet einen eigenen FileChannel auf das Staging-File.
+ * Wird ein Segment per Interrupt abgebrochen, so schließt das nur dessen
+ * Channel und nicht den gemeinsamen Channel des Buffers.
+ *
+ * Da der {@link WriteThroughBuffer} nur einen Schreiber kennt und die
+ * Prüfsumme in der richtigen Reihenfolge berechnet werden muss, übernimmt der
+ * aufrufende Thread die Segmente der Reihe nach in den Buffer
+ * ({@link WriteThroughBuffer#appendWritten(long, ByteBuffer)}). Das passiert
+ * bereits während die Segmente noch laden, die Leser bekommen also immer den
+ * zusammenhängenden Anfang der Resource.
+ *
+ * Scheitert ein Segment (etwa weil das Backend den Range-Request nicht
+ * beantwortet), so werden alle weiteren Segmente verworfen und der Rest der
+ * Resource ab dem aktuellen Stand des Buffers in einem einzigen Stream
+ * geladen.
+ */
+@Log4j2
+class SegmentedDownload
+{
+    private static final int IO_BUFFER_SIZE = 0xffff;
+
+    private UrlConnectionDownloader downloader;
+    private String fileName;
+    private WriteThroughBuffer buffer;
+    private String validator;
+    private long totalLength;
+    private int nrOfSegments;
+    private ConcurrencyLimit limit;
+    private long segmentLength;
+    private List<Segment> segments;
+    private List<Future<?>> fetches;
+
+    /**
+     * @param downloader
+     * @param fileName
+     * @param buffer
+     * @param validator der Wert für den If-Range-Header
+     * @param totalLength
+     * @param nrOfSegments die maximale Anzahl Segmente
+     * @param limit
+     */
+    public SegmentedDownload(UrlConnectionDownloader downloader, String fileName, WriteThroughBuffer buffer,
+        String validator, long totalLength, int nrOfSegments, ConcurrencyLimit limit)
+    {
+        this.downloader = downloader;
+        this.fileName = fileName;
+        this.buffer = buffer;
+        this.validator = validator;
+        this.totalLength = totalLength;
+        this.nrOfSegments = nrOfSegments;
+        this.limit = limit;
+        this.segments = new ArrayList<>(nrOfSegments - 1);
+        this.fetches = new ArrayList<>(nrOfSegments - 1);
+    }
+
+    /**
+     * Starte die Range-Requests, übernimm das erste Segment aus dem
+     * laufenden Stream und danach alle weiteren Segmente in den Buffer.
+     *
+     * @param firstSegment der Stream der normalen Response
+     * @param executor
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void run(InputStream firstSegment, ExecutorService executor) throws IOException, InterruptedException
+    {
+        int permits = this.acquirePermits();
+        if (permits == 0)
+        {
+            log.debug(MsgFactory.get(this.getClass(), EMsgIds.NO_SEGMENT_PERMITS, this.fileName));
+            this.downloader.copyResumable(firstSegment, this.fileName, this.buffer, this.validator,
+                this.totalLength, this.totalLength);
+            return;
+        }
+
+        try
+        {
+            this.startSegments(executor, permits);
+            this.downloader.copyResumable(firstSegment, this.fileName, this.buffer, this.validator,
+                this.segmentLength, this.totalLength);
+            firstSegment.close();
+
+            for (Segment segment : this.segments)
+            {
+                if (!this.assemble(segment))
+                {
+                    this.cancelSegments();
+                    this.fetchRemainder();
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            this.cancelSegments();
+        }
+    }
+
+    /**
+     * Lade den Rest der Resource in einem Stream. Bricht dieser ab, so wird
+     * der Download fortgesetzt.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void fetchRemainder() throws IOException, InterruptedException
+    {
+        try
+        {
+            this.downloader.fetchRange(this.fileName, this.buffer, this.validator, this.totalLength,
+                this.totalLength);
+        }
+        catch (IOException e)
+        {
+            this.downloader.resume(this.fileName, this.buffer, this.validator, this.totalLength,
+                this.totalLength, e);
+        }
+    }
+
+    /**
+     * Belege ohne zu warten bis zu einem Platz je weiterem Segment.
+     *
+     * @return die Anzahl belegter Plätze
+     */
+    private int acquirePermits()
+    {
+        int permits = 0;
+        while (permits < this.nrOfSegments - 1 && this.limit.tryAcquire())
+        {
+            permits++;
+        }
+        return permits;
+    }
+
+    /**
+     * Teile die Resource auf das erste und je belegtem Platz ein weiteres
+     * Segment auf. Bleiben durch die Rundung Plätze übrig, so werden diese
+     * sofort wieder freigegeben.
+     *
+     * @param executor
+     * @param permits die Anzahl belegter Plätze
+     */
+    private void startSegments(ExecutorService executor, int permits)
+    {
+        this.segmentLength = (this.totalLength + permits) / (permits + 1);
+        for (long start = this.segmentLength; start < this.totalLength; start += this.segmentLength)
+        {
+            long end = Math.min(start + this.segmentLength, this.totalLength) - 1;
+            Segment segment = new Segment(start, end);
+            this.segments.add(segment);
+            this.fetches.add(executor.submit(() -> this.fetch(segment)));
+        }
+
+        for (int i = this.segments.size(); i < permits; i++)
+        {
+            this.limit.release(null);
+        }
+    }
+
+    /**
+     * Lade ein Segment direkt an seine Position im Staging-File. Läuft auf
+     * einem Thread des Executors und gibt am Ende den Platz des Segments frei.
+     *
+     * @param segment
+     */
+    private void fetch(Segment segment)
+    {
+        if (!segment.begin())
+        {
+            // Verworfen, bevor es gestartet wurde: der Platz ist bereits frei
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        long ttfb = -1;
+        boolean throttled = false;
+        try
+        {
+            HttpURLConnection conn = this.downloader.createRangeConnection(this.fileName, segment.start,
+                segment.end, this.validator);
+            int statusCode = conn.getResponseCode();
+            ttfb = System.nanoTime() - startTime;
+            throttled = DownloadSample.isThrottleStatus(statusCode);
+            this.downloader.checkPartialContent(conn, segment.start, segment.end, this.totalLength);
+
+            try (InputStream in = conn.getInputStream(); //
+                FileChannel out = FileChannel.open(this.buffer.getStagingFile(), StandardOpenOption.WRITE))
+            {
+                long filePos = this.buffer.getDataOffset() + segment.start;
+                byte[] bytes = new byte[IO_BUFFER_SIZE];
+                int read = in.read(bytes);
+                while (read != -1 && !Thread.currentThread().isInterrupted())
+                {
+                    ByteBuffer buf = ByteBuffer.wrap(bytes, 0, read);
+                    while (buf.hasRemaining())
+                    {
+                        filePos += out.write(buf, filePos);
+                    }
+                    segment.advance(read);
+                    read = in.read(bytes);
+                }
+            }
+
+            if (segment.getReceived() != segment.length())
+            {
+                throw new IOException(String.format("premature EOF in segment %1$d-%2$d after %3$d bytes",
+                    segment.start, segment.end, segment.getReceived()));
+            }
+            segment.finish(null);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            throttled |= e instanceof SocketTimeoutException;
+            segment.finish(e);
+        }
+        finally
+        {
+            this.limit.release(new DownloadSample(ttfb, segment.getReceived(), System.nanoTime() - startTime,
+                throttled));
+        }
+    }
+
+    /**
+     * Übernimm ein Segment in den Buffer, sobald seine Daten eintreffen. Die
+     * Daten stehen bereits an der richtigen Position im Staging-File, das 
+     * Segment beginnt am aktuellen Ende des Buffers.
+     *
+     * @param segment
+     * @return <code>false</code>, wenn das Segment gescheitert ist. Der
+     *         bis dahin empfangene Teil wurde dann bereits übernommen.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private boolean assemble(Segment segment) throws IOException, InterruptedException
+    {
+        if (this.buffer.getTotalLength() != segment.start)
+        {
+            throw new IOException(String.format("segment %1$d-%2$d does not start at the end of the buffer (%3$d)",
+                segment.start, segment.end, this.buffer.getTotalLength()));
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(IO_BUFFER_SIZE);
+        long copied = 0;
+        while (copied < segment.length())
+        {
+            long available = segment.awaitData(copied);
+            if (available == copied)
+            {
+                log.warn(MsgFactory.get(this.getClass(), EMsgIds.ERR_SEGMENT_FAILED, this.fileName,
+                    segment.start, segment.end, segment.getFailure()));
+                return false;
+            }
+
+            this.buffer.appendWritten(available - copied, buf);
+            copied = available;
+        }
+        return true;
+    }
+
+    /**
+     * Brich noch laufende Segmente ab. Ihre Daten im Staging-File hinter dem
+     * Ende des Buffers werden ggf. überschrieben. Laufende Segmente geben
+     * ihren Platz selbst frei, für noch nicht gestartete geschieht das hier.
+     */
+    private void cancelSegments()
+    {
+        for (Future<?> fetch : this.fetches)
+        {
+            fetch.cancel(true);
+        }
+        for (Segment segment : this.segments)
+        {
+            if (segment.discard())
+            {
+                this.limit.release(null);
+            }
+        }
+    }
+
+    /**
+     * Ein Segment mit seinem Fortschritt. Der Fortschritt wird vom ladenden
+     * Thread gemeldet und vom zusammensetzenden Thread abgewartet.
+     */
+    private static class Segment
+    {
+        private final long start;
+        private final long end;
+        private long received;
+        private boolean started;
+        private boolean discarded;
+        private boolean done;
+        private Exception failure;
+
+        /**
+         * @param start
+         * @param end die Position des letzten Bytes (inklusive)
+         */
+        Segment(long start, long end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        long length()
+        {
+            return this.end - this.start + 1;
+        }
+
+        /**
+         * @return <code>false</code>, wenn das Segment bereits verworfen
+         *         wurde und nicht mehr geladen werden darf
+         */
+        synchronized boolean begin()
+        {
+            if (this.discarded)
+            {
+                return false;
+            }
+            this.started = true;
+            return true;
+        }
+
+        /**
+         * Verwirf das Segment, sofern es noch nicht gestartet wurde.
+         *
+         * @return <code>true</code>, wenn das Segment dadurch verworfen
+         *         wurde. Es wird dann nie gestartet.
+         */
+        synchronized boolean discard()
+        {
+            if (this.started || this.discarded)
+            {
+                return false;
+            }
+            this.discarded = true;
+            return true;
+        }
+
+        synchronized long getReceived()
+        {
+            return this.received;
+        }
+
+        synchronized void advance(int count)
+        {
+            this.received += count;
+            this.notifyAll();
+        }
+
+        synchronized Exception getFailure()
+        {
+            return this.failure;
+        }
+
+        synchronized void finish(Exception failure)
+        {
+            this.done = true;
+            this.failure = failure;
+            this.notifyAll();
+        }
+
+        /**
+         * Warte, bis über die angegebene Position hinaus Daten vorliegen
+         * oder das Segment beendet ist.
+         *
+         * @param position
+         * @return die Anzahl empfangener Bytes. Ist diese gleich der
+         *         angegebenen Position, so ist das Segment gescheitert.
+         * @throws InterruptedException
+         */
+        synchronized long awaitData(long position) throws InterruptedException
+        {
+            while (this.received <= position && !this.done)
+            {
+                this.wait();
+            }
+            return this.received;
+        }
+    }
+
+    /**
+     *
+     */
+    private enum EMsgIds
+    {
+        ERR_SEGMENT_FAILED, //
+        NO_SEGMENT_PERMITS, //
+    }
+}
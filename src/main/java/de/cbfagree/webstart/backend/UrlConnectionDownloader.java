@@ -0,0 +1,556 @@
+package de.cbfagree.webstart.backend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.cbfagree.webstart.config.BackendConfig;
+import de.cbfagree.webstart.messages.MsgFactory;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Führt einen Download blockierend über eine {@link HttpURLConnection} aus.
+ * 
+ * Der Downloader hat keinen eigenen Thread. Er wird sowohl von den
+ * {@link DownloadWorker}n als auch auf den (virtuellen) Threads des
+ * {@link VirtualThreadDispatcher}s verwendet und ist zustandslos, eine
+ * Instanz kann also von beliebig vielen Threads gleichzeitig genutzt werden.
+ * 
+ * Der Buffer schreibt die Daten direkt in sein Staging-File. Nach einem
+ * erfolgreichen Download wird dieses File dem {@link IDownloadObserver} 
+ * übergeben, ein weiteres kopieren ist nicht notwendig.
+ * 
+ * Große Resourcen werden ggf. als {@link SegmentedDownload} geladen.
+ */
+@Log4j2
+class UrlConnectionDownloader
+{
+    /**
+     * Die maximale Wartezeit vor dem Fortsetzen eines Downloads in 
+     * Millisekunden
+     */
+    private static final long MAX_RESUME_BACKOFF = 10000;
+
+    /**
+     * Die Meta-Daten für Leser eines Downloads, bei welchem das Backend gar
+     * nicht erst geantwortet hat.
+     */
+    static final ResourceMetaData BAD_GATEWAY = new ResourceMetaData(502, null, 0, null, 0);
+
+    private URL baseUrl;
+    private Proxy proxy;
+    private int connTimeout;
+    private int readTimeout;
+    private DownloadScheduler scheduler;
+    private ConcurrencyLimit limit;
+    private int segments;
+    private long segmentThreshold;
+    private int resumeAttempts;
+    private long resumeBackoff;
+    private ExecutorService segmentExecutor;
+
+    /**
+     * @param cfg
+     * @param httpProxy
+     * @param scheduler nimmt die Größe erfolgreicher Downloads entgegen
+     * @param limit das Limit der Engine, auch die Segmente belegen dort
+     *        jeweils einen Platz
+     */
+    public UrlConnectionDownloader(BackendConfig cfg, Proxy httpProxy, DownloadScheduler scheduler,
+        ConcurrencyLimit limit)
+    {
+        this.baseUrl = cfg.getBaseUrl();
+        this.proxy = httpProxy;
+        this.scheduler = scheduler;
+        this.limit = limit;
+        this.connTimeout = cfg.getConnTimeout();
+        this.readTimeout = cfg.getReadTimeout();
+        this.segments = cfg.getSegments();
+        this.segmentThreshold = cfg.getSegmentThreshold();
+        this.resumeAttempts = cfg.getResumeAttempts();
+        this.resumeBackoff = cfg.getResumeBackoff();
+        this.segmentExecutor = this.createSegmentExecutor(cfg.getMaxThreads());
+    }
+
+    /**
+     * Lade die Resource herunter.
+     * 
+     * Zuerst werden die Meta-Daten der Backend-Response in den Buffer gestellt,
+     * danach wird der Content unverändert (also ohne jedes Framing) in den 
+     * Buffer geschrieben. Den ResponseHeader für die Clients erzeugt das 
+     * Frontend beim ausliefern aus den Meta-Daten.
+     * 
+     * Nur Resourcen mit dem StatusCode 200 werden in den Cache übernommen. 
+     * Bei allen anderen StatusCodes wird der Content der Fehler-Response an 
+     * die wartenden Clients ausgeliefert.
+     * 
+     * Bricht der Download ab, bevor das Backend geantwortet hat, so bekommen
+     * die Leser "502 Bad Gateway". Bricht er später ab, so bekommen die Leser
+     * die Exception.
+     * 
+     * Handelt es sich um eine Revalidierung, so wird bedingt geladen. Meldet
+     * das Backend "304 Not Modified", so bleibt der Cache-Eintrag unverändert
+     * und der (leere) Buffer wird einfach verworfen.
+     * 
+     * Ist die Resource größer als der segmentThreshold und unterstützt das 
+     * Backend Range-Requests, so wird der Rest der Resource in mehreren 
+     * Segmenten parallel geladen, soweit das {@link ConcurrencyLimit} dafür
+     * noch freie Plätze hat, siehe {@link SegmentedDownload}.
+     * 
+     * Bricht der Stream einer Resource mit bekannter Länge ab, so wird der
+     * Download ab dem bereits empfangenen Stand fortgesetzt, siehe
+     * {@link #resume(String, WriteThroughBuffer, String, long, long, IOException)}.
+     * 
+     * @param task
+     * @return die Messwerte des Downloads für das {@link ConcurrencyLimit}
+     */
+    public DownloadSample download(DownloadTask task)
+    {
+        WriteThroughBuffer taskBuffer = task.buffer();
+        long startTime = System.nanoTime();
+        long ttfb = -1;
+        long received = 0;
+        boolean throttled = false;
+        try
+        {
+            HttpURLConnection conn = this.createDownloadConnection(task.fileName(), task.cachedMetaData());
+
+            int statusCode = conn.getResponseCode();
+            ttfb = System.nanoTime() - startTime;
+            throttled = DownloadSample.isThrottleStatus(statusCode);
+            taskBuffer.setMetaData(this.createMetaData(conn));
+
+            try (InputStream in = (statusCode < 400) ? conn.getInputStream() : conn.getErrorStream())
+            {
+                if (in != null)
+                {
+                    long contentLength = conn.getContentLengthLong();
+                    String validator = this.getRangeValidator(conn);
+                    if (this.isSegmentable(statusCode, contentLength, conn, validator))
+                    {
+                        new SegmentedDownload(this, task.fileName(), taskBuffer, validator, contentLength,
+                            this.segments, this.limit).run(in, this.segmentExecutor);
+                    }
+                    else if (statusCode == 200 && contentLength >= 0 && validator != null)
+                    {
+                        this.copyResumable(in, task.fileName(), taskBuffer, validator, contentLength,
+                            contentLength);
+                    }
+                    else
+                    {
+                        copyStream(in, taskBuffer, Long.MAX_VALUE);
+                    }
+                }
+            }
+
+            // HttpURLConnection meldet eine vorzeitig geschlossene Verbindung 
+            // einfach als EOF, ein abgeschnittener Download darf aber 
+            // keinesfalls in den Cache übernommen werden.
+            long expectedLength = conn.getContentLengthLong();
+            if (expectedLength >= 0 && taskBuffer.getTotalLength() != expectedLength)
+            {
+                throw new IOException(String.format("premature EOF after %1$d of %2$d bytes",
+                    taskBuffer.getTotalLength(), expectedLength));
+            }
+            taskBuffer.close();
+
+            if (statusCode == 200)
+            {
+                this.scheduler.recordSize(task.fileName(), taskBuffer.getTotalLength());
+                task.observer().downloadCompleted(task.fileName(), taskBuffer);
+            }
+            else
+            {
+                task.observer().downloadRejected(task.fileName(), taskBuffer);
+            }
+        }
+        catch (IOException | InterruptedException e)
+        {
+            if (e instanceof InterruptedException)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            throttled |= e instanceof SocketTimeoutException;
+            taskBuffer.abort(e, BAD_GATEWAY);
+            task.observer().downloadFailed(task.fileName(), taskBuffer, e);
+        }
+        finally
+        {
+            received = taskBuffer.getTotalLength();
+            this.releaseBuffer(task.fileName(), taskBuffer);
+        }
+        return new DownloadSample(ttfb, received, System.nanoTime() - startTime, throttled);
+    }
+
+    /**
+     * Kopiere einen Stream bis zur angegebenen Position in den Buffer. Bricht
+     * der Stream vorher ab, so wird der Download fortgesetzt.
+     * 
+     * @param in
+     * @param fileName
+     * @param taskBuffer
+     * @param validator der Wert für den If-Range-Header
+     * @param end die Position hinter dem letzten Byte
+     * @param totalLength
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void copyResumable(InputStream in, String fileName, WriteThroughBuffer taskBuffer, String validator, long end,
+        long totalLength) throws IOException, InterruptedException
+    {
+        IOException failure = null;
+        try
+        {
+            copyStream(in, taskBuffer, end - taskBuffer.getTotalLength());
+        }
+        catch (IOException e)
+        {
+            failure = e;
+        }
+
+        if (taskBuffer.getTotalLength() < end)
+        {
+            if (failure == null)
+            {
+                failure = new IOException(String.format("premature EOF after %1$d of %2$d bytes",
+                    taskBuffer.getTotalLength(), totalLength));
+            }
+            this.resume(fileName, taskBuffer, validator, end, totalLength, failure);
+        }
+    }
+
+    /**
+     * Setze einen abgebrochenen Download ab dem aktuellen Stand des Buffers
+     * fort. Die bereits im Buffer stehenden Bytes bleiben für die Leser 
+     * gültig, über If-Range wird sicher gestellt, dass der Rest aus der 
+     * selben Version der Resource stammt.
+     * 
+     * Zwischen den Versuchen wird exponentiell länger gewartet, höchstens 
+     * aber {@link #MAX_RESUME_BACKOFF} Millisekunden. Bringt ein Versuch 
+     * neue Daten, so beginnt die Zählung der Versuche von vorn.
+     * 
+     * @param fileName
+     * @param taskBuffer
+     * @param validator der Wert für den If-Range-Header
+     * @param end die Position hinter dem letzten Byte
+     * @param totalLength
+     * @param cause die Ursache des Abbruchs
+     * @throws IOException die letzte Ursache, wenn alle Versuche gescheitert
+     *         sind
+     * @throws InterruptedException
+     */
+    void resume(String fileName, WriteThroughBuffer taskBuffer, String validator, long end, long totalLength,
+        IOException cause) throws IOException, InterruptedException
+    {
+        IOException failure = cause;
+        int attempt = 0;
+        while (taskBuffer.getTotalLength() < end)
+        {
+            if (attempt >= this.resumeAttempts)
+            {
+                throw failure;
+            }
+
+            long backoff = Math.min(this.resumeBackoff << attempt, MAX_RESUME_BACKOFF);
+            long received = taskBuffer.getTotalLength();
+            log.info(MsgFactory.get(this.getClass(), EMsgIds.RESUME_DOWNLOAD, fileName, received, totalLength,
+                backoff, failure));
+            Thread.sleep(backoff);
+
+            try
+            {
+                this.fetchRange(fileName, taskBuffer, validator, end, totalLength);
+            }
+            catch (IOException e)
+            {
+                failure = e;
+            }
+            attempt = (taskBuffer.getTotalLength() > received) ? 0 : attempt + 1;
+        }
+    }
+
+    /**
+     * Lade einen Bereich einer Resource ab dem aktuellen Stand des Buffers
+     * in einem einzigen Stream.
+     * 
+     * Ignoriert das Backend den Range-Request und liefert die komplette
+     * Resource in der selben Version, so wird der bereits geladene Anfang 
+     * einfach überlesen.
+     * 
+     * @param fileName
+     * @param taskBuffer
+     * @param validator der Wert für den If-Range-Header
+     * @param end die Position hinter dem letzten Byte
+     * @param totalLength
+     * @throws IOException wenn das Backend weder den Bereich noch die selbe
+     *         Version der kompletten Resource liefert oder der Stream
+     *         vorzeitig endet
+     * @throws InterruptedException
+     */
+    void fetchRange(String fileName, WriteThroughBuffer taskBuffer, String validator, long end, long totalLength)
+        throws IOException, InterruptedException
+    {
+        long start = taskBuffer.getTotalLength();
+        HttpURLConnection conn = this.createRangeConnection(fileName, start, end - 1, validator);
+        if (!this.isSameVersion(conn, validator, totalLength))
+        {
+            this.checkPartialContent(conn, start, end - 1, totalLength);
+        }
+
+        try (InputStream in = conn.getInputStream())
+        {
+            if (conn.getResponseCode() == 200)
+            {
+                in.skipNBytes(start);
+            }
+            copyStream(in, taskBuffer, end - start);
+        }
+
+        if (taskBuffer.getTotalLength() != end)
+        {
+            throw new IOException(String.format("premature EOF after %1$d of %2$d bytes",
+                taskBuffer.getTotalLength(), totalLength));
+        }
+    }
+
+    /**
+     * @param conn
+     * @param validator
+     * @param totalLength
+     * @return <code>true</code>, wenn das Backend die komplette Resource in
+     *         der Version des Validators liefert
+     * @throws IOException
+     */
+    private boolean isSameVersion(HttpURLConnection conn, String validator, long totalLength) throws IOException
+    {
+        return conn.getResponseCode() == 200 //
+            && conn.getContentLengthLong() == totalLength //
+            && (validator.equals(conn.getHeaderField("ETag"))
+                || validator.equals(conn.getHeaderField("Last-Modified")));
+    }
+
+    /**
+     * @param fileName
+     * @param start
+     * @param end die Position des letzten Bytes (inklusive)
+     * @param validator der Wert für den If-Range-Header
+     * @return
+     * @throws IOException
+     */
+    HttpURLConnection createRangeConnection(String fileName, long start, long end, String validator)
+        throws IOException
+    {
+        HttpURLConnection conn = this.createDownloadConnection(fileName, null);
+        conn.setRequestProperty("Range", String.format("bytes=%1$d-%2$d", start, end));
+        conn.setRequestProperty("If-Range", validator);
+        return conn;
+    }
+
+    /**
+     * Prüfe, ob das Backend genau den angeforderten Bereich liefert. Hat 
+     * sich die Resource inzwischen geändert, so liefert das Backend wegen
+     * If-Range die komplette Resource mit dem StatusCode 200.
+     * 
+     * @param conn
+     * @param start
+     * @param end
+     * @param totalLength
+     * @throws IOException
+     */
+    void checkPartialContent(HttpURLConnection conn, long start, long end, long totalLength) throws IOException
+    {
+        String expected = String.format("bytes %1$d-%2$d/%3$d", start, end, totalLength);
+        String contentRange = conn.getHeaderField("Content-Range");
+        if (conn.getResponseCode() != 206 || contentRange == null || !contentRange.trim().equals(expected))
+        {
+            conn.disconnect();
+            throw new IOException(String.format("range request not honored, expected '%1$s' got %2$d '%3$s'",
+                expected, conn.getResponseCode(), contentRange));
+        }
+    }
+
+    /**
+     * Kopiere einen Stream in den Buffer.
+     * 
+     * @param in
+     * @param taskBuffer
+     * @param maxBytes die maximale Anzahl zu kopierender Bytes
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static void copyStream(InputStream in, WriteThroughBuffer taskBuffer, long maxBytes)
+        throws IOException, InterruptedException
+    {
+        byte[] buffer = new byte[0xffff];
+        long remaining = maxBytes;
+        int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        while (read > 0)
+        {
+            taskBuffer.append(buffer, read);
+            remaining -= read;
+            read = (remaining > 0) ? in.read(buffer, 0, (int) Math.min(buffer.length, remaining)) : -1;
+        }
+    }
+
+    /**
+     * Lohnt sich ein segmentierter Download?
+     * 
+     * @param statusCode
+     * @param contentLength
+     * @param conn
+     * @param validator
+     * @return
+     */
+    private boolean isSegmentable(int statusCode, long contentLength, HttpURLConnection conn, String validator)
+    {
+        return statusCode == 200 //
+            && this.segments > 1 //
+            && contentLength >= this.segmentThreshold //
+            && validator != null //
+            && "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"));
+    }
+
+    /**
+     * If-Range erlaubt nur starke ETags. Gibt es keinen, so wird das 
+     * Last-Modified-Datum verwendet.
+     * 
+     * @param conn
+     * @return der Wert für den If-Range-Header oder <code>null</code>, wenn
+     *         das Backend keinen geeigneten Validator liefert
+     */
+    private String getRangeValidator(HttpURLConnection conn)
+    {
+        String etag = conn.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/"))
+        {
+            return etag;
+        }
+        return conn.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * Jedes Segment belegt einen Platz im {@link ConcurrencyLimit}, mehr als
+     * maxThreads Segmente laufen also nie gleichzeitig. Unbenutzte Threads
+     * werden nach einer Minute beendet.
+     *
+     * @param maxThreads
+     * @return
+     */
+    private ExecutorService createSegmentExecutor(int maxThreads)
+    {
+        AtomicInteger threadNr = new AtomicInteger(0);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable,
+                    String.format("download-segment-%1$d", threadNr.getAndIncrement()));
+                thread.setDaemon(true);
+                return thread;
+            });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Übernimm die Meta-Daten aus der Backend-Response
+     * 
+     * @param conn
+     * @return
+     * @throws IOException
+     */
+    private ResourceMetaData createMetaData(HttpURLConnection conn) throws IOException
+    {
+        return new ResourceMetaData( //
+            conn.getResponseCode(), //
+            conn.getContentType(), //
+            conn.getContentLengthLong(), //
+            conn.getHeaderField("ETag"), //
+            conn.getLastModified());
+    }
+
+    /**
+     * Gib die Referenz des Downloads auf den Buffer frei.
+     * 
+     * @param fileName
+     * @param taskBuffer
+     */
+    private void releaseBuffer(String fileName, WriteThroughBuffer taskBuffer)
+    {
+        try
+        {
+            taskBuffer.release();
+        }
+        catch (IOException e)
+        {
+            log.warn(MsgFactory.get(this.getClass(), EMsgIds.ERR_RELEASE_BUFFER, fileName, e));
+        }
+    }
+
+    /**
+     * @param fileName
+     * @param cachedMetaData die Meta-Daten der gecachten Version für einen
+     *        bedingten Download oder <code>null</code>
+     * @return
+     * @throws IOException
+     */
+    private HttpURLConnection createDownloadConnection(String fileName, ResourceMetaData cachedMetaData)
+        throws IOException
+    {
+        URL url = createDownloadURL(this.baseUrl, fileName);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection(this.proxy);
+        conn.setRequestProperty("Accept", "*/*");
+        if (cachedMetaData != null)
+        {
+            if (cachedMetaData.etag() != null)
+            {
+                conn.setRequestProperty("If-None-Match", cachedMetaData.etag());
+            }
+            if (cachedMetaData.lastModified() > 0)
+            {
+                conn.setIfModifiedSince(cachedMetaData.lastModified());
+            }
+        }
+        conn.setConnectTimeout(this.connTimeout);
+        conn.setReadTimeout(this.readTimeout);
+        conn.setDoInput(true);
+        conn.setDoOutput(true);
+        //        conn.setInstanceFollowRedirects(true);
+        return conn;
+    }
+
+    /**
+     * @param baseUrl
+     * @param fileName
+     * @return
+     * @throws MalformedURLException
+     */
+    static URL createDownloadURL(URL baseUrl, String fileName) throws MalformedURLException
+    {
+        String path = baseUrl.getPath();
+        if (!path.endsWith("/") && !fileName.startsWith("/"))
+        {
+            path += "/";
+        }
+        path += fileName;
+
+        return new URL(baseUrl.getProtocol(), baseUrl.getHost(), baseUrl.getPort(), path);
+    }
+
+    /**
+     * 
+     */
+    private enum EMsgIds
+    {
+        RESUME_DOWNLOAD, //
+        ERR_RELEASE_BUFFER, //
+    }
+}
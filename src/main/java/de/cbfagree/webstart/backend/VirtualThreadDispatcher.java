@@ -0,0 +1,145 @@
+package de.cbfagree.webstart.backend;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.cbfagree.webstart.messages.MsgFactory;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Führt jeden Download auf einem eigenen (virtuellen) Thread aus.
+ *
+ * Die Downloads laufen wie bei den {@link DownloadWorker}n blockierend über
+ * den {@link UrlConnectionDownloader}. Die Anzahl gleichzeitiger Downloads
+ * wird aber nicht durch die Anzahl der Threads, sondern durch ein faires
+ * {@link ConcurrencyLimit} begrenzt. maxThreads ist damit die maximale 
+ * Anzahl von Connections zum Backend, unabhängig von der Anzahl der CPUs.
+ *
+ * Virtuelle Threads gibt es erst ab Java 21, das Executor wird deshalb per
+ * Reflection erzeugt. Auf älteren JVMs wird statt dessen ein Pool von
+ * Platform-Threads verwendet, welcher ebenfalls nur durch das Limit
+ * begrenzt ist.
+ */
+@Log4j2
+class VirtualThreadDispatcher extends Thread
+{
+    private UrlConnectionDownloader downloader;
+    private DownloadScheduler scheduler;
+    private ConcurrencyLimit limit;
+    private ExecutorService executor;
+
+    /**
+     * @param downloader
+     * @param scheduler
+     * @param limit
+     */
+    public VirtualThreadDispatcher(UrlConnectionDownloader downloader, DownloadScheduler scheduler,
+        ConcurrencyLimit limit)
+    {
+        this.downloader = downloader;
+        this.scheduler = scheduler;
+        this.limit = limit;
+        this.executor = this.createExecutor();
+        this.setName("download-dispatcher");
+        this.setDaemon(true);
+        this.start();
+    }
+
+    /**
+     * Warte bis das Limit einen weiteren Download erlaubt und danach auf
+     * einen Download. Erst dann wird der Download mit der höchsten Priorität
+     * entnommen.
+     */
+    @Override
+    public void run()
+    {
+        while (!Thread.currentThread().isInterrupted())
+        {
+            try
+            {
+                this.limit.acquire();
+                try
+                {
+                    DownloadTask task = this.scheduler.take(false);
+                    this.executor.execute(() -> this.runDownload(task));
+                }
+                catch (InterruptedException e)
+                {
+                    this.limit.release(null);
+                    throw e;
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * @param task
+     */
+    private void runDownload(DownloadTask task)
+    {
+        DownloadSample sample = null;
+        try
+        {
+            sample = this.downloader.download(task);
+        }
+        finally
+        {
+            this.limit.release(sample);
+        }
+    }
+
+    /**
+     * Erzeuge ein Executor, welches jeden Task auf einem neuen virtuellen
+     * Thread ausführt. Steht dies nicht zur Verfügung, so wird auf einen Pool
+     * von Platform-Threads zurück gefallen.
+     *
+     * @return
+     */
+    private ExecutorService createExecutor()
+    {
+        try
+        {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService result = (ExecutorService) factory.invoke(null);
+            log.info(MsgFactory.get(this.getClass(), EMsgIds.VIRTUAL_THREADS_ENABLED));
+            return result;
+        }
+        catch (ReflectiveOperationException | UnsupportedOperationException e)
+        {
+            log.warn(MsgFactory.get(this.getClass(), EMsgIds.VIRTUAL_THREADS_UNAVAILABLE,
+                Runtime.version(), e));
+            return Executors.newCachedThreadPool(this.createPlatformThreadFactory());
+        }
+    }
+
+    /**
+     * @return
+     */
+    private ThreadFactory createPlatformThreadFactory()
+    {
+        AtomicInteger threadNr = new AtomicInteger(0);
+        return runnable -> {
+            Thread thread = new Thread(runnable,
+                String.format("download-%1$d", threadNr.getAndIncrement()));
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     *
+     */
+    private enum EMsgIds
+    {
+        VIRTUAL_THREADS_ENABLED, //
+        VIRTUAL_THREADS_UNAVAILABLE, //
+    }
+}
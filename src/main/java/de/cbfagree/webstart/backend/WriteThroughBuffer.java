@@ -1,63 +1,87 @@
 package de.cbfagree.webstart.backend;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
 /**
- * Der {@link WriteThroughBuffer} implementiert einen ByteBuffer, welcher in 
- * Chunks organisiert ist. Dies macht den Insert von beliebig langen byte-Arrays 
- * und das sequentielle lesen einfach zu handeln.
+ * Der {@link WriteThroughBuffer} beschreibt den Inhalt eines laufenden
+ * Downloads. Die Daten werden beim empfangen genau einmal in ein Staging-File
+ * innerhalb des Cache-Verzeichnisses geschrieben, parallel dazu können beliebig
+ * viele Leser aus diesem wachsenden File lesen.
  * 
- * Der Inhalt des Buffers wird in einer Liste von Chunks zu jeweils 64kb 
- * verwaltet. Jeder Chunk wird beim write aufgefüllt, wenn der aktuell 
- * Chunk voll ist, so wird ein neuer Chunk angelegt. Auf diese Weise muss bei
- * write()-Operationen nicht ständig ein überlaufender Buffer reallokiert und 
- * kopiert werden.
+ * Nach Abschluss des Downloads muss das File nicht mehr kopiert werden, das
+ * CacheRepository benennt das Staging-File einfach (atomar) in das endgültige
+ * Cache-File um. Leser, welche zu diesem Zeitpunkt noch aktiv sind, arbeiten
+ * mit dem bereits geöffneten FileChannel einfach weiter.
  * 
- * Der Buffer selbst wird durch einen ReadWriteLock geschützt, es können also 
- * beliebig viele Threads parallel aus dem Buffer lesen. Idealerweise schreibt 
- * nur  ein Thread in den Buffer :-)
+ * Die Daten werden erst ab einem Offset ({@link #dataOffset}) in das File
+ * geschrieben. Der Bereich davor ist für den Header des Cache-Eintrages
+ * reserviert, welchen das CacheRepository bei der Übernahme schreibt. Alle
+ * Positionen der Lese-Methoden sind relativ zu diesem Offset.
  * 
- * Der aktuelle WriteChunk ist erst zum lesen verfügbar, wenn er komplett "voll
- * gelaufen" ist oder der Buffer geschlossen wird.
+ * Der Buffer ist bereit zum lesen, sobald die {@link ResourceMetaData} der 
+ * Backend-Response gesetzt wurden.
+ * 
+ * Jedes angefügte Byte ist sofort für die Leser sichtbar. Dazu wird nach jedem
+ * append die veröffentlichte Länge ({@link #publishedLength}) weiter gezählt.
+ * Die Leser lesen niemals über diese Länge hinaus. Da es sich um ein
+ * volatile-Feld handelt, kommen die Leser ohne Lock aus.
+ * 
+ * Der Buffer kommt komplett ohne Locks aus. Dafür gilt die Regel, dass
+ * genau <b>ein</b> Thread in den Buffer schreibt (das ist der DownloadWorker
+ * der Resource). Parallele Segmente schreiben zwar selbst in das Staging-File,
+ * aber nur hinter die veröffentlichte Länge. Übernommen werden ihre Bytes
+ * ebenfalls vom Schreiber ({@link #appendWritten(long, ByteBuffer)}).
+ *
+ * Der FileChannel wird von Schreiber und Lesern gemeinsam genutzt. Über einen
+ * Referenz-Zähler ({@link #retain()}, {@link #release()}) wird sicher gestellt,
+ * dass der Channel erst geschlossen wird, wenn ihn niemand mehr braucht. Wurde
+ * das Staging-File bis dahin nicht übernommen, so wird es gelöscht.
+ * 
+ * Leser, welche an ihrer aktuellen Position keine Daten vorfinden, können sich
+ * als {@link IBufferListener} registrieren. Sie werden dann benachrichtigt, 
+ * sobald sich der Zustand des Buffers ändert. Damit muss niemand aktiv auf 
+ * neue Daten pollen.
  */
 public class WriteThroughBuffer
 {
-    /**
-     *  Die Größe eines Chunks. Wir verwenden hier erst einmal 64kb. Die meisten 
-     *
-     * JAR-Files sind recht klein, es gibt aber auch "Ausreißer" mit über 70MB.
-     * Je größer die CHunkSize ist, um so länger dauert es bis der erste Chunk
-     * zum lesen bereit steht! Muss man also ein wenig tunen...
-     */
-    private static final int CHUNK_SIZE = 0xffff;
+    // Der Algorithmus für den Digest über den Content
+    public static final String DIGEST_ALGORITHM = "SHA-256";
 
-    // Der ReadWrite-Lock welcher den Buffer schützt
-    private ReentrantReadWriteLock rwLock;
+    // Das Staging-File für den Download
+    private Path stagingFile;
 
-    // Die Liste aller Chunks
-    private List<byte[]> chunks;
+    // Der Offset der Daten innerhalb des Staging-Files
+    private long dataOffset;
 
-    /** 
-     * Die Position für den nächsten write innerhalb des aktuellen Write-Chunks.
-     * Diese Position ist <b>nicht</b> die writePosition innerhalb des Gesamt-
-     * Buffers!
+    /**
+     * Der FileChannel auf das Staging-File. Wird durch den Schreiber beim 
+     * ersten write geöffnet, die Leser greifen erst darauf zu, wenn der Buffer
+     * bereit zum lesen ist.
+     */
+    private volatile FileChannel channel;
+
+    /**
+     * Der Referenz-Zähler für den FileChannel. Der Schreiber hält initial 
+     * eine Referenz, jeder Leser eine weitere.
      */
-    private int writePos;
+    private AtomicInteger refCount;
 
     /**
-     * Der aktuelle WriteChunk. Dieser ist noch nicht in der Liste der Chunks
-     * enthalten, von Ihm kann also auch noch nicht gelesen werden. Der Chunk
-     * wird erst beim voll laufen oder beim schließen des Buffers in die 
-     * ChunkList aufgenommen.
+     * Die Anzahl der Bytes, welche für die Leser sichtbar sind. Wird vom
+     * Schreiber erst <b>nach</b> dem schreiben der Bytes gesetzt.
      */
-    private byte[] currWriteChunk;
+    private volatile long publishedLength;
 
     /**
      * Wurde der Buffer geschlossen?
@@ -66,7 +90,7 @@ public class WriteThroughBuffer
      * Lesen ist weiterhin möglich.
      * 
      */
-    private boolean isClosed;
+    private volatile boolean isClosed;
 
     /**
      * lesen und schreiben findet in verschiedenen Threads statt. Sollte
@@ -79,42 +103,50 @@ public class WriteThroughBuffer
      */
     private AtomicReference<Exception> backendException;
 
-    private boolean readyForRead = false;
+    // Die Meta-Daten der Backend-Response, null solange nicht bereit zum lesen
+    private volatile ResourceMetaData metaData = null;
     private String resourceName;
 
+    // Der Digest über die geschriebenen Daten, wird nur vom Schreiber verwendet
+    private MessageDigest digest;
+
     /**
-     * 
+     * Die Liste der wartenden Leser. Die Listener werden bei der nächsten
+     * Zustands-Änderung genau einmal benachrichtigt und dabei aus der Liste
+     * entfernt.
      */
-    public WriteThroughBuffer(String resourceName)
+    private ConcurrentLinkedQueue<IBufferListener> listeners;
+
+    /**
+     * @param resourceName
+     * @param stagingFile das Staging-File, in welches der Download geschrieben
+     *        wird. Das File wird erst beim ersten write angelegt.
+     * @param dataOffset die Anzahl der Bytes, welche am Anfang des Staging-Files
+     *        für einen Header reserviert werden
+     */
+    public WriteThroughBuffer(String resourceName, Path stagingFile, long dataOffset)
     {
-        this.rwLock = new ReentrantReadWriteLock();
-        this.chunks = new ArrayList<>();
-        this.writePos = 0;
-        this.currWriteChunk = new byte[CHUNK_SIZE];
+        this.stagingFile = stagingFile;
+        this.dataOffset = dataOffset;
+        this.digest = createDigest();
+        this.channel = null;
+        this.refCount = new AtomicInteger(1);
+        this.publishedLength = 0;
         this.isClosed = false;
         this.backendException = new AtomicReference<>(null);
         this.resourceName = resourceName;
+        this.listeners = new ConcurrentLinkedQueue<>();
     }
 
     /**
-     * Füge einen Bereich eines Arrays in den ChunkedBuffer ein.
+     * Füge einen Bereich eines Arrays an das Staging-File an.
      * 
-     * Wenn im aktuellen Chunk noch Platz ist, wird der übergebene
-     * Teil des Buffers einfach dorthin kopiert und die writePos weiter 
-     * gezählt.
+     * Zum Schluss wird die neue Länge veröffentlicht, erst ab diesem Moment
+     * sind die neuen Bytes für die Leser sichtbar.
      * 
-     * Wenn nicht, werden aus dem übergebenen Buffer die "grade noch passenden"
-     * Bytes in den aktuellen Chunk kopiert, ein weiterer Chunk angelegt 
-     * und der Rest kommt dort hinein. Die writePos wird derart angepasst,
-     * dass die auf die nächste freie Position des aktuellen writeChunks 
-     * zeigt.
-     * 
-     * Dummerweise kann es sein, das der einzufügende Buffer größer als
-     * ein Chunk ist. In diesem Fall muss das ganze aufgeteilt, also in 
-     * mehrere Chunks verteilt werden.
+     * Die Methode darf nur vom (einzigen) Schreiber aufgerufen werden!
      * 
      * @param src
-     * @param pos
      * @param len
      * 
      * @throws InterruptedException 
@@ -122,93 +154,150 @@ public class WriteThroughBuffer
      */
     public void append(byte[] src, int len) throws InterruptedException, IOException
     {
-        // TODO: src.length, pos, len gegeneinander checken!
+        if (this.isClosed)
+        {
+            throw new IOException("write through buffer is closed");
+        }
 
-        WriteLock wLock = this.rwLock.writeLock();
-        try
+        FileChannel fileChannel = this.openChannel();
+        ByteBuffer buf = ByteBuffer.wrap(src, 0, len);
+        while (buf.hasRemaining())
         {
-            wLock.lockInterruptibly();
+            fileChannel.write(buf);
+        }
+        this.digest.update(src, 0, len);
 
-            if (this.isClosed)
-            {
-                throw new IOException("chunked buffer is closed");
-            }
+        // Die volatile-Schreib-Operation veröffentlicht alle Bytes bis hierher
+        this.publishedLength = this.publishedLength + len;
+        this.fireBufferChanged();
+    }
 
-            int remaining = len;
-            int srcPos = 0;
+    public void append(byte[] buf) throws InterruptedException, IOException {
+        this.append(buf, buf.length);
+    }
 
-            while (remaining > 0)
-            {
-                // Kopiere soviele Bytes in den aktuellen Chunk wie grade 
-                // noch hinein passen
-                int freeChunkSize = this.currWriteChunk.length - this.writePos;
-                if (freeChunkSize > 0)
-                {
-                    int copyable = Math.min(remaining, freeChunkSize);
-                    System.arraycopy(src, srcPos, this.currWriteChunk, this.writePos, copyable);
-                    remaining -= copyable;
-                    srcPos += copyable;
-                    this.writePos += copyable;
-                }
-
-                // Wenn noch Bytes zum kopieren übrig sind, so allokiere einen
-                // neuen WriteChunk und füge den aktuellen in die Liste ein. 
-                // Im nächsten Durchlauf werden diese Bytes in den neuen Chunk kopiert. 
-                // Wenn dann noch was  übrig bleibt gint es noch einen durchlauf....
-                // ad infinitum oder bis zur OutOfMemeroryException
-                if (remaining > 0)
-                {
-                    this.chunks.add(this.currWriteChunk);
-                    this.currWriteChunk = new byte[CHUNK_SIZE];
-                    this.writePos = 0;
-                }
-            }
+    /**
+     * Füge den Inhalt eines ByteBuffers an das Staging-File an. Der ByteBuffer
+     * ist danach komplett konsumiert.
+     *
+     * Die Methode darf nur vom (einzigen) Schreiber aufgerufen werden!
+     *
+     * @param src
+     * @throws IOException
+     */
+    public void append(ByteBuffer src) throws IOException
+    {
+        if (this.isClosed)
+        {
+            throw new IOException("write through buffer is closed");
         }
-        finally
+
+        FileChannel fileChannel = this.openChannel();
+        ByteBuffer digestView = src.duplicate();
+        int len = src.remaining();
+        while (src.hasRemaining())
         {
-            wLock.unlock();
+            fileChannel.write(src);
         }
+        this.digest.update(digestView);
+
+        // Die volatile-Schreib-Operation veröffentlicht alle Bytes bis hierher
+        this.publishedLength = this.publishedLength + len;
+        this.fireBufferChanged();
     }
-    
-    public void append(byte[] buf) throws InterruptedException, IOException {
-        this.append(buf, buf.length);
+
+    /**
+     * Übernimm Bytes, welche bereits an das aktuelle Ende des Staging-Files
+     * geschrieben wurden. Das machen die parallelen Segmente eines
+     * {@link SegmentedDownload}s, jeweils über einen eigenen FileChannel und
+     * nur hinter die veröffentlichte Länge. Die Bytes werden hier nur noch für
+     * den Digest gelesen (in der Regel aus dem Page-Cache) und veröffentlicht,
+     * aber nicht ein zweites Mal geschrieben.
+     *
+     * Die Methode darf nur vom (einzigen) Schreiber aufgerufen werden!
+     *
+     * @param count die Anzahl der Bytes ab der veröffentlichten Länge
+     * @param ioBuffer ein Buffer zum lesen der Bytes
+     * @throws IOException
+     */
+    public void appendWritten(long count, ByteBuffer ioBuffer) throws IOException
+    {
+        if (this.isClosed)
+        {
+            throw new IOException("write through buffer is closed");
+        }
+
+        FileChannel fileChannel = this.openChannel();
+        long end = this.dataOffset + this.publishedLength + count;
+        long pos = this.dataOffset + this.publishedLength;
+        while (pos < end)
+        {
+            ioBuffer.clear().limit((int) Math.min(ioBuffer.capacity(), end - pos));
+            int read = fileChannel.read(ioBuffer, pos);
+            if (read <= 0)
+            {
+                throw new IOException("staging file truncated: " + this.stagingFile);
+            }
+            ioBuffer.flip();
+            this.digest.update(ioBuffer);
+            pos += read;
+
+            // Die Bytes stehen bereits im File, also sofort veröffentlichen
+            fileChannel.position(pos);
+            this.publishedLength = pos - this.dataOffset;
+            this.fireBufferChanged();
+        }
     }
 
     /**
      * Markiere das EOF auf dem Buffer.
      * 
-     * Der letzte Chunk wird auf die aktuelle WritePos gekürzt, so dass keinesfalls
-     * über das Dateiende hinaus gelesen werden kann.
-     * 
-     * @throws InterruptedException 
+     * Der FileChannel bleibt geöffnet, bis auch der letzte Leser fertig ist.
+     *
+     * @throws InterruptedException
      * @throws IOException 
      */
     public void close() throws InterruptedException, IOException
     {
-        WriteLock wLock = this.rwLock.writeLock();
-        try
+        if (this.isClosed)
         {
-            wLock.lockInterruptibly();
-
-            if (this.isClosed)
-            {
-                throw new IOException("chunked buffer already closed");
-            }
+            throw new IOException("write through buffer already closed");
+        }
+        this.openChannel();
+        this.isClosed = true;
+        this.fireBufferChanged();
+    }
 
-            // Wenn noch ein aktueller WriteCHunk vorliegt und dieser nicht leer
-            // ist, so wird der bis hierhin befüllte Teil des aktuelle WriteChunks
-            // in die ChunkListe aufgenommen.
-            if (this.writePos > 0)
-            {
-                this.currWriteChunk = Arrays.copyOf(this.currWriteChunk, this.writePos);
-                this.chunks.add(this.currWriteChunk);
-            }
+    /**
+     * Brich den Download ab.
+     * 
+     * Wurden bereits Meta-Daten gesetzt, so haben die Leser den ResponseHeader
+     * ggf. schon ausgeliefert. Die Ursache wird dann als Exception in den
+     * Buffer gestellt, jeder weitere Lese-Versuch wirft eine IOException.
+     * 
+     * Andernfalls werden die angegebenen Meta-Daten gesetzt und der Buffer 
+     * ohne Content geschlossen. Die Leser liefern dann eine vollständige 
+     * (Fehler-)Response aus. Das Staging-File wird dafür nicht benötigt.
+     * 
+     * Die Methode darf nur vom (einzigen) Schreiber aufgerufen werden!
+     * 
+     * @param cause
+     * @param failureMetaData die Meta-Daten für Leser, welche noch keinen 
+     *        ResponseHeader erhalten haben
+     */
+    public void abort(Exception cause, ResourceMetaData failureMetaData)
+    {
+        if (this.metaData == null)
+        {
+            // closed muss vor den Meta-Daten sichtbar sein, siehe transferTo
             this.isClosed = true;
+            this.metaData = failureMetaData.withContentLength(0);
         }
-        finally
+        else
         {
-            wLock.unlock();
+            this.backendException.compareAndSet(null, cause);
         }
+        this.fireBufferChanged();
     }
 
     /**
@@ -218,25 +307,43 @@ public class WriteThroughBuffer
      * Moment-Aufnahme, da ja parallel noch geschrieben werden kann.
      * 
      * @return
-     * @throws InterruptedException
      */
-    public long getTotalLength() throws InterruptedException
+    public long getTotalLength()
     {
-        ReadLock rLock = this.rwLock.readLock();
-        try
-        {
-            rLock.lock();
-            return (this.chunks.size() - 1) * CHUNK_SIZE + this.writePos;
-        }
-        finally
-        {
-            rLock.unlock();
-        }
+        return this.publishedLength;
+    }
+
+    /**
+     * @return das Staging-File des Downloads
+     */
+    public Path getStagingFile()
+    {
+        return this.stagingFile;
+    }
+
+    /**
+     * @return der Offset der Daten innerhalb des Staging-Files
+     */
+    public long getDataOffset()
+    {
+        return this.dataOffset;
+    }
+
+    /**
+     * Liefere den Digest über den kompletten Inhalt. Darf erst nach dem 
+     * schließen des Buffers aufgerufen werden.
+     * 
+     * @return
+     */
+    public byte[] getDigest()
+    {
+        return this.digest.digest();
     }
 
     /**
-     * lese von der angegebenen Position in den ZielBuffer. Das ganze ist
-     * ein wenig komplizierter:
+     * Übertrage die Daten ab der angegebenen Position in den Ziel-Channel. Die
+     * Übertragung erfolgt direkt aus dem Staging-File via 
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
      * 
      * Da parallel in den Buffer geschrieben werden kann, der lesende
      * Thread aber ggf schneller ist als der schreibende Thread kann es
@@ -244,80 +351,231 @@ public class WriteThroughBuffer
      * wird bevor vom schreibenden Thread neue Daten angefügt werden können.
      * 
      * Das ist natürlich noch nicht EOF, blokieren soll das ganze aber auch 
-     * nicht. In diesem Fall wird einfach nichts gelesen und somit 0 geliefert.
+     * nicht. In diesem Fall wird einfach nichts übertragen und somit 0 geliefert.
      * 
-     * @param pos die Position, ab der gelesen werden soll
+     * Der closed-Status muss dabei <b>vor</b> der veröffentlichten Länge
+     * gelesen werden. Andernfalls könnte ein Leser eine veraltete Länge
+     * zusammen mit closed==true sehen und fälschlicherweise EOF melden.
      * 
-     * @param target Der ZielBuffer
-     * @param targetPos die Position ab der in den ZielBuffer geschrieben werden soll
-     * @param int len die maximale Anzahl von Bytes die in den Zielbuffer kopiert werden sollen.
+     * @param pos die Position, ab der gelesen werden soll
+     * @param count die maximale Anzahl zu übertragender Bytes
+     * @param target der Ziel-Channel
      * 
-     * @return die Anzahl gelesener Bytes oder -1 wenn über das Ende
+     * @return die Anzahl übertragener Bytes oder -1 wenn über das Ende
      *         des Buffers hinaus gelesen wurde.
-     *         
-     * @throws InterruptedException
+     * 
      * @throws IOException 
      */
-    public int getBytes(int pos, byte[] target, int targetPos, int len) throws InterruptedException, IOException
+    public long transferTo(long pos, long count, WritableByteChannel target) throws IOException
     {
-        ReadLock rLock = this.rwLock.readLock();
-        try
+        Exception backendError = this.backendException.get();
+        if (backendError != null)
         {
-            rLock.lockInterruptibly();
+            throw new IOException("download of " + this.resourceName + " aborted", backendError);
+        }
+
+        boolean closed = this.isClosed;
+        long available = this.publishedLength;
 
-            Exception backendError = this.backendException.get();
-            if (backendError != null)
+        long result = 0;
+        if (pos < available)
+        {
+            result = this.channel.transferTo(this.dataOffset + pos, Math.min(count, available - pos), target);
+        }
+        else
+        {
+            if (closed)
             {
-                throw new IOException("", backendError); // TODO: Message setzen
+                result = -1;
             }
+        }
+        return result;
+    }
+
+    /**
+     * Fordere eine weitere Referenz auf den Buffer an. Jeder Leser muss dies
+     * tun, bevor er auf den Buffer zugreift.
+     * 
+     * @return <code>false</code> wenn der Buffer bereits komplett freigegeben
+     *         wurde. In diesem Fall darf nicht mehr darauf zugegriffen werden.
+     */
+    public boolean retain()
+    {
+        int count = this.refCount.get();
+        while (count > 0 && !this.refCount.compareAndSet(count, count + 1))
+        {
+            count = this.refCount.get();
+        }
+        return count > 0;
+    }
+
+    /**
+     * @return die Anzahl der Leser, welche aktuell eine Referenz auf den
+     *         Buffer halten. Die Referenz des Download-Workers wird nicht
+     *         mitgezählt.
+     */
+    public int getReaderCount()
+    {
+        return Math.max(0, this.refCount.get() - 1);
+    }
 
-            int read = 0;
-            int chunkIdx = pos / CHUNK_SIZE;
-            if (chunkIdx < this.chunks.size())
+    /**
+     * Gib eine Referenz auf den Buffer wieder frei. Wird dabei die letzte
+     * Referenz freigegeben, so wird der FileChannel geschlossen. Wurde das
+     * Staging-File bis dahin nicht in den Cache übernommen, so wird es
+     * gelöscht.
+     * 
+     * @throws IOException
+     */
+    public void release() throws IOException
+    {
+        if (this.refCount.decrementAndGet() == 0)
+        {
+            if (this.channel != null)
             {
-                byte[] chunk = this.chunks.get(chunkIdx);
-                int chunkOff = pos % CHUNK_SIZE;
-
-                if (chunkOff < chunk.length)
-                {
-                    read = Math.min((chunk.length - chunkOff), len);
-                    System.arraycopy(chunk, chunkOff, target, targetPos, read);
-                }
-                else
-                {
-                    if (this.isClosed)
-                    {
-                        read = -1;
-                    }
-                }
+                this.channel.close();
             }
-            return read;
+            Files.deleteIfExists(this.stagingFile);
         }
-        finally
+    }
+
+    /**
+     * Setze die Meta-Daten der Backend-Response. Ab diesem Zeitpunkt ist der
+     * Buffer bereit zum lesen.
+     * 
+     * @param metaData
+     * @throws IOException
+     */
+    public void setMetaData(ResourceMetaData metaData) throws IOException
+    {
+        this.openChannel();
+        this.metaData = metaData;
+        this.fireBufferChanged();
+    }
+
+    /**
+     * @return die Meta-Daten der Backend-Response oder <code>null</code>, wenn
+     *         der Buffer noch nicht bereit ist.
+     */
+    public ResourceMetaData getMetaData()
+    {
+        return this.metaData;
+    }
+
+    /**
+     * Ist der Buffer bereit zum lesen?
+     *
+     * @return
+     */
+    public boolean isReady()
+    {
+        return this.metaData != null;
+    }
+
+    /**
+     * Können an der angegebenen Position Daten gelesen werden?
+     *
+     * Das ist dann der Fall, wenn dort bereits Daten vorliegen. Ist der Buffer
+     * geschlossen oder wurde ein Fehler gesetzt, so liefert ein Lese-Versuch 
+     * EOF bzw. eine Exception, auch das zählt als "lesbar".
+     *
+     * @param pos
+     * @return
+     */
+    public boolean isReadable(long pos)
+    {
+        return this.isReady() && (this.isClosed //
+            || this.backendException.get() != null //
+            || pos < this.publishedLength);
+    }
+
+    /**
+     * Registriere einen Listener, welcher bei der nächsten Zustands-Änderung 
+     * des Buffers benachrichtigt wird.
+     *
+     * Zwischen dem letzten Lese-Versuch des Aufrufers und der Registrierung
+     * können bereits neue Daten angefügt worden sein. Deshalb wird nach der 
+     * Registrierung nochmals geprüft, ob an der angegebenen Position bereits 
+     * gelesen werden kann. In diesem Fall wird der Listener wieder entfernt
+     * und <code>false</code> geliefert.
+     *
+     * @param pos die Lese-Position des Aufrufers
+     * @param listener
+     * @return <code>true</code> wenn der Listener registriert wurde, 
+     *         <code>false</code> wenn bereits gelesen werden kann.
+     */
+    public boolean addListener(long pos, IBufferListener listener)
+    {
+        boolean result = true;
+        this.listeners.add(listener);
+        if (this.isReadable(pos))
         {
-            rLock.unlock();
+            // Hat der Schreiber den Listener in der Zwischenzeit bereits 
+            // benachrichtigt, so ist er nicht mehr in der Liste. Die 
+            // Benachrichtigung ist dann bereits unterwegs.
+            result = !this.listeners.remove(listener);
         }
+        return result;
     }
 
-    public void setReadyForRead(boolean val) throws InterruptedException {
-        
-        ReadLock rLock = this.rwLock.readLock();
+    /**
+     * Entferne einen noch nicht benachrichtigten Listener.
+     *
+     * @param listener
+     */
+    public void removeListener(IBufferListener listener)
+    {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Öffne den FileChannel auf das Staging-File, sofern das noch nicht 
+     * passiert ist. Wird nur vom Schreiber aufgerufen.
+     * 
+     * @return
+     * @throws IOException
+     */
+    private FileChannel openChannel() throws IOException
+    {
+        if (this.channel == null)
+        {
+            FileChannel fileChannel = FileChannel.open(this.stagingFile, //
+                StandardOpenOption.CREATE_NEW, //
+                StandardOpenOption.WRITE, //
+                StandardOpenOption.READ);
+            fileChannel.position(this.dataOffset);
+            this.channel = fileChannel;
+        }
+        return this.channel;
+    }
+
+    /**
+     * @return
+     */
+    private static MessageDigest createDigest()
+    {
         try
         {
-            rLock.lockInterruptibly();
-            this.readyForRead = val;
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
         }
-        finally {
-            rLock.unlock();
+        catch (NoSuchAlgorithmException e)
+        {
+            // SHA-256 muss jede JRE unterstützen
+            throw new IllegalStateException(e);
         }
     }
+
     /**
-     * Ist der Buffer bereit zum lesen?
-     * 
-     * @return
+     * Benachrichtige alle wartenden Listener und entferne sie dabei aus
+     * der Liste.
      */
-    public boolean isReady()
+    private void fireBufferChanged()
     {
-        return this.readyForRead;
+        IBufferListener listener = this.listeners.poll();
+        while (listener != null)
+        {
+            listener.bufferChanged(this);
+            listener = this.listeners.poll();
+        }
     }
 }
@@ -0,0 +1,75 @@
+package de.cbfagree.webstart.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Ein verlustbehafteter Ring-Buffer für Zugriffe auf Resourcen.
+ *
+ * Beliebig viele Threads können Zugriffe ohne Locks eintragen, ein einzelner
+ * Thread (der {@link CacheEvictor}) liest sie periodisch aus. Ist der Buffer
+ * voll oder verliert ein Schreiber das Rennen um einen Slot, so wird der
+ * Zugriff einfach verworfen. Für die Eviction-Policy reicht eine Stichprobe
+ * der Zugriffe völlig aus, der Request-Pfad wird dafür niemals gebremst.
+ */
+class AccessBuffer
+{
+    private static final int SIZE = 1024;
+    private static final int MASK = SIZE - 1;
+
+    private AtomicReferenceArray<String> slots;
+    private AtomicLong writeCount;
+    private volatile long readCount;
+
+    /**
+     *
+     */
+    public AccessBuffer()
+    {
+        this.slots = new AtomicReferenceArray<>(SIZE);
+        this.writeCount = new AtomicLong();
+        this.readCount = 0;
+    }
+
+    /**
+     * Trage einen Zugriff ein.
+     *
+     * @param key
+     */
+    public void offer(String key)
+    {
+        long pos = this.writeCount.get();
+        if (pos - this.readCount < SIZE && this.writeCount.compareAndSet(pos, pos + 1))
+        {
+            this.slots.lazySet((int) (pos & MASK), key);
+        }
+    }
+
+    /**
+     * Lese alle eingetragenen Zugriffe aus. Darf nur von einem einzigen
+     * Thread gerufen werden.
+     *
+     * @param consumer
+     */
+    public void drain(Consumer<String> consumer)
+    {
+        long pos = this.readCount;
+        long end = this.writeCount.get();
+        while (pos < end)
+        {
+            int idx = (int) (pos & MASK);
+            String key = this.slots.get(idx);
+            if (key == null)
+            {
+                // Der Slot ist reserviert, aber noch nicht geschrieben
+                break;
+            }
+
+            this.slots.lazySet(idx, null);
+            consumer.accept(key);
+            pos++;
+        }
+        this.readCount = pos;
+    }
+}
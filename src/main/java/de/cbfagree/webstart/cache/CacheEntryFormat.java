@@ -0,0 +1,217 @@
+package de.cbfagree.webstart.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import de.cbfagree.webstart.backend.ResourceMetaData;
+
+/**
+ * Beschreibt das Format eines Cache-Files auf der Platte.
+ *
+ * Ein Cache-File besteht aus einem kompakten, binären Header gefolgt vom
+ * unveränderten Content der Resource. Der Header hat folgenden Aufbau:
+ *
+ * <pre>
+ * int    MAGIC ("JWSC")
+ * short  Version des Formats
+ * int    Offset des Contents (= Größe des reservierten Header-Bereiches)
+ * short  HTTP-StatusCode
+ * long   Länge des Contents
+ * long   LastModified (Millisekunden seit der Epoche, 0 wenn unbekannt)
+ * long   Zeitpunkt der Übernahme in den Cache
+ * UTF    ContentType ("" wenn unbekannt)
+ * UTF    ETag ("" wenn unbekannt)
+ * UTF    Digest-Algorithmus
+ * short  Länge des Digests
+ * byte[] Digest
+ * </pre>
+ *
+ * Der Header-Bereich hat eine feste Größe ({@link #HEADER_SIZE}), welche
+ * bereits beim Download im Staging-File reserviert wird. Der Header kann damit
+ * nach Abschluss des Downloads geschrieben werden, ohne den Content nochmals
+ * kopieren zu müssen. Da der Offset des Contents im Header steht, kann die
+ * Größe in späteren Versionen geändert werden.
+ */
+class CacheEntryFormat
+{
+    public static final String SUFFIX = ".cache";
+
+    /**
+     * Die Größe des für den Header reservierten Bereiches.
+     */
+    public static final int HEADER_SIZE = 1024;
+
+    private static final int MAGIC = 0x4A575343;
+    private static final short VERSION = 1;
+
+    // MAGIC + VERSION + BodyOffset
+    private static final int PREAMBLE_SIZE = 4 + 2 + 4;
+
+    // Der Beginn einer Cache-Datei im alten Format (komplette HTTP-Response)
+    private static final byte[] LEGACY_PREFIX = "HTTP/".getBytes();
+
+    /**
+     * Schreibe den Header an den Anfang des Files.
+     *
+     * @param channel
+     * @param header
+     * @throws IOException wenn der Header nicht in den reservierten Bereich passt
+     */
+    public static void write(FileChannel channel, CacheEntryHeader header) throws IOException
+    {
+        byte[] bytes = encode(header);
+        if (bytes.length > header.bodyOffset())
+        {
+            throw new IOException(String.format("cache entry header too large: %1$d bytes", bytes.length));
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        long pos = 0;
+        while (buf.hasRemaining())
+        {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+    /**
+     * Lese den Header vom Anfang des Files.
+     *
+     * @param channel
+     * @return
+     * @throws IOException wenn das File kein gültiger Cache-Eintrag ist
+     */
+    public static CacheEntryHeader read(FileChannel channel) throws IOException
+    {
+        DataInputStream preamble = readBytes(channel, 0, PREAMBLE_SIZE);
+        if (preamble.readInt() != MAGIC)
+        {
+            throw new IOException("not a cache entry");
+        }
+        preamble.readShort();
+
+        int bodyOffset = preamble.readInt();
+        return decode(readBytes(channel, 0, bodyOffset));
+    }
+
+    /**
+     * Liefere die binäre Repräsentation des Headers. Diese wird nicht nur am
+     * Anfang des Cache-Files, sondern auch im {@link CacheIndexJournal} 
+     * abgelegt.
+     *
+     * @param header
+     * @return
+     * @throws IOException
+     */
+    public static byte[] encode(CacheEntryHeader header) throws IOException
+    {
+        ResourceMetaData meta = header.metaData();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt((int) header.bodyOffset());
+            out.writeShort(meta.statusCode());
+            out.writeLong(meta.contentLength());
+            out.writeLong(meta.lastModified());
+            out.writeLong(header.storedAt());
+            out.writeUTF(nullToEmpty(meta.contentType()));
+            out.writeUTF(nullToEmpty(meta.etag()));
+            out.writeUTF(header.digestAlgorithm());
+            out.writeShort(header.digest().length);
+            out.write(header.digest());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Erzeuge den Header aus seiner binären Repräsentation.
+     *
+     * @param in
+     * @return
+     * @throws IOException wenn es sich nicht um einen gültigen Header handelt
+     */
+    public static CacheEntryHeader decode(DataInputStream in) throws IOException
+    {
+        if (in.readInt() != MAGIC)
+        {
+            throw new IOException("not a cache entry");
+        }
+
+        short version = in.readShort();
+        if (version > VERSION)
+        {
+            throw new IOException(String.format("unsupported cache entry version %1$d", version));
+        }
+
+        int bodyOffset = in.readInt();
+        int statusCode = in.readShort();
+        long contentLength = in.readLong();
+        long lastModified = in.readLong();
+        long storedAt = in.readLong();
+        String contentType = emptyToNull(in.readUTF());
+        String etag = emptyToNull(in.readUTF());
+        String digestAlgorithm = in.readUTF();
+        byte[] digest = new byte[in.readShort()];
+        in.readFully(digest);
+
+        ResourceMetaData meta = new ResourceMetaData(statusCode, contentType, contentLength, etag, lastModified);
+        return new CacheEntryHeader(meta, bodyOffset, storedAt, digestAlgorithm, digest);
+    }
+
+    /**
+     * Handelt es sich um ein Cache-File im alten Format? Dort wurde noch die
+     * komplette HTTP-Response inklusive Header und Chunked-Encoding abgelegt.
+     *
+     * @param channel
+     * @return
+     * @throws IOException
+     */
+    public static boolean isLegacyFormat(FileChannel channel) throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(LEGACY_PREFIX.length);
+        channel.read(buf, 0);
+        return !buf.hasRemaining() && buf.flip().equals(ByteBuffer.wrap(LEGACY_PREFIX));
+    }
+
+    /**
+     * @param channel
+     * @param pos
+     * @param len
+     * @return
+     * @throws IOException
+     */
+    private static DataInputStream readBytes(FileChannel channel, long pos, int len) throws IOException
+    {
+        if (len < 0 || len > channel.size() - pos)
+        {
+            throw new IOException("truncated cache entry header");
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        while (buf.hasRemaining())
+        {
+            if (channel.read(buf, pos + buf.position()) == -1)
+            {
+                throw new IOException("truncated cache entry header");
+            }
+        }
+        return new DataInputStream(new ByteArrayInputStream(buf.array()));
+    }
+
+    private static String nullToEmpty(String val)
+    {
+        return (val == null) ? "" : val;
+    }
+
+    private static String emptyToNull(String val)
+    {
+        return val.isEmpty() ? null : val;
+    }
+}
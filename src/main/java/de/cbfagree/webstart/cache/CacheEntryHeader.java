@@ -0,0 +1,25 @@
+package de.cbfagree.webstart.cache;
+
+import de.cbfagree.webstart.backend.ResourceMetaData;
+
+/**
+ * Der Header eines Cache-Eintrages. Er beinhaltet alle Informationen, welche
+ * für die Auslieferung der Resource benötigt werden, ohne dass dafür der
+ * Content angefasst werden muss.
+ *
+ * Das Format auf der Platte beschreibt {@link CacheEntryFormat}.
+ *
+ * @param metaData die Meta-Daten der Backend-Response
+ * @param bodyOffset der Offset des Contents innerhalb des Cache-Files
+ * @param storedAt der Zeitpunkt der Übernahme in den Cache (Millisekunden seit der Epoche)
+ * @param digestAlgorithm der Algorithmus des Digests
+ * @param digest der Digest über den Content
+ */
+public record CacheEntryHeader(//
+    ResourceMetaData metaData, //
+    long bodyOffset, //
+    long storedAt, //
+    String digestAlgorithm, //
+    byte[] digest)
+{
+}
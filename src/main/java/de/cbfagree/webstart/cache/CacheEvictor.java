@@ -0,0 +1,303 @@
+package de.cbfagree.webstart.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import de.cbfagree.webstart.cache.CacheRepository.CachedEntrySourceFactory;
+import de.cbfagree.webstart.messages.MsgFactory;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Begrenzt die Größe des Caches auf der Platte.
+ *
+ * Die Policy entspricht im wesentlichen W-TinyLFU: Neue Einträge landen
+ * zunächst in einem kleinen LRU-Fenster (1% der Kapazität). Fällt ein Eintrag
+ * aus dem Fenster, so muss er sich gegen das älteste Element des Haupt-Bereiches
+ * (ebenfalls LRU) durchsetzen. Dazu wird die geschätzte Zugriffs-Häufigkeit
+ * beider Einträge aus dem {@link FrequencySketch} verglichen, der Verlierer
+ * wird aus dem Cache entfernt. Selten verwendete Resourcen (etwa veraltete
+ * JAR-Versionen) verdrängen damit nicht die häufig verwendeten.
+ *
+ * Der gesamte Zustand der Policy gehört dem Thread des Evictors. Zugriffe
+ * werden über einen verlustbehafteten {@link AccessBuffer} ohne Locks
+ * gemeldet, neue und entfernte Einträge über eine Queue. Einträge, welche
+ * gerade von einem Client gelesen werden, werden niemals entfernt.
+ */
+@Log4j2
+class CacheEvictor implements Runnable
+{
+    private static final int WINDOW_PERCENT = 1;
+    private static final long DRAIN_INTERVAL_MS = 1000;
+    private static final int SKETCH_WIDTH = 1 << 16;
+
+    private long maxSize;
+    private long maxWindowSize;
+    private CacheRepository repo;
+
+    private AccessBuffer accessBuffer;
+    private LinkedBlockingQueue<EntryEvent> entryEvents;
+
+    private FrequencySketch sketch;
+    private LinkedHashMap<String, CachedEntrySourceFactory> window;
+    private LinkedHashMap<String, CachedEntrySourceFactory> main;
+    private long windowSize;
+    private long mainSize;
+
+    /**
+     * @param maxSize die maximale Größe des Caches in Bytes
+     * @param repo
+     */
+    public CacheEvictor(long maxSize, CacheRepository repo)
+    {
+        this.maxSize = maxSize;
+        this.maxWindowSize = maxSize * WINDOW_PERCENT / 100;
+        this.repo = repo;
+
+        this.accessBuffer = new AccessBuffer();
+        this.entryEvents = new LinkedBlockingQueue<>();
+
+        this.sketch = new FrequencySketch(SKETCH_WIDTH);
+        this.window = new LinkedHashMap<>(16, 0.75f, true);
+        this.main = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Starte den Thread des Evictors
+     */
+    public void start()
+    {
+        Thread thread = new Thread(this, "CacheEvictor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Melde einen Zugriff auf eine Resource. Das darf den Request-Pfad nicht
+     * bremsen, der Zugriff wird also ggf. einfach verworfen.
+     *
+     * @param name
+     */
+    public void recordAccess(String name)
+    {
+        this.accessBuffer.offer(name);
+    }
+
+    /**
+     * Ein neuer Eintrag wurde in das Repo übernommen
+     *
+     * @param name
+     * @param entry
+     */
+    public void entryAdded(String name, CachedEntrySourceFactory entry)
+    {
+        this.entryEvents.add(new EntryEvent(name, entry, true));
+    }
+
+    /**
+     * Ein Eintrag wurde aus dem Repo entfernt
+     *
+     * @param name
+     * @param entry
+     */
+    public void entryRemoved(String name, CachedEntrySourceFactory entry)
+    {
+        this.entryEvents.add(new EntryEvent(name, entry, false));
+    }
+
+    /**
+     *
+     */
+    @Override
+    public void run()
+    {
+        while (true)
+        {
+            try
+            {
+                EntryEvent event = this.entryEvents.poll(DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                while (event != null)
+                {
+                    this.processEvent(event);
+                    event = this.entryEvents.poll();
+                }
+
+                this.accessBuffer.drain(this::onAccess);
+                this.evictIfNeeded();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (Exception e)
+            {
+                log.error(MsgFactory.get(this.getClass(), EMsgIds.ERR_EVICTION, e));
+            }
+        }
+    }
+
+    /**
+     * @param event
+     */
+    private void processEvent(EntryEvent event)
+    {
+        if (event.isAdded())
+        {
+            this.remove(event.name());
+            this.window.put(event.name(), event.entry());
+            this.windowSize += event.entry().getSize();
+        }
+        else if (this.window.remove(event.name(), event.entry()))
+        {
+            this.windowSize -= event.entry().getSize();
+        }
+        else if (this.main.remove(event.name(), event.entry()))
+        {
+            this.mainSize -= event.entry().getSize();
+        }
+    }
+
+    /**
+     * @param name
+     */
+    private void onAccess(String name)
+    {
+        this.sketch.increment(name);
+
+        // der Zugriff über get() aktualisiert die LRU-Reihenfolge
+        if (this.window.get(name) == null)
+        {
+            this.main.get(name);
+        }
+    }
+
+    /**
+     * Verschiebe überzählige Einträge aus dem Fenster in den Haupt-Bereich
+     * und entferne so lange Einträge, bis die maximale Größe wieder
+     * eingehalten wird.
+     */
+    private void evictIfNeeded()
+    {
+        while (this.windowSize > this.maxWindowSize && this.window.size() > 1)
+        {
+            Map.Entry<String, CachedEntrySourceFactory> candidate = this.window.entrySet().iterator().next();
+            this.window.remove(candidate.getKey());
+            this.windowSize -= candidate.getValue().getSize();
+            this.admit(candidate.getKey(), candidate.getValue());
+        }
+
+        if (this.windowSize + this.mainSize > this.maxSize)
+        {
+            this.evictFrom(this.main, this.windowSize + this.mainSize - this.maxSize);
+        }
+        if (this.windowSize + this.mainSize > this.maxSize)
+        {
+            this.evictFrom(this.window, this.windowSize + this.mainSize - this.maxSize);
+        }
+    }
+
+    /**
+     * Ein Eintrag fällt aus dem Fenster und möchte in den Haupt-Bereich. Ist
+     * dort kein Platz mehr, so entscheidet die Zugriffs-Häufigkeit, ob der
+     * Kandidat oder das älteste Element des Haupt-Bereiches entfernt wird.
+     *
+     * @param name
+     * @param candidate
+     */
+    private void admit(String name, CachedEntrySourceFactory candidate)
+    {
+        long mainCapacity = this.maxSize - Math.max(this.windowSize, this.maxWindowSize);
+        Iterator<Map.Entry<String, CachedEntrySourceFactory>> victims = this.main.entrySet().iterator();
+        while (this.mainSize + candidate.getSize() > mainCapacity && victims.hasNext())
+        {
+            Map.Entry<String, CachedEntrySourceFactory> victim = victims.next();
+            if (this.sketch.frequency(name) <= this.sketch.frequency(victim.getKey()))
+            {
+                break;
+            }
+
+            if (this.repo.evict(victim.getKey(), victim.getValue()))
+            {
+                victims.remove();
+                this.mainSize -= victim.getValue().getSize();
+            }
+        }
+
+        if (this.mainSize + candidate.getSize() > mainCapacity && this.repo.evict(name, candidate))
+        {
+            return;
+        }
+
+        this.main.put(name, candidate);
+        this.mainSize += candidate.getSize();
+    }
+
+    /**
+     * Entferne die ältesten Einträge aus dem angegebenen Bereich, bis die
+     * angegebene Menge an Bytes frei ist. Einträge, welche gerade gelesen
+     * werden, werden übersprungen.
+     *
+     * @param area
+     * @param bytesToFree
+     */
+    private void evictFrom(LinkedHashMap<String, CachedEntrySourceFactory> area, long bytesToFree)
+    {
+        long freed = 0;
+        Iterator<Map.Entry<String, CachedEntrySourceFactory>> victims = area.entrySet().iterator();
+        while (freed < bytesToFree && victims.hasNext())
+        {
+            Map.Entry<String, CachedEntrySourceFactory> victim = victims.next();
+            if (this.repo.evict(victim.getKey(), victim.getValue()))
+            {
+                victims.remove();
+
+                long size = victim.getValue().getSize();
+                freed += size;
+                if (area == this.main)
+                {
+                    this.mainSize -= size;
+                }
+                else
+                {
+                    this.windowSize -= size;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param name
+     */
+    private void remove(String name)
+    {
+        CachedEntrySourceFactory entry = this.window.remove(name);
+        if (entry != null)
+        {
+            this.windowSize -= entry.getSize();
+        }
+
+        entry = this.main.remove(name);
+        if (entry != null)
+        {
+            this.mainSize -= entry.getSize();
+        }
+    }
+
+    /**
+     * Ein neuer oder entfernter Eintrag
+     */
+    private static record EntryEvent(String name, CachedEntrySourceFactory entry, boolean isAdded)
+    {
+    }
+
+    /**
+     *
+     */
+    private enum EMsgIds
+    {
+        ERR_EVICTION, //
+    }
+}
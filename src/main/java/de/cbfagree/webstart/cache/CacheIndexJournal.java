@@ -0,0 +1,303 @@
+package de.cbfagree.webstart.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Das Journal über alle Einträge des Caches.
+ *
+ * Beim Start des Proxies kann das Repository damit in einem einzigen
+ * sequentiellen Lesevorgang befüllt werden, statt den kompletten
+ * Verzeichnisbaum zu durchsuchen und jedes Cache-File zu öffnen.
+ *
+ * Das Journal wird nur fortgeschrieben. Jede Änderung am Cache wird als
+ * Record angehängt:
+ *
+ * <pre>
+ * byte   Operation (PUT oder REMOVE)
+ * UTF    Name der Resource
+ * int    Länge des Headers (0 bei REMOVE)
+ * byte[] Header des Cache-Eintrages im {@link CacheEntryFormat}
+ * int    CRC32 über den Record
+ * </pre>
+ *
+ * Übersteigt die Anzahl der Records die Anzahl der gültigen Einträge
+ * deutlich, so wird das Journal kompaktiert, also nur mit den gültigen
+ * Einträgen neu geschrieben und atomar ersetzt.
+ *
+ * Ein abgeschnittener oder beschädigter Record (etwa nach einem Absturz
+ * während des Schreibens) macht das gesamte Journal ungültig. Der Aufrufer
+ * muss dann auf das durchsuchen des Verzeichnisses ausweichen.
+ */
+class CacheIndexJournal implements Closeable
+{
+    public static final String JOURNAL_FILE = ".journal";
+    private static final String COMPACT_SUFFIX = ".tmp";
+
+    private static final int MAGIC = 0x4A575349;
+    private static final short VERSION = 1;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    /**
+     * Unterhalb dieser Anzahl von Records lohnt keine Kompaktierung
+     */
+    private static final int COMPACT_MIN_RECORDS = 1024;
+
+    private Path journalFile;
+    private FileChannel channel;
+    private Map<String, CacheEntryHeader> entries;
+    private int recordCount;
+
+    /**
+     * @param journalFile
+     */
+    public CacheIndexJournal(Path journalFile)
+    {
+        this.journalFile = journalFile;
+        this.entries = new HashMap<>();
+        this.recordCount = 0;
+    }
+
+    /**
+     * Lese das komplette Journal.
+     *
+     * @return alle gültigen Einträge des Caches
+     * @throws IOException wenn das Journal nicht existiert oder inkonsistent ist
+     */
+    public synchronized Map<String, CacheEntryHeader> load() throws IOException
+    {
+        Map<String, CacheEntryHeader> result = new HashMap<>();
+        int records = 0;
+
+        CheckedInputStream checked = new CheckedInputStream(
+            new BufferedInputStream(Files.newInputStream(this.journalFile), 0x10000), new CRC32());
+        try (DataInputStream in = new DataInputStream(checked))
+        {
+            if (in.readInt() != MAGIC || in.readShort() != VERSION)
+            {
+                throw new IOException("not a cache journal");
+            }
+
+            checked.getChecksum().reset();
+            int op = in.read();
+            while (op != -1)
+            {
+                String name = in.readUTF();
+                int headerLen = in.readInt();
+                if (headerLen < 0 || headerLen > CacheEntryFormat.HEADER_SIZE)
+                {
+                    throw new IOException("corrupted cache journal record");
+                }
+
+                byte[] header = new byte[headerLen];
+                in.readFully(header);
+
+                int expectedCrc = (int) checked.getChecksum().getValue();
+                if (in.readInt() != expectedCrc)
+                {
+                    throw new IOException("corrupted cache journal record");
+                }
+
+                switch (op)
+                {
+                    case OP_PUT :
+                        result.put(name, CacheEntryFormat.decode(new DataInputStream(new ByteArrayInputStream(header))));
+                        break;
+
+                    case OP_REMOVE :
+                        result.remove(name);
+                        break;
+
+                    default :
+                        throw new IOException(String.format("unknown cache journal operation %1$d", op));
+                }
+                records++;
+
+                checked.getChecksum().reset();
+                op = in.read();
+            }
+        }
+
+        this.entries = result;
+        this.recordCount = records;
+        this.openForAppend();
+        this.compactIfNeeded();
+        return new HashMap<>(result);
+    }
+
+    /**
+     * Verwerfe den bisherigen Inhalt des Journals und schreibe es komplett
+     * mit den angegebenen Einträgen neu.
+     *
+     * Einträge, welche seit dem Start bereits vermerkt wurden, sind aktueller
+     * als die angegebenen und bleiben erhalten.
+     *
+     * @param newEntries
+     * @throws IOException
+     */
+    public synchronized void rewrite(Map<String, CacheEntryHeader> newEntries) throws IOException
+    {
+        Map<String, CacheEntryHeader> merged = new HashMap<>(newEntries);
+        merged.putAll(this.entries);
+        this.entries = merged;
+        this.compact();
+    }
+
+    /**
+     * Eine Resource wurde in den Cache übernommen.
+     *
+     * @param name
+     * @param header
+     * @throws IOException
+     */
+    public synchronized void recordPut(String name, CacheEntryHeader header) throws IOException
+    {
+        this.entries.put(name, header);
+        this.append(OP_PUT, name, CacheEntryFormat.encode(header));
+    }
+
+    /**
+     * Eine Resource wurde aus dem Cache entfernt.
+     *
+     * @param name
+     * @throws IOException
+     */
+    public synchronized void recordRemove(String name) throws IOException
+    {
+        if (this.entries.remove(name) != null)
+        {
+            this.append(OP_REMOVE, name, new byte[0]);
+        }
+    }
+
+    /**
+     *
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (this.channel != null)
+        {
+            this.channel.close();
+            this.channel = null;
+        }
+    }
+
+    /**
+     * Hänge einen Record an das Journal an.
+     *
+     * @param op
+     * @param name
+     * @param header
+     * @throws IOException
+     */
+    private void append(byte op, String name, byte[] header) throws IOException
+    {
+        if (this.channel == null)
+        {
+            this.openForAppend();
+        }
+
+        ByteBuffer record = ByteBuffer.wrap(this.encodeRecord(op, name, header));
+        while (record.hasRemaining())
+        {
+            this.channel.write(record);
+        }
+        this.recordCount++;
+        this.compactIfNeeded();
+    }
+
+    /**
+     * @param op
+     * @param name
+     * @param header
+     * @return
+     * @throws IOException
+     */
+    private byte[] encodeRecord(byte op, String name, byte[] header) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(header.length + name.length() + 16);
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            out.writeByte(op);
+            out.writeUTF(name);
+            out.writeInt(header.length);
+            out.write(header);
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Kompaktiere das Journal, wenn es überwiegend aus überholten Records
+     * besteht.
+     *
+     * @throws IOException
+     */
+    private void compactIfNeeded() throws IOException
+    {
+        if (this.recordCount > COMPACT_MIN_RECORDS && this.recordCount > 2 * this.entries.size())
+        {
+            this.compact();
+        }
+    }
+
+    /**
+     * Schreibe alle gültigen Einträge in ein neues Journal und ersetze das
+     * alte Journal atomar durch das neue.
+     *
+     * @throws IOException
+     */
+    private void compact() throws IOException
+    {
+        this.close();
+
+        Path tmpFile = this.journalFile.resolveSibling(this.journalFile.getFileName() + COMPACT_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(tmpFile), 0x10000)))
+        {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            for (Map.Entry<String, CacheEntryHeader> entry : this.entries.entrySet())
+            {
+                out.write(this.encodeRecord(OP_PUT, entry.getKey(), CacheEntryFormat.encode(entry.getValue())));
+            }
+        }
+        Files.move(tmpFile, this.journalFile, StandardCopyOption.ATOMIC_MOVE);
+
+        this.recordCount = this.entries.size();
+        this.openForAppend();
+    }
+
+    /**
+     * @throws IOException
+     */
+    private void openForAppend() throws IOException
+    {
+        this.channel = FileChannel.open(this.journalFile, //
+            StandardOpenOption.CREATE, //
+            StandardOpenOption.WRITE, //
+            StandardOpenOption.APPEND);
+    }
+}
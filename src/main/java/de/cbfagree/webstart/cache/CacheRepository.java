@@ -1,21 +1,34 @@
 package de.cbfagree.webstart.cache;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.message.Message;
 
 import de.cbfagree.webstart.backend.DownloadTask;
+import de.cbfagree.webstart.backend.EngineOverloadException;
 import de.cbfagree.webstart.backend.IDownloadObserver;
+import de.cbfagree.webstart.backend.ResourceMetaData;
 import de.cbfagree.webstart.backend.DownloaderEngine;
-import de.cbfagree.webstart.backend.PendingDownloadInputStream;
 import de.cbfagree.webstart.backend.WriteThroughBuffer;
 import de.cbfagree.webstart.config.CacheConfig;
 import de.cbfagree.webstart.messages.MsgFactory;
@@ -24,11 +37,52 @@ import lombok.extern.log4j.Log4j2;
 @Log4j2()
 public class CacheRepository implements IDownloadObserver
 {
+    /**
+     * Das Verzeichnis für die Staging-Files laufender Downloads. Es liegt 
+     * innerhalb des Cache-Verzeichnisses, damit die Übernahme in den Cache
+     * durch ein einfaches (atomares) umbenennen erfolgen kann.
+     */
+    private static final String STAGING_DIR = ".staging";
+    private static final String STAGING_SUFFIX = ".part";
+
+    /**
+     * Die Meta-Daten für Leser eines Downloads, welcher von der 
+     * {@link DownloaderEngine} abgewiesen wurde.
+     */
+    private static final ResourceMetaData SERVICE_UNAVAILABLE = new ResourceMetaData(503, null, 0, null, 0);
+
+    /**
+     * Die Quelle für Requests, deren Name nicht auf ein Cache-File abgebildet
+     * werden kann (siehe {@link #getCacheFile(String)}).
+     */
+    private static final ResourceSourceFactory BAD_REQUEST = () -> new StatusResponseSource(400);
+
     private File cacheBaseDir;
+    private File stagingDir;
+    private AtomicLong stagingFileNr;
     private DownloaderEngine engine;
-    private ConcurrentHashMap<String, InputStreamFactory> repo;
+    private CacheIndexJournal journal;
+    private CacheEvictor evictor;
+    private MemoryTier memoryTier;
+    private RevalidationPolicy revalidationPolicy;
+    private long negativeTtl;
+    private ConcurrentLinkedQueue<NegativeEntry> negativeEntries;
+    private volatile boolean isIndexComplete;
+    private ConcurrentHashMap<String, ResourceSourceFactory> repo;
 
     /**
+     * Eine neue Version einer Resource verwendet den selben Pfad wie die 
+     * bisherige. Das umbenennen des Staging-Files und das löschen eines 
+     * Cache-Files dürfen deshalb nur zusammen mit der Änderung des Repos
+     * erfolgen.
+     */
+    private Object cacheFileLock;
+
+    /**
+     * Das Repo wird nicht im Konstruktor befüllt, sondern asynchron in einem
+     * eigenen Thread. Bis der Index komplett ist, werden Resourcen, welche
+     * noch nicht im Repo bekannt sind, direkt im Cache-Verzeichnis gesucht.
+     * Der Proxy kann damit sofort nach dem Start Anfragen bedienen.
      * 
      * @param cacheBaseDir
      * @throws IOException 
@@ -36,15 +90,89 @@ public class CacheRepository implements IDownloadObserver
     public CacheRepository(CacheConfig cfg, DownloaderEngine downloader) throws IOException
     {
         this.repo = new ConcurrentHashMap<>();
+        this.cacheFileLock = new Object();
         this.engine = downloader;
         this.cacheBaseDir = cfg.getBasePath().getAbsoluteFile();
+        this.stagingDir = new File(this.cacheBaseDir, STAGING_DIR);
+        this.stagingFileNr = new AtomicLong(System.currentTimeMillis());
+        this.journal = new CacheIndexJournal(new File(this.cacheBaseDir, CacheIndexJournal.JOURNAL_FILE).toPath());
+        this.revalidationPolicy = new RevalidationPolicy(cfg.getRevalidate());
+        this.negativeTtl = cfg.getNegativeTtl();
+        this.negativeEntries = new ConcurrentLinkedQueue<>();
+        if (cfg.getMaxSize() > 0)
+        {
+            this.evictor = new CacheEvictor(cfg.getMaxSize(), this);
+            this.evictor.start();
+        }
+
+        if (cfg.getMemoryTierSize() > 0)
+        {
+            this.memoryTier = new MemoryTier(cfg);
+        }
+
         if (!this.cacheBaseDir.exists())
         {
             this.createCacheDirectory();
+            this.prepareStagingDirectory();
+            this.journal.rewrite(Map.of());
+            this.isIndexComplete = true;
         }
         else
         {
-            this.fillFromFileSystem();
+            this.prepareStagingDirectory();
+            this.isIndexComplete = false;
+            this.startIndexLoader();
+        }
+    }
+
+    /**
+     * Starte den Thread, welcher das Repo befüllt.
+     */
+    private void startIndexLoader()
+    {
+        Thread loader = new Thread(() -> {
+            try
+            {
+                if (!this.loadFromJournal())
+                {
+                    this.fillFromFileSystem();
+                }
+            }
+            finally
+            {
+                this.isIndexComplete = true;
+            }
+        }, "CacheIndexLoader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Wurde das Repo beim Start bereits komplett befüllt? Bis dahin wird bei
+     * einem Miss direkt im Cache-Verzeichnis nachgesehen.
+     *
+     * @return
+     */
+    boolean isIndexComplete()
+    {
+        return this.isIndexComplete;
+    }
+
+    /**
+     * Lege das Staging-Verzeichnis an. Sollten darin noch Files eines vorherigen
+     * Laufs liegen (Abbruch während eines Downloads), so werden diese gelöscht.
+     * 
+     * @throws IOException
+     */
+    private void prepareStagingDirectory() throws IOException
+    {
+        Files.createDirectories(this.stagingDir.toPath());
+        for (File file : this.stagingDir.listFiles())
+        {
+            if (file.getName().endsWith(STAGING_SUFFIX))
+            {
+                Files.deleteIfExists(file.toPath());
+            }
         }
     }
 
@@ -65,67 +193,547 @@ public class CacheRepository implements IDownloadObserver
         }
     }
 
+    /**
+     * Befülle das Repo aus dem {@link CacheIndexJournal}.
+     * 
+     * @return <code>false</code>, wenn das Journal nicht existiert oder nicht
+     *         konsistent ist. Das Repo muss dann aus dem Filesystem befüllt 
+     *         werden.
+     */
+    private boolean loadFromJournal()
+    {
+        try
+        {
+            long start = System.currentTimeMillis();
+            Map<String, CacheEntryHeader> entries = this.journal.load();
+            this.addCachedEntries(entries);
+
+            long duration = System.currentTimeMillis() - start;
+            log.info(MsgFactory.get(this.getClass(), EMsgIds.JOURNAL_LOADED, entries.size(), duration));
+            return true;
+        }
+        catch (NoSuchFileException e)
+        {
+            log.info(MsgFactory.get(this.getClass(), EMsgIds.JOURNAL_NOT_EXISTS, e.getFile()));
+            return false;
+        }
+        catch (IOException e)
+        {
+            log.warn(MsgFactory.get(this.getClass(), EMsgIds.ERR_READ_JOURNAL, e));
+            return false;
+        }
+    }
+
     /**
      * Befülle das Repo mit allen Dateien, welche bereits im Filesystem-
-     * Cache enthalten sind. Für diese Resourcen werden FileInputStreamFactories
-     * im Repo hinterlegt.
+     * Cache enthalten sind. Für diese Resourcen werden CachedEntrySourceFactories
+     * im Repo hinterlegt. Das Journal wird danach mit dem Ergebnis neu 
+     * geschrieben.
+     * 
+     * Die Verzeichnisse werden parallel durchsucht, gefundene Einträge stehen
+     * sofort im Repo zur Verfügung.
      */
     private void fillFromFileSystem()
     {
         log.info(MsgFactory.get(this.getClass(), EMsgIds.FILL_REPO, this.cacheBaseDir.getAbsolutePath()));
-        this.scanDirectory(this.cacheBaseDir);
+
+        Map<String, CacheEntryHeader> entries = new ConcurrentHashMap<>();
+        ForkJoinPool pool = new ForkJoinPool();
+        try
+        {
+            pool.invoke(new ScanDirectoryAction(this.cacheBaseDir, entries));
+        }
+        finally
+        {
+            pool.shutdown();
+        }
         log.info(MsgFactory.get(this.getClass(), EMsgIds.REPO_SIZE, this.repo.size()));
+
+        try
+        {
+            this.journal.rewrite(entries);
+        }
+        catch (IOException e)
+        {
+            log.error(MsgFactory.get(this.getClass(), EMsgIds.ERR_WRITE_JOURNAL, e));
+        }
     }
 
     /**
+     * Hinterlege für alle angegebenen Einträge eine CachedEntrySourceFactory
+     * im Repo. Die Einträge werden in der Reihenfolge ihrer Übernahme in den
+     * Cache hinterlegt, für den {@link CacheEvictor} sind die ältesten 
+     * Einträge damit auch die am längsten nicht verwendeten.
      * 
-     * @param path
+     * @param entries
      */
-    private void scanDirectory(File path)
+    private void addCachedEntries(Map<String, CacheEntryHeader> entries)
     {
-        String basePath = this.cacheBaseDir.getAbsolutePath();
-        for (File file : path.listFiles())
+        List<Map.Entry<String, CacheEntryHeader>> sorted = new ArrayList<>(entries.entrySet());
+        sorted.sort(Comparator.comparingLong(entry -> entry.getValue().storedAt()));
+        for (Map.Entry<String, CacheEntryHeader> entry : sorted)
         {
-            String fileName = file.getName();
-            if (file.isDirectory())
+            File file = this.getCacheFile(entry.getKey());
+            if (file != null)
             {
-                this.scanDirectory(file);
+                this.addCachedEntry(entry.getKey(), file, entry.getValue());
             }
-            else
+        }
+    }
+
+    /**
+     * Hinterlege eine CachedEntrySourceFactory im Repo.
+     * 
+     * Da das Repo bereits während des befüllens verwendet wird, kann dort 
+     * schon eine Factory für die Resource liegen (laufender oder gerade 
+     * abgeschlossener Download). Diese ist in jedem Fall aktueller und wird
+     * nicht ersetzt.
+     * 
+     * @param cacheName
+     * @param file das Cache-File
+     * @param header
+     * @return die Factory, welche nun im Repo hinterlegt ist
+     */
+    private ResourceSourceFactory addCachedEntry(String cacheName, File file, CacheEntryHeader header)
+    {
+        CachedEntrySourceFactory fact = new CachedEntrySourceFactory(file, header,
+            this.revalidationPolicy.getTtl(cacheName));
+        ResourceSourceFactory currentFact = this.repo.putIfAbsent(cacheName, fact);
+        if (currentFact != null)
+        {
+            return currentFact;
+        }
+
+        if (this.evictor != null)
+        {
+            this.evictor.entryAdded(cacheName, fact);
+        }
+        return fact;
+    }
+
+    /**
+     * Durchsucht ein Verzeichnis nach Cache-Files. Für jedes Unterverzeichnis 
+     * wird eine weitere Action abgespalten.
+     */
+    private class ScanDirectoryAction extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private File path;
+        private Map<String, CacheEntryHeader> entries;
+
+        /**
+         * @param path
+         * @param entries
+         */
+        public ScanDirectoryAction(File path, Map<String, CacheEntryHeader> entries)
+        {
+            this.path = path;
+            this.entries = entries;
+        }
+
+        /**
+         * 
+         */
+        @Override
+        protected void compute()
+        {
+            File[] files = this.path.listFiles();
+            if (files == null)
+            {
+                return;
+            }
+
+            List<ScanDirectoryAction> subDirs = new ArrayList<>();
+            for (File file : files)
             {
-                if (fileName.endsWith(".cache"))
+                if (file.isDirectory())
                 {
-                    String relativeName = file.getAbsolutePath().substring(basePath.length());
-                    log.info(MsgFactory.get(this.getClass(), EMsgIds.USE_CACHE_ENTRY, relativeName));
+                    if (!file.equals(CacheRepository.this.stagingDir))
+                    {
+                        subDirs.add(new ScanDirectoryAction(file, this.entries));
+                    }
+                }
+                else if (file.getName().endsWith(CacheEntryFormat.SUFFIX))
+                {
+                    this.scanFile(file);
+                }
+            }
+            ScanDirectoryAction.invokeAll(subDirs);
+        }
+
+        /**
+         * @param file
+         */
+        private void scanFile(File file)
+        {
+            String relativeName = file.getAbsolutePath().substring(CacheRepository.this.cacheBaseDir.getAbsolutePath().length());
+            CacheEntryHeader header = CacheRepository.this.loadCacheEntry(file, relativeName);
+            if (header != null)
+            {
+                log.debug(MsgFactory.get(CacheRepository.class, EMsgIds.USE_CACHE_ENTRY, relativeName));
+
+                String cacheName = relativeName.substring(0, relativeName.length() - CacheEntryFormat.SUFFIX.length());
+                this.entries.put(cacheName, header);
+                CacheRepository.this.addCachedEntry(cacheName, file, header);
+            }
+        }
+    }
+
+    /**
+     * Suche das Cache-File einer Resource direkt im Cache-Verzeichnis. Das ist
+     * nur notwendig, solange der Index noch nicht komplett geladen ist.
+     * 
+     * @param resourceName
+     * @param file das Cache-File, siehe {@link #getCacheFile(String)}
+     * @return die Factory für das Cache-File oder <code>null</code>, wenn es 
+     *         kein (gültiges) Cache-File gibt.
+     */
+    private ResourceSourceFactory probeCacheFile(String resourceName, File file)
+    {
+        if (!file.isFile())
+        {
+            return null;
+        }
+
+        log.debug(MsgFactory.get(this.getClass(), EMsgIds.PROBE_CACHE_ENTRY, resourceName));
+        CacheEntryHeader header = this.loadCacheEntry(file, resourceName);
+        return (header == null) ? null : this.addCachedEntry(resourceName, file, header);
+    }
+
+    /**
+     * Liefere das Cache-File einer Resource.
+     * 
+     * Der Name der Resource stammt direkt aus dem Request des Clients. Namen 
+     * mit "."- oder ".."-Segmenten werden deshalb abgewiesen (der Pfad würde 
+     * durch das normalisieren verändert), ebenso alle Namen, deren File nicht
+     * im Cache-Verzeichnis oder im Staging-Verzeichnis liegen würde. Damit
+     * kann ein Request weder Files außerhalb des Cache-Verzeichnisses 
+     * erreichen, noch ein Cache-File unter einem zweiten Namen.
+     * 
+     * @param resourceName
+     * @return das Cache-File oder <code>null</code>, wenn der Name nicht
+     *         verwendet werden darf.
+     */
+    private File getCacheFile(String resourceName)
+    {
+        try
+        {
+            Path basePath = this.cacheBaseDir.toPath().normalize();
+            Path rawFile = new File(basePath.toFile(), resourceName + CacheEntryFormat.SUFFIX).toPath();
+            Path file = rawFile.normalize();
+            if (!file.equals(rawFile) || !file.startsWith(basePath)
+                || file.startsWith(this.stagingDir.toPath().normalize()))
+            {
+                return null;
+            }
+            return file.toFile();
+        }
+        catch (InvalidPathException e)
+        {
+            return null;
+        }
+    }
 
-                    String cacheName = relativeName.substring(0, relativeName.length() - ".cache".length());
-                    this.repo.put(cacheName, new CachedEntryInputStreamFactory(file));
+    /**
+     * Lese den Header eines Cache-Files. Liegt das File noch im alten Format
+     * vor (komplette HTTP-Response), so wird es zuerst migriert.
+     * 
+     * @param file
+     * @param relativeName
+     * @return der Header oder <code>null</code>, wenn das File nicht verwendet 
+     *         werden kann.
+     */
+    private CacheEntryHeader loadCacheEntry(File file, String relativeName)
+    {
+        try
+        {
+            boolean isLegacy;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+            {
+                isLegacy = CacheEntryFormat.isLegacyFormat(channel);
+                if (!isLegacy)
+                {
+                    return CacheEntryFormat.read(channel);
                 }
             }
+
+            log.info(MsgFactory.get(this.getClass(), EMsgIds.MIGRATE_CACHE_ENTRY, relativeName));
+            return new LegacyCacheEntryMigration(this.createStagingPath()).migrate(file.toPath());
+        }
+        catch (IOException e)
+        {
+            log.warn(MsgFactory.get(this.getClass(), EMsgIds.ERR_READ_CACHE_ENTRY, relativeName, e));
+            return null;
+        }
+    }
+
+    /**
+     * Liefere die Meta-Daten einer komplett im Cache liegenden Resource, ohne
+     * das Cache-File zu öffnen. Damit kann das Frontend bedingte Requests
+     * (If-None-Match, If-Modified-Since) direkt beantworten.
+     * 
+     * Der Zugriff zählt für die Eviction-Policy wie ein normaler Zugriff. Ist
+     * der Eintrag abgelaufen, so wird er im Hintergrund revalidiert.
+     * 
+     * @param resourceName
+     * @return die Meta-Daten oder <code>null</code>, wenn die Resource nicht
+     *         (oder noch nicht komplett) im Cache liegt.
+     */
+    public ResourceMetaData getCachedMetaData(String resourceName)
+    {
+        ResourceMetaData result = null;
+        if (this.repo.get(resourceName) instanceof CachedEntrySourceFactory cachedFact)
+        {
+            if (this.evictor != null)
+            {
+                this.evictor.recordAccess(resourceName);
+            }
+            this.revalidateIfExpired(resourceName, cachedFact);
+            result = cachedFact.header.metaData();
         }
+        return result;
     }
 
     /**
-     * Liefere einen neuen Inputstream auf die angeforderte Resource.
+     * Liefere eine neue Daten-Quelle für die angeforderte Resource.
      * 
      * Wenn die angeforderte Resource bereits im Repo gefunden wurde,
-     * so wird ein FileInputStream geliefert.
+     * so wird eine Quelle auf den FileChannel des Cache-Files geliefert.
      * 
      * Wenn die angeforderte Resource noch nicht im Repo existiert, so
-     * wird ein ChunkedBuffer alloziert, der Download der Resource 
-     * in diesen ChunkedBuffer asynchron gestartet und ein InputStream 
-     * auf den ChunkedBuffer geliefert.
+     * wird ein WriteThroughBuffer auf ein neues Staging-File angelegt, der
+     * Download der Resource in diesen Buffer asynchron gestartet und eine 
+     * Quelle auf den Buffer geliefert.
+     * 
+     * Ein laufender Download kann bereits beendet sein, wenn wir die Quelle
+     * erzeugen wollen. Wurde er in der Zwischenzeit in den Cache übernommen,
+     * so finden wir im zweiten Anlauf das Cache-File. Andernfalls wurde er
+     * verworfen und wird neu gestartet.
+     * 
+     * Eine gecachte Fehler-Response wird bis zum Ablauf ihrer TTL 
+     * ausgeliefert, danach wird der Download neu gestartet.
+     * 
+     * Ist der Cache-Eintrag abgelaufen, so wird er trotzdem sofort 
+     * ausgeliefert und parallel dazu im Hintergrund revalidiert 
+     * (stale-while-revalidate).
      * 
      * @param resourceName
      * @return niemals <code>null</code>
      * 
      * @throws IOException
-     * @throws InterruptedException 
+     * @throws EngineOverloadException wenn die Resource geladen werden muss,
+     *         die Download-Queue aber voll ist
      */
-    public InputStream getResource(String resourceName) throws IOException, InterruptedException
+    public IResourceSource getResource(String resourceName) throws IOException, EngineOverloadException
     {
         log.debug(MsgFactory.get(this.getClass(), EMsgIds.GET_RESOURCE, resourceName));
-        InputStreamFactory fact = this.repo.get(resourceName);
+        if (this.evictor != null)
+        {
+            this.evictor.recordAccess(resourceName);
+        }
+
+        if (this.repo.get(resourceName) instanceof CachedEntrySourceFactory cachedFact)
+        {
+            this.revalidateIfExpired(resourceName, cachedFact);
+        }
+
+        if (this.memoryTier != null)
+        {
+            IResourceSource memSource = this.memoryTier.get(resourceName);
+            if (memSource != null)
+            {
+                return memSource;
+            }
+        }
+
+        IResourceSource result = null;
+        while (result == null)
+        {
+            ResourceSourceFactory fact = this.lookupFactory(resourceName);
+            result = fact.createSource();
+            if (result == null)
+            {
+                if (this.repo.remove(resourceName, fact) && fact instanceof CachedEntrySourceFactory cachedFact)
+                {
+                    this.cachedEntryRemoved(resourceName, cachedFact);
+                }
+            }
+            else if (fact instanceof CachedEntrySourceFactory cachedFact)
+            {
+                this.promoteToMemory(resourceName, cachedFact);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Starte die Revalidierung eines abgelaufenen Cache-Eintrages.
+     * 
+     * Dazu wird ein bedingter Download in einen eigenen Buffer gestartet, 
+     * welcher nicht im Repo hinterlegt wird. Die Clients bekommen bis zum 
+     * Abschluss weiterhin den bisherigen Eintrag. Hat sich die Resource 
+     * geändert, so wird die neue Version über {@link #downloadCompleted} 
+     * atomar gegen die alte ausgetauscht. Andernfalls wird der Buffer einfach
+     * verworfen.
+     * 
+     * Die nächste Revalidierung erfolgt frühestens nach einer weiteren TTL, 
+     * auch wenn das Backend gerade nicht erreichbar ist. Ist die Download-
+     * Queue voll, so wird die Revalidierung ausgelassen.
+     * 
+     * @param resourceName
+     * @param fact
+     */
+    private void revalidateIfExpired(String resourceName, CachedEntrySourceFactory fact)
+    {
+        if (fact.claimRevalidation(System.currentTimeMillis()))
+        {
+            WriteThroughBuffer buffer = new WriteThroughBuffer(resourceName, this.createStagingPath(),
+                CacheEntryFormat.HEADER_SIZE);
+            DownloadTask task = new DownloadTask(resourceName, buffer, this, fact.header.metaData());
+            try
+            {
+                this.engine.submit(task);
+                log.debug(MsgFactory.get(this.getClass(), EMsgIds.REVALIDATE_RESOURCE, resourceName));
+            }
+            catch (EngineOverloadException e)
+            {
+                log.warn(MsgFactory.get(this.getClass(), EMsgIds.REVALIDATION_SKIPPED, resourceName));
+                try
+                {
+                    buffer.release();
+                }
+                catch (IOException e1)
+                {
+                    log.warn(MsgFactory.get(this.getClass(), EMsgIds.ERR_DISCARD_STAGING_FILE, resourceName, e1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Zähle einen Treffer im Cache und übernimm den Eintrag ggf. in den 
+     * {@link MemoryTier}.
+     * 
+     * Wurde der Eintrag in der Zwischenzeit aus dem Repo entfernt, so wird er
+     * auch sofort wieder aus dem Speicher entfernt.
+     * 
+     * @param resourceName
+     * @param fact
+     */
+    private void promoteToMemory(String resourceName, CachedEntrySourceFactory fact)
+    {
+        int hitCount = fact.recordHit();
+        if (this.memoryTier != null
+            && this.memoryTier.isCandidate(fact.header.metaData().contentLength(), hitCount))
+        {
+            try
+            {
+                this.memoryTier.admit(resourceName, fact.file, fact.header, hitCount);
+                if (this.repo.get(resourceName) != fact)
+                {
+                    this.memoryTier.remove(resourceName);
+                }
+            }
+            catch (IOException e)
+            {
+                log.warn(MsgFactory.get(this.getClass(), EMsgIds.ERR_PROMOTE_TO_MEMORY, resourceName, e));
+            }
+        }
+    }
+
+    /**
+     * Entferne einen Eintrag aus dem Cache. Wird vom {@link CacheEvictor} 
+     * gerufen.
+     * 
+     * Der Eintrag wird zuerst als entfernt markiert, danach können keine
+     * neuen Quellen für ihn mehr erzeugt werden. Das gelingt nur, wenn 
+     * der Eintrag gerade von niemandem gelesen wird.
+     * 
+     * Das File wird nur gelöscht, wenn der Eintrag noch der aktuelle im Repo
+     * ist. Wurde er in der Zwischenzeit durch eine neue Version ersetzt, so 
+     * liegt unter dem Pfad bereits deren File.
+     * 
+     * @param resourceName
+     * @param fact
+     * @return <code>false</code>, wenn der Eintrag gerade gelesen wird und 
+     *         deshalb nicht entfernt werden konnte.
+     */
+    boolean evict(String resourceName, CachedEntrySourceFactory fact)
+    {
+        if (!fact.tryEvict())
+        {
+            return false;
+        }
+
+        log.debug(MsgFactory.get(this.getClass(), EMsgIds.EVICT_CACHE_ENTRY, resourceName));
+        synchronized (this.cacheFileLock)
+        {
+            if (this.repo.remove(resourceName, fact))
+            {
+                try
+                {
+                    Files.deleteIfExists(fact.file.toPath());
+                }
+                catch (IOException e)
+                {
+                    log.warn(MsgFactory.get(this.getClass(), EMsgIds.ERR_EVICT_CACHE_ENTRY, resourceName, e));
+                }
+                this.removeFromMemory(resourceName);
+                this.recordRemove(resourceName);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param resourceName
+     */
+    private void removeFromMemory(String resourceName)
+    {
+        if (this.memoryTier != null)
+        {
+            this.memoryTier.remove(resourceName);
+        }
+    }
+
+    /**
+     * Suche die {@link ResourceSourceFactory} für die angeforderte Resource im
+     * Repo. Wenn sie nicht existiert, so wird der Download gestartet.
+     * 
+     * Kann der Name der Resource nicht auf ein Cache-File abgebildet werden,
+     * so wird weder im Cache-Verzeichnis gesucht noch ein Download gestartet,
+     * der Request wird mit "400 Bad Request" beantwortet.
+     * 
+     * Wird der Download von der {@link DownloaderEngine} abgewiesen, so wird 
+     * er sofort wieder aus dem Repo entfernt. Leser, welche sich in der 
+     * Zwischenzeit (aus einem anderen Selector-Thread) bereits an den Buffer
+     * gehängt haben, bekommen "503 Service Unavailable".
+     * 
+     * @param resourceName
+     * @return niemals <code>null</code>
+     * 
+     * @throws IOException
+     * @throws EngineOverloadException 
+     */
+    private ResourceSourceFactory lookupFactory(String resourceName) throws IOException, EngineOverloadException
+    {
+        ResourceSourceFactory fact = this.repo.get(resourceName);
+        if (fact == null)
+        {
+            File cacheFile = this.getCacheFile(resourceName);
+            if (cacheFile == null)
+            {
+                log.info(MsgFactory.get(this.getClass(), EMsgIds.ERR_INVALID_RESOURCE_NAME, resourceName));
+                return BAD_REQUEST;
+            }
+
+            if (!this.isIndexComplete)
+            {
+                fact = this.probeCacheFile(resourceName, cacheFile);
+            }
+        }
+
         if (fact != null)
         {
             log.debug(MsgFactory.get(this.getClass(), EMsgIds.RESOURCE_FOUND, resourceName));
@@ -136,13 +744,14 @@ public class CacheRepository implements IDownloadObserver
 
             // noch nicht im Repo gefunden, also alles für den Download
             // vorbereiten
-            WriteThroughBuffer buffer = new WriteThroughBuffer(resourceName);
-            PendingDownloadInputStreamFactory bufFact = new PendingDownloadInputStreamFactory(buffer);
+            WriteThroughBuffer buffer = new WriteThroughBuffer(resourceName, this.createStagingPath(),
+                CacheEntryFormat.HEADER_SIZE);
+            PendingDownloadSourceFactory bufFact = new PendingDownloadSourceFactory(buffer);
 
             // Und versuchen in das Repo einzufügen. Sollte ein paralleler
             // Consumer-Thread schneller gewesen sein, so war die Vorbereitung halt
             // für die Katz.
-            InputStreamFactory currentFact = this.repo.putIfAbsent(resourceName, bufFact);
+            ResourceSourceFactory currentFact = this.repo.putIfAbsent(resourceName, bufFact);
             if (currentFact != null)
             {
                 log.debug(MsgFactory.get(this.getClass(), EMsgIds.PENDING_DOWNLOAD, resourceName));
@@ -153,35 +762,96 @@ public class CacheRepository implements IDownloadObserver
                 log.debug(MsgFactory.get(this.getClass(), EMsgIds.DOWNLOAD_INITATED, resourceName));
                 fact = bufFact;
                 DownloadTask downloadTask = new DownloadTask(resourceName, buffer, this);
-                this.engine.submit(downloadTask);
+                try
+                {
+                    this.engine.submit(downloadTask);
+                }
+                catch (EngineOverloadException e)
+                {
+                    this.repo.remove(resourceName, bufFact);
+                    buffer.abort(e, SERVICE_UNAVAILABLE);
+                    buffer.release();
+                    throw e;
+                }
             }
         }
-        return fact.createInputStream();
+        return fact;
+    }
+
+    /**
+     * Liefere einen neuen, eindeutigen Pfad für ein Staging-File. Das File
+     * selbst wird erst vom Download angelegt.
+     * 
+     * @return
+     */
+    private Path createStagingPath()
+    {
+        String name = String.format("%1$x%2$s", this.stagingFileNr.incrementAndGet(), STAGING_SUFFIX);
+        return this.stagingDir.toPath().resolve(name);
     }
 
     /**
      * Ein asynchroner Download ist komplett.
+     * 
+     * Das Staging-File liegt bereits im Cache-Verzeichnis. Es wird nur noch
+     * der Header in den dafür reservierten Bereich geschrieben und das File
+     * atomar an seinen endgültigen Platz umbenannt. Leser, welche das
+     * Staging-File noch geöffnet haben, lesen einfach weiter.
+     * 
+     * Bei einer Revalidierung ersetzt das neue File das bisherige Cache-File.
+     * Leser des alten Files lesen ebenso einfach weiter. Liefert das Backend
+     * trotz bedingtem Request die unveränderte Resource, so wird das 
+     * Staging-File verworfen und der bisherige Eintrag bleibt erhalten.
      */
     @Override
-    public void downloadCompleted(String resourceName, File file)
+    public void downloadCompleted(String resourceName, WriteThroughBuffer buffer)
     {
         try
         {
             log.debug(MsgFactory.get(this.getClass(), EMsgIds.DOWNLOAD_COMPLETED, resourceName));
 
-            Path srcPath = Path.of(file.getAbsolutePath());
-            Path targetPath = Path.of(this.cacheBaseDir.getAbsolutePath(), resourceName + ".cache");
+            ResourceMetaData metaData = buffer.getMetaData().withContentLength(buffer.getTotalLength());
+            CacheEntryHeader header = new CacheEntryHeader(metaData, buffer.getDataOffset(),
+                System.currentTimeMillis(), WriteThroughBuffer.DIGEST_ALGORITHM, buffer.getDigest());
+            if (this.repo.get(resourceName) instanceof CachedEntrySourceFactory currentFact
+                && currentFact.isSameVersion(header))
+            {
+                log.debug(MsgFactory.get(this.getClass(), EMsgIds.RESOURCE_UNCHANGED, resourceName));
+                return;
+            }
+
+            Path srcPath = buffer.getStagingFile();
+            try (FileChannel channel = FileChannel.open(srcPath, StandardOpenOption.WRITE))
+            {
+                CacheEntryFormat.write(channel, header);
+            }
+
+            File targetFile = this.getCacheFile(resourceName);
+            if (targetFile == null)
+            {
+                throw new IOException("invalid resource name: " + resourceName);
+            }
+            Path targetPath = targetFile.toPath();
 
             Path parentDir = targetPath.getParent();
             if (parentDir != null)
             {
-                if (!parentDir.toFile().mkdirs())
-                {
-                    // TODO: throw something
-                }
+                Files.createDirectories(parentDir);
+            }
+            CachedEntrySourceFactory fact = new CachedEntrySourceFactory(targetPath.toFile(), header,
+                this.revalidationPolicy.getTtl(resourceName));
+            synchronized (this.cacheFileLock)
+            {
+                Files.move(srcPath, targetPath, StandardCopyOption.ATOMIC_MOVE);
+                this.repo.put(resourceName, fact);
+                this.removeFromMemory(resourceName);
+                this.journal.recordPut(resourceName, header);
+            }
+
+            if (this.evictor != null)
+            {
+                this.evictor.entryAdded(resourceName, fact);
             }
-            Files.move(srcPath, targetPath, StandardCopyOption.REPLACE_EXISTING);
-            this.repo.put(resourceName, new CachedEntryInputStreamFactory(targetPath.toFile()));
         }
         catch (Exception e)
         {
@@ -189,6 +859,144 @@ public class CacheRepository implements IDownloadObserver
         }
     }
 
+    /**
+     * Das Backend hat mit einem Fehler geantwortet.
+     * 
+     * Der laufende Download wird im Repo durch eine gecachte Fehler-Response
+     * ersetzt. Bis zu deren Ablauf bekommen alle weiteren Clients sofort die 
+     * gleiche Response, das Backend wird in dieser Zeit nicht erneut 
+     * angefragt. Der Buffer selbst wird nicht mehr benötigt und kann 
+     * freigegeben werden, sobald die bereits angemeldeten Leser fertig sind.
+     * 
+     * Bei einer Revalidierung ist der Buffer nicht im Repo hinterlegt, der
+     * bisherige Cache-Eintrag bleibt dann einfach erhalten (auch bei 
+     * "304 Not Modified").
+     */
+    @Override
+    public void downloadRejected(String resourceName, WriteThroughBuffer buffer)
+    {
+        PendingDownloadSourceFactory fact = this.findPendingDownload(resourceName, buffer);
+        if (fact != null)
+        {
+            ResourceMetaData metaData = buffer.getMetaData();
+            log.info(MsgFactory.get(this.getClass(), EMsgIds.DOWNLOAD_REJECTED, resourceName, metaData.statusCode()));
+            if (this.negativeTtl > 0)
+            {
+                NegativeEntry entry = new NegativeEntry(resourceName, metaData.withContentLength(0),
+                    System.currentTimeMillis() + this.negativeTtl);
+                if (this.repo.replace(resourceName, fact, entry))
+                {
+                    this.negativeEntries.add(entry);
+                }
+            }
+            else
+            {
+                this.repo.remove(resourceName, fact);
+            }
+        }
+        this.removeExpiredNegativeEntries();
+    }
+
+    /**
+     * Der Download ist abgebrochen.
+     * 
+     * Hatte das Backend noch nicht geantwortet (etwa weil es nicht erreichbar
+     * ist), so wird die "502 Bad Gateway" Response wie jede andere 
+     * Fehler-Response gecached. Während eines Ausfalls wird das Backend damit
+     * nicht mit Requests überschüttet.
+     * 
+     * Ist die Übertragung des Contents abgebrochen, so wird der Download 
+     * sofort aus dem Repo entfernt, der nächste Request startet also einen 
+     * neuen Download. Bereits angemeldete Leser bekommen die Ursache über den
+     * Buffer und schließen ihre Verbindung.
+     */
+    @Override
+    public void downloadFailed(String resourceName, WriteThroughBuffer buffer, Exception cause)
+    {
+        log.warn(MsgFactory.get(this.getClass(), EMsgIds.ERR_DOWNLOAD_FAILED, resourceName, cause));
+        if (buffer.getMetaData().statusCode() != 200)
+        {
+            this.downloadRejected(resourceName, buffer);
+            return;
+        }
+
+        PendingDownloadSourceFactory fact = this.findPendingDownload(resourceName, buffer);
+        if (fact != null)
+        {
+            this.repo.remove(resourceName, fact);
+        }
+    }
+
+    /**
+     * @param resourceName
+     * @param buffer
+     * @return die Factory des laufenden Downloads, sofern sie noch im Repo 
+     *         hinterlegt ist und zu diesem Buffer gehört. Andernfalls 
+     *         <code>null</code>.
+     */
+    private PendingDownloadSourceFactory findPendingDownload(String resourceName, WriteThroughBuffer buffer)
+    {
+        if (this.repo.get(resourceName) instanceof PendingDownloadSourceFactory fact && fact.buffer == buffer)
+        {
+            return fact;
+        }
+        return null;
+    }
+
+    /**
+     * Entferne die abgelaufenen Fehler-Responses aus dem Repo. Da alle die 
+     * gleiche TTL haben, liegen die ältesten am Anfang der Queue. Damit 
+     * bleiben auch Fehler-Responses für Resourcen, welche nie wieder 
+     * angefordert werden, nicht dauerhaft im Repo liegen.
+     */
+    private void removeExpiredNegativeEntries()
+    {
+        long now = System.currentTimeMillis();
+        NegativeEntry entry = this.negativeEntries.peek();
+        while (entry != null && entry.isExpired(now))
+        {
+            if (this.negativeEntries.remove(entry))
+            {
+                this.repo.remove(entry.resourceName, entry);
+            }
+            entry = this.negativeEntries.peek();
+        }
+    }
+
+    /**
+     * Ein Cache-Eintrag wurde aus dem Repo entfernt, weil sein File nicht 
+     * mehr existiert.
+     * 
+     * @param resourceName
+     * @param fact
+     */
+    private void cachedEntryRemoved(String resourceName, CachedEntrySourceFactory fact)
+    {
+        this.removeFromMemory(resourceName);
+        if (this.evictor != null)
+        {
+            this.evictor.entryRemoved(resourceName, fact);
+        }
+        this.recordRemove(resourceName);
+    }
+
+    /**
+     * Vermerke das entfernen eines Cache-Eintrages im Journal.
+     * 
+     * @param resourceName
+     */
+    private void recordRemove(String resourceName)
+    {
+        try
+        {
+            this.journal.recordRemove(resourceName);
+        }
+        catch (IOException e)
+        {
+            log.error(MsgFactory.get(this.getClass(), EMsgIds.ERR_WRITE_JOURNAL, e));
+        }
+    }
+
     /**
      * Das CacheRepo verwaltet für jede Resource eine Daten-Quelle. Wenn die
      * Resource bereits auf Platte liegt, so kann sie direkt verwendet werden.
@@ -201,23 +1009,32 @@ public class CacheRepository implements IDownloadObserver
      * Um diese Unterschiede zu abstrahieren, werden im Repo also nur Factories
      * für diese Datenquellen verwendet.
      */
-    public interface InputStreamFactory
+    public interface ResourceSourceFactory
     {
-        public InputStream createInputStream() throws IOException;
+        /**
+         * @return die neue Quelle oder <code>null</code>, wenn die Daten-Quelle
+         *         nicht mehr verfügbar ist.
+         * @throws IOException
+         */
+        public IResourceSource createSource() throws IOException;
     }
 
     /**
-     * Eine {@link InputStreamFactory}, welches einen InputStream für einen
+     * Eine {@link ResourceSourceFactory}, welches eine Quelle für einen
      * {@link WriteThroughBuffer} erzeugt.
+     * 
+     * Wurde der Buffer bereits komplett freigegeben (der Download ist also
+     * beendet), so wird keine Quelle erzeugt sondern <code>null</code> 
+     * geliefert.
      */
-    private static class PendingDownloadInputStreamFactory implements InputStreamFactory
+    private static class PendingDownloadSourceFactory implements ResourceSourceFactory
     {
         private WriteThroughBuffer buffer;
 
         /**
          * @param buffer
          */
-        public PendingDownloadInputStreamFactory(WriteThroughBuffer buffer)
+        public PendingDownloadSourceFactory(WriteThroughBuffer buffer)
         {
             this.buffer = buffer;
         }
@@ -226,42 +1043,214 @@ public class CacheRepository implements IDownloadObserver
          *
          */
         @Override
-        public InputStream createInputStream() throws IOException
+        public IResourceSource createSource() throws IOException
         {
-            return new PendingDownloadInputStream(this.buffer);
+            IResourceSource result = null;
+            if (this.buffer.retain())
+            {
+                result = new PendingDownloadSource(this.buffer);
+            }
+            return result;
         }
     }
 
     /**
-     * Erzeugt einen InputStream für ein im Cache befindliches File
+     * Eine gecachte Fehler-Response des Backends. Nach Ablauf der TTL werden
+     * keine Quellen mehr erzeugt, der Eintrag wird dann aus dem Repo entfernt
+     * und der Download neu gestartet.
+     */
+    private static class NegativeEntry implements ResourceSourceFactory
+    {
+        private String resourceName;
+        private ResourceMetaData metaData;
+        private long expiresAt;
+
+        /**
+         * @param resourceName
+         * @param metaData
+         * @param expiresAt
+         */
+        public NegativeEntry(String resourceName, ResourceMetaData metaData, long expiresAt)
+        {
+            this.resourceName = resourceName;
+            this.metaData = metaData;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @param now
+         * @return
+         */
+        public boolean isExpired(long now)
+        {
+            return now >= this.expiresAt;
+        }
+
+        /**
+         *
+         */
+        @Override
+        public IResourceSource createSource() throws IOException
+        {
+            return this.isExpired(System.currentTimeMillis()) ? null : new StatusResponseSource(this.metaData);
+        }
+    }
+
+    /**
+     * Erzeugt eine Quelle für ein im Cache befindliches File.
+     * 
+     * Das File beinhaltet einen Header mit den Meta-Daten, gefolgt vom Content.
+     * Der Header wurde bereits beim befüllen des Repos gelesen, ausgeliefert
+     * wird also nur der Bereich des Contents als {@link FileRegionSource}. 
+     * Die Übertragung kann damit zero-copy via sendfile erfolgen.
      * 
-     * Der Stream besteht aus dem HTTP-Header, gefolgt vom Content des Files.
-     * Im HTTP-Header werden folgende Werte gesetzt:
+     * Die Factory zählt die offenen Quellen. Solange noch eine Quelle offen
+     * ist, kann der Eintrag nicht vom {@link CacheEvictor} entfernt werden.
+     * Ist er einmal entfernt, so werden keine neuen Quellen mehr erzeugt.
      * 
-     * <ul>
-     * <li>Content-Type: application/octedstream
-     * <li>Content-Length: &lt;Länge des Files&gt;
-     * </ul>
+     * Zusätzlich hält die Factory den Zeitpunkt der nächsten Revalidierung.
+     * Dieser wird nur im Speicher gehalten, nach einem Neustart werden
+     * Einträge mit einer TTL also beim ersten Zugriff revalidiert.
      */
-    private static class CachedEntryInputStreamFactory implements InputStreamFactory
+    static class CachedEntrySourceFactory implements ResourceSourceFactory
     {
+        private static final int EVICTED = -1;
+
         private File file;
+        private CacheEntryHeader header;
+        private AtomicInteger readers;
+        private AtomicInteger hits;
+        private long ttl;
+        private AtomicLong revalidateAt;
 
         /**
          * @param file
+         * @param header
+         * @param ttl die TTL in Millisekunden oder {@link RevalidationPolicy#NEVER}
          */
-        public CachedEntryInputStreamFactory(File file)
+        public CachedEntrySourceFactory(File file, CacheEntryHeader header, long ttl)
         {
             this.file = file;
+            this.header = header;
+            this.readers = new AtomicInteger(0);
+            this.hits = new AtomicInteger(0);
+            this.ttl = ttl;
+            this.revalidateAt = new AtomicLong(
+                (ttl == RevalidationPolicy.NEVER) ? Long.MAX_VALUE : header.storedAt() + ttl);
+        }
+
+        /**
+         * Ist der Eintrag abgelaufen, so wird der Zeitpunkt der nächsten 
+         * Revalidierung um eine TTL verschoben. Von mehreren parallelen 
+         * Aufrufern gewinnt dabei genau einer.
+         * 
+         * @param now
+         * @return <code>true</code>, wenn der Aufrufer die Revalidierung 
+         *         durchführen muss.
+         */
+        public boolean claimRevalidation(long now)
+        {
+            long at = this.revalidateAt.get();
+            return at <= now && this.revalidateAt.compareAndSet(at, now + this.ttl);
+        }
+
+        /**
+         * Beschreibt der Header die gleiche Version der Resource?
+         * 
+         * @param other
+         * @return
+         */
+        public boolean isSameVersion(CacheEntryHeader other)
+        {
+            return this.header.metaData().equals(other.metaData())
+                && this.header.digestAlgorithm().equals(other.digestAlgorithm())
+                && MessageDigest.isEqual(this.header.digest(), other.digest());
+        }
+
+        /**
+         * Zähle einen Treffer
+         * 
+         * @return die Anzahl der bisherigen Treffer
+         */
+        public int recordHit()
+        {
+            return this.hits.incrementAndGet();
         }
 
         /**
-         * Erzeuge den Stream
+         * Erzeuge die Quelle. Wurde der Eintrag bereits entfernt oder das 
+         * Cache-File zwischenzeitlich (von aussen) gelöscht, so ist die 
+         * Quelle nicht mehr verfügbar.
          */
         @Override
-        public InputStream createInputStream() throws IOException
+        public IResourceSource createSource() throws IOException
+        {
+            if (!this.retain())
+            {
+                return null;
+            }
+
+            FileChannel channel;
+            try
+            {
+                channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ);
+            }
+            catch (NoSuchFileException e)
+            {
+                this.release();
+                return null;
+            }
+            catch (IOException e)
+            {
+                this.release();
+                throw e;
+            }
+            return new FileRegionSource(this.header.metaData(), channel, this.header.bodyOffset(),
+                this.header.metaData().contentLength(), this::release);
+        }
+
+        /**
+         * @return die Größe des Cache-Files
+         */
+        public long getSize()
+        {
+            return this.header.bodyOffset() + this.header.metaData().contentLength();
+        }
+
+        /**
+         * Markiere den Eintrag als entfernt, sofern er gerade nicht gelesen 
+         * wird.
+         * 
+         * @return
+         */
+        public boolean tryEvict()
+        {
+            return this.readers.compareAndSet(0, EVICTED);
+        }
+
+        /**
+         * @return <code>false</code>, wenn der Eintrag bereits entfernt wurde
+         */
+        private boolean retain()
+        {
+            int count = this.readers.get();
+            while (count != EVICTED)
+            {
+                if (this.readers.compareAndSet(count, count + 1))
+                {
+                    return true;
+                }
+                count = this.readers.get();
+            }
+            return false;
+        }
+
+        /**
+         * 
+         */
+        private void release()
         {
-            return new BufferedInputStream(new FileInputStream(this.file));
+            this.readers.decrementAndGet();
         }
     }
 
@@ -275,6 +1264,16 @@ public class CacheRepository implements IDownloadObserver
         FILL_REPO, //
         IGNORE_CACHE_ENTRY, //
         USE_CACHE_ENTRY, //     
+        MIGRATE_CACHE_ENTRY, //
+        ERR_READ_CACHE_ENTRY, //
+        PROBE_CACHE_ENTRY, //
+        EVICT_CACHE_ENTRY, //
+        ERR_EVICT_CACHE_ENTRY, //
+        ERR_PROMOTE_TO_MEMORY, //
+        JOURNAL_LOADED, //
+        JOURNAL_NOT_EXISTS, //
+        ERR_READ_JOURNAL, //
+        ERR_WRITE_JOURNAL, //
         REPO_SIZE, //
         GET_RESOURCE, //
         RESOURCE_FOUND, //
@@ -283,6 +1282,13 @@ public class CacheRepository implements IDownloadObserver
         DOWNLOAD_INITATED, //
         DOWNLOAD_COMPLETED, //
         ERR_TRANSFER_TO_REPO, //
+        REVALIDATE_RESOURCE, //
+        REVALIDATION_SKIPPED, //
+        RESOURCE_UNCHANGED, //
+        ERR_INVALID_RESOURCE_NAME, //
+        ERR_DISCARD_STAGING_FILE, //
+        DOWNLOAD_REJECTED, //
+        ERR_DOWNLOAD_FAILED, //
 
     }
 }
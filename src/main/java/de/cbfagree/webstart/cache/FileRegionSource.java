@@ -0,0 +1,98 @@
+package de.cbfagree.webstart.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import de.cbfagree.webstart.backend.ResourceMetaData;
+
+/**
+ * Eine {@link IResourceSource} für einen Bereich eines Files im Cache.
+ *
+ * Die Übertragung erfolgt via {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+ * Auf den meisten Plattformen landet das im sendfile-Call des Betriebssystems,
+ * die Daten werden also nicht mehr durch den UserSpace des Selector-Threads
+ * kopiert. Der ioBuffer wird hier nicht benötigt.
+ *
+ * Beim schließen der Quelle wird der angegebene Hook gerufen, der Cache
+ * erfährt damit, dass das File nicht mehr gelesen wird.
+ */
+class FileRegionSource implements IResourceSource
+{
+    private ResourceMetaData metaData;
+    private FileChannel channel;
+    private long offset;
+    private long length;
+    private Runnable closeHook;
+
+    /**
+     * @param metaData
+     * @param channel
+     * @param offset der Beginn des Bereiches innerhalb des Files
+     * @param length die Länge des Bereiches
+     * @param closeHook wird beim schließen der Quelle gerufen
+     */
+    public FileRegionSource(ResourceMetaData metaData, FileChannel channel, long offset, long length,
+        Runnable closeHook)
+    {
+        this.metaData = metaData;
+        this.channel = channel;
+        this.offset = offset;
+        this.length = length;
+        this.closeHook = closeHook;
+    }
+
+    /**
+     *
+     */
+    @Override
+    public ResourceMetaData getMetaData()
+    {
+        return this.metaData;
+    }
+
+    /**
+     *
+     */
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target, ByteBuffer ioBuffer)
+        throws IOException
+    {
+        long result = -1;
+        if (position < this.length)
+        {
+            result = this.channel.transferTo(this.offset + position, Math.min(count, this.length - position), target);
+        }
+        return result;
+    }
+
+    /**
+     * Ein File ist immer komplett verfügbar, hier muss nie gewartet werden.
+     */
+    @Override
+    public boolean awaitData(long position, Runnable callback)
+    {
+        return false;
+    }
+
+    /**
+     *
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (this.channel != null)
+        {
+            try
+            {
+                this.channel.close();
+            }
+            finally
+            {
+                this.channel = null;
+                this.closeHook.run();
+            }
+        }
+    }
+}
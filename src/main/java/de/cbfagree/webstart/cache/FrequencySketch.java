@@ -0,0 +1,121 @@
+package de.cbfagree.webstart.cache;
+
+/**
+ * Ein Count-Min-Sketch zur Schätzung der Zugriffs-Häufigkeit von Resourcen.
+ *
+ * Der Sketch merkt sich die Häufigkeit auch für Resourcen, welche (noch) nicht
+ * oder nicht mehr im Cache liegen. Damit kann der {@link CacheEvictor} bei der
+ * Aufnahme eines neuen Eintrages entscheiden, ob dieser wertvoller ist als der
+ * Eintrag, welcher dafür verdrängt werden müsste (TinyLFU).
+ *
+ * Die Zähler sind auf 15 begrenzt und werden periodisch halbiert. Damit
+ * verlieren alte Zugriffe mit der Zeit ihr Gewicht, eine früher häufig
+ * verwendete JAR-Version bleibt also nicht ewig im Cache.
+ *
+ * Der Sketch ist <b>nicht</b> thread-safe, er wird ausschließlich vom Thread
+ * des {@link CacheEvictor} verwendet.
+ */
+class FrequencySketch
+{
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = { 0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f };
+
+    private byte[][] table;
+    private int mask;
+    private int sampleSize;
+    private int additions;
+
+    /**
+     * @param width die Anzahl der Zähler je Zeile, wird auf die nächste
+     *        Zweierpotenz aufgerundet
+     */
+    public FrequencySketch(int width)
+    {
+        int size = Integer.highestOneBit(Math.max(width - 1, 1)) << 1;
+
+        this.table = new byte[SEEDS.length][size];
+        this.mask = size - 1;
+        this.sampleSize = 10 * size;
+        this.additions = 0;
+    }
+
+    /**
+     * Zähle einen Zugriff auf die angegebene Resource
+     *
+     * @param key
+     */
+    public void increment(String key)
+    {
+        int hash = this.spread(key.hashCode());
+
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++)
+        {
+            int idx = this.indexOf(hash, i);
+            if (this.table[i][idx] < MAX_COUNT)
+            {
+                this.table[i][idx]++;
+                added = true;
+            }
+        }
+
+        if (added && ++this.additions >= this.sampleSize)
+        {
+            this.reset();
+        }
+    }
+
+    /**
+     * Liefere die geschätzte Häufigkeit der Zugriffe auf die Resource
+     *
+     * @param key
+     * @return
+     */
+    public int frequency(String key)
+    {
+        int hash = this.spread(key.hashCode());
+
+        int result = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++)
+        {
+            result = Math.min(result, this.table[i][this.indexOf(hash, i)]);
+        }
+        return result;
+    }
+
+    /**
+     * Halbiere alle Zähler
+     */
+    private void reset()
+    {
+        for (byte[] row : this.table)
+        {
+            for (int i = 0; i < row.length; i++)
+            {
+                row[i] >>>= 1;
+            }
+        }
+        this.additions /= 2;
+    }
+
+    /**
+     * @param hash
+     * @param row
+     * @return
+     */
+    private int indexOf(int hash, int row)
+    {
+        int h = (hash ^ SEEDS[row]) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & this.mask;
+    }
+
+    /**
+     * @param hash
+     * @return
+     */
+    private int spread(int hash)
+    {
+        int h = hash * 0x45d9f3b;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,103 @@
+package de.cbfagree.webstart.cache;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import de.cbfagree.webstart.backend.ResourceMetaData;
+
+/**
+ * Eine {@link IResourceSource} beschreibt die Daten-Quelle, aus welcher das
+ * Frontend eine Resource an einen Client ausliefert.
+ *
+ * Die Quelle liefert nur den Content der Resource. Den HTTP-ResponseHeader
+ * erzeugt das Frontend aus den {@link ResourceMetaData} der Quelle.
+ *
+ * Die Quelle selbst kennt keine Lese-Position. Die aktuelle Position des
+ * Transfers wird vom Aufrufer (also vom ChannelTransferContext) verwaltet und
+ * bei jedem Aufruf mit gegeben. Konnten nicht alle Bytes in den Ziel-Channel
+ * geschrieben werden, so wird die Position einfach nur um die Anzahl der
+ * tatsächlich geschriebenen Bytes weiter gezählt. Ein "zurück schieben" von
+ * bereits gelesenen Daten ist damit nicht notwendig.
+ */
+public interface IResourceSource extends Closeable
+{
+    /**
+     * Liefere die Meta-Daten der Resource.
+     *
+     * @return die Meta-Daten oder <code>null</code>, wenn diese (bei einem
+     *         laufenden Download) noch nicht bekannt sind.
+     */
+    public ResourceMetaData getMetaData();
+
+    /**
+     * Übertrage die Daten ab der angegebenen Position in den Ziel-Channel.
+     *
+     * Der Aufruf darf nicht blockieren. Stehen an der angegebenen Position
+     * (noch) keine Daten bereit, so wird einfach 0 geliefert.
+     *
+     * Die Position ist relativ zum Beginn des Contents. Es werden höchstens
+     * count Bytes übertragen, damit kann auch nur ein Teil der Resource 
+     * ausgeliefert werden (Range-Requests).
+     *
+     * @param position die Position innerhalb der Resource, ab welcher übertragen werden soll
+     * @param count die maximale Anzahl zu übertragender Bytes
+     * @param target der Ziel-Channel
+     * @param ioBuffer ein Hilfs-Buffer, welcher von Quellen verwendet werden kann
+     *        die nicht direkt in einen Channel übertragen können. Der Inhalt ist
+     *        nach dem Aufruf undefiniert.
+     *
+     * @return die Anzahl der in den Ziel-Channel geschriebenen Bytes oder -1 wenn
+     *         die Position das Ende der Resource erreicht hat.
+     *
+     * @throws IOException
+     */
+    public long transferTo(long position, long count, WritableByteChannel target, ByteBuffer ioBuffer)
+        throws IOException;
+
+    /**
+     * Warte (asynchron) darauf, dass an der angegebenen Position Daten bereit 
+     * stehen.
+     * 
+     * Liegen an der Position aktuell keine Daten vor, so wird der Callback
+     * registriert und aufgerufen, sobald sich das ändert. Der Aufruf erfolgt
+     * aus einem fremden Thread, der Callback darf also nicht blockieren.
+     * 
+     * @param position
+     * @param callback
+     * 
+     * @return <code>true</code> wenn der Callback registriert wurde, 
+     *         <code>false</code> wenn bereits Daten bereit stehen. Der Callback
+     *         wird in diesem Fall nicht aufgerufen.
+     */
+    public boolean awaitData(long position, Runnable callback);
+
+    /**
+     * Liefere den bereits fertig erzeugten ResponseHeader für die komplette
+     * Resource. Das ist nur für Quellen aus dem Speicher der Fall.
+     *
+     * @param keepAlive soll die Verbindung nach der Response weiter verwendet
+     *        werden?
+     * @return ein eigenständiger Buffer oder <code>null</code>, wenn der 
+     *         Header vom Frontend erzeugt werden muss.
+     */
+    public default ByteBuffer getResponseHeader(boolean keepAlive)
+    {
+        return null;
+    }
+
+    /**
+     * Liefere den Content der Resource als Buffer, sofern dieser komplett im
+     * Speicher liegt. Das Frontend kann ResponseHeader und Content dann mit
+     * einem einzigen gathering write übertragen.
+     *
+     * @return ein eigenständiger Buffer, positioniert auf den Beginn des 
+     *         Contents oder <code>null</code>, wenn der Content nicht im
+     *         Speicher liegt.
+     */
+    public default ByteBuffer getContentBuffer()
+    {
+        return null;
+    }
+}
@@ -0,0 +1,221 @@
+package de.cbfagree.webstart.cache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import de.cbfagree.webstart.backend.ResourceMetaData;
+import de.cbfagree.webstart.backend.WriteThroughBuffer;
+
+/**
+ * Migriert ein Cache-File vom alten in das aktuelle Format.
+ *
+ * Im alten Format wurde die komplette HTTP-Response abgelegt, also der
+ * ResponseHeader gefolgt vom Content im Chunked-Encoding:
+ *
+ * <pre>
+ * HTTP/1.1 200 OK\r\n
+ * Connection: close\r\n
+ * Transfer-Encoding: chunked\r\n
+ * Content-Type: &lt;ContentType&gt;\r\n
+ * \r\n
+ * &lt;Inhalt als Http-Chunks&gt;
+ * </pre>
+ *
+ * Aus dem Header werden StatusCode und ContentType übernommen, der Content
+ * wird "ent-chunked" in ein neues File im aktuellen {@link CacheEntryFormat}
+ * geschrieben. Dieses ersetzt danach atomar das alte File.
+ */
+class LegacyCacheEntryMigration
+{
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private Path stagingFile;
+
+    /**
+     * @param stagingFile das temporäre File für die Migration. Es muss auf dem
+     *        selben Filesystem liegen wie das zu migrierende File.
+     */
+    public LegacyCacheEntryMigration(Path stagingFile)
+    {
+        this.stagingFile = stagingFile;
+    }
+
+    /**
+     * Migriere das angegebene File.
+     *
+     * @param cacheFile
+     * @return der Header des migrierten Eintrages
+     * @throws IOException
+     */
+    public CacheEntryHeader migrate(Path cacheFile) throws IOException
+    {
+        try
+        {
+            CacheEntryHeader header = this.convert(cacheFile);
+            Files.move(this.stagingFile, cacheFile, StandardCopyOption.ATOMIC_MOVE);
+            return header;
+        }
+        finally
+        {
+            Files.deleteIfExists(this.stagingFile);
+        }
+    }
+
+    /**
+     * Konvertiere das angegebene File in das Staging-File.
+     * 
+     * @param cacheFile
+     * @return der Header des konvertierten Eintrages
+     * @throws IOException
+     */
+    private CacheEntryHeader convert(Path cacheFile) throws IOException
+    {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(cacheFile));
+            FileChannel out = FileChannel.open(this.stagingFile, //
+                StandardOpenOption.CREATE_NEW, //
+                StandardOpenOption.WRITE))
+        {
+            int statusCode = this.parseStatusLine(this.readLine(in));
+            String contentType = null;
+
+            String line = this.readLine(in);
+            while (!line.isEmpty())
+            {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Type"))
+                {
+                    contentType = line.substring(colon + 1).trim();
+                }
+                line = this.readLine(in);
+            }
+
+            MessageDigest digest = MessageDigest.getInstance(WriteThroughBuffer.DIGEST_ALGORITHM);
+            long length = this.copyChunkedBody(in, out, digest);
+
+            ResourceMetaData meta = new ResourceMetaData(statusCode, contentType, length, null, 0);
+            CacheEntryHeader header = new CacheEntryHeader(meta, CacheEntryFormat.HEADER_SIZE,
+                Files.getLastModifiedTime(cacheFile).toMillis(), digest.getAlgorithm(), digest.digest());
+            CacheEntryFormat.write(out, header);
+            out.force(false);
+            return header;
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Kopiere den Content im Chunked-Encoding ent-chunked in das Ziel-File.
+     *
+     * @param in
+     * @param out
+     * @param digest
+     * @return die Länge des Contents
+     * @throws IOException
+     */
+    private long copyChunkedBody(InputStream in, FileChannel out, MessageDigest digest) throws IOException
+    {
+        long length = 0;
+        long pos = CacheEntryFormat.HEADER_SIZE;
+        byte[] buf = new byte[0xffff];
+
+        int chunkSize = this.parseChunkSize(this.readLine(in));
+        while (chunkSize > 0)
+        {
+            int remaining = chunkSize;
+            while (remaining > 0)
+            {
+                int read = in.read(buf, 0, Math.min(remaining, buf.length));
+                if (read == -1)
+                {
+                    throw new IOException("unexpected eof in legacy cache entry");
+                }
+
+                digest.update(buf, 0, read);
+                ByteBuffer src = ByteBuffer.wrap(buf, 0, read);
+                while (src.hasRemaining())
+                {
+                    pos += out.write(src, pos);
+                }
+                remaining -= read;
+            }
+            length += chunkSize;
+
+            // das CRLF nach den Daten des Chunks
+            this.readLine(in);
+            chunkSize = this.parseChunkSize(this.readLine(in));
+        }
+        return length;
+    }
+
+    /**
+     * @param line
+     * @return
+     * @throws IOException
+     */
+    private int parseStatusLine(String line) throws IOException
+    {
+        String[] parts = line.split(" ");
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/"))
+        {
+            throw new IOException(String.format("invalid status line '%1$s'", line));
+        }
+        return Integer.parseInt(parts[1]);
+    }
+
+    /**
+     * @param line
+     * @return
+     * @throws IOException
+     */
+    private int parseChunkSize(String line) throws IOException
+    {
+        try
+        {
+            int ext = line.indexOf(';');
+            return Integer.parseInt((ext == -1) ? line.trim() : line.substring(0, ext).trim(), 16);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException(String.format("invalid chunk header '%1$s'", line), e);
+        }
+    }
+
+    /**
+     * Lese eine durch CRLF abgeschlossene Zeile.
+     *
+     * @param in
+     * @return die Zeile ohne CRLF
+     * @throws IOException
+     */
+    private String readLine(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c = in.read();
+        while (c != '\n')
+        {
+            if (c == -1 || line.size() > MAX_LINE_LENGTH)
+            {
+                throw new IOException("unexpected eof in legacy cache entry");
+            }
+            if (c != '\r')
+            {
+                line.write(c);
+            }
+            c = in.read();
+        }
+        return line.toString(StandardCharsets.ISO_8859_1);
+    }
+}
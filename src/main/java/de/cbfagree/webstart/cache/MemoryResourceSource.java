@@ -0,0 +1,102 @@
+package de.cbfagree.webstart.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import de.cbfagree.webstart.backend.ResourceMetaData;
+
+/**
+ * Eine {@link IResourceSource} für eine Resource aus dem {@link MemoryTier}.
+ *
+ * ResponseHeader und Content liegen bereits fertig im Speicher, der Header
+ * in zwei Varianten (mit und ohne keep-alive). Jede Quelle
+ * arbeitet auf eigenen Duplikaten der Buffer, die Inhalte selbst werden von
+ * allen Quellen gemeinsam verwendet und niemals verändert.
+ */
+class MemoryResourceSource implements IResourceSource
+{
+    private ResourceMetaData metaData;
+    private ByteBuffer header;
+    private ByteBuffer keepAliveHeader;
+    private ByteBuffer content;
+    private int contentSize;
+
+    /**
+     * @param metaData
+     * @param header der Header für "Connection: close"
+     * @param keepAliveHeader der Header für "Connection: keep-alive"
+     * @param content
+     */
+    public MemoryResourceSource(ResourceMetaData metaData, ByteBuffer header, ByteBuffer keepAliveHeader,
+        ByteBuffer content)
+    {
+        this.metaData = metaData;
+        this.header = header;
+        this.keepAliveHeader = keepAliveHeader;
+        this.content = content.duplicate();
+        this.contentSize = this.content.limit();
+    }
+
+    /**
+     *
+     */
+    @Override
+    public ResourceMetaData getMetaData()
+    {
+        return this.metaData;
+    }
+
+    /**
+     *
+     */
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target, ByteBuffer ioBuffer)
+        throws IOException
+    {
+        long result = -1;
+        int size = this.contentSize;
+        if (position < size)
+        {
+            this.content.limit((int) Math.min(size, position + count)).position((int) position);
+            result = target.write(this.content);
+            this.content.limit(size);
+        }
+        return result;
+    }
+
+    /**
+     * Die Daten liegen immer komplett vor, hier muss nie gewartet werden.
+     */
+    @Override
+    public boolean awaitData(long position, Runnable callback)
+    {
+        return false;
+    }
+
+    /**
+     *
+     */
+    @Override
+    public ByteBuffer getResponseHeader(boolean keepAlive)
+    {
+        return keepAlive ? this.keepAliveHeader.duplicate() : this.header.duplicate();
+    }
+
+    /**
+     *
+     */
+    @Override
+    public ByteBuffer getContentBuffer()
+    {
+        return this.content.duplicate().position(0);
+    }
+
+    /**
+     *
+     */
+    @Override
+    public void close() throws IOException
+    {
+    }
+}
@@ -0,0 +1,331 @@
+package de.cbfagree.webstart.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import de.cbfagree.webstart.backend.ResourceMetaData;
+import de.cbfagree.webstart.config.CacheConfig;
+import de.cbfagree.webstart.httputils.HttpResponseHeader;
+import de.cbfagree.webstart.messages.MsgFactory;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Hält kleine, häufig angeforderte Resourcen komplett im Speicher.
+ *
+ * Typischerweise sind das die JNLP-Descriptoren und kleine JARs, welche bei
+ * jedem Start einer Anwendung von jedem Client angefordert werden. Für diese
+ * liegen ResponseHeader und Content fertig in (optional direkten) ByteBuffern,
+ * das Frontend kann sie also mit einem einzigen gathering write und ohne 
+ * Zugriff auf das Filesystem ausliefern.
+ *
+ * Ein Eintrag wird erst aufgenommen, wenn er klein genug ist und aus dem Cache
+ * bereits mehrfach angefordert wurde. Ist das Budget erschöpft, so verdrängt
+ * ein neuer Eintrag nur Einträge, welche seltener angefordert wurden als er
+ * selbst.
+ *
+ * Der Lese-Pfad ist lock-frei, nur die (seltene) Aufnahme eines Eintrages ist
+ * synchronisiert.
+ */
+@Log4j2
+class MemoryTier implements MemoryTierMXBean
+{
+    private static final int ADMIT_HITS = 2;
+    private static final String MBEAN_NAME = "de.cbfagree.webstart:type=MemoryTier";
+
+    private long maxSize;
+    private int maxEntrySize;
+    private boolean useDirectBuffers;
+
+    private ConcurrentHashMap<String, MemoryEntry> entries;
+    private AtomicLong usedBytes;
+    private LongAdder hits;
+    private LongAdder misses;
+
+    /**
+     * @param cfg
+     */
+    public MemoryTier(CacheConfig cfg)
+    {
+        this.maxSize = cfg.getMemoryTierSize();
+        this.maxEntrySize = cfg.getMemoryTierMaxEntrySize();
+        this.useDirectBuffers = cfg.isMemoryTierDirect();
+
+        this.entries = new ConcurrentHashMap<>();
+        this.usedBytes = new AtomicLong(0);
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+
+        this.registerMBean();
+    }
+
+    /**
+     * Liefere eine Quelle für die angeforderte Resource.
+     *
+     * @param name
+     * @return die Quelle oder <code>null</code>, wenn die Resource nicht im
+     *         Speicher liegt.
+     */
+    public IResourceSource get(String name)
+    {
+        MemoryEntry entry = this.entries.get(name);
+        if (entry == null)
+        {
+            this.misses.increment();
+            return null;
+        }
+
+        this.hits.increment();
+        entry.hits.increment();
+        return new MemoryResourceSource(entry.metaData, entry.header, entry.keepAliveHeader, entry.content);
+    }
+
+    /**
+     * Kommt eine Resource für die Aufnahme in Frage?
+     *
+     * @param contentLength
+     * @param hitCount die Anzahl der Anforderungen aus dem Cache
+     * @return
+     */
+    public boolean isCandidate(long contentLength, int hitCount)
+    {
+        return hitCount >= ADMIT_HITS && contentLength >= 0 && contentLength <= this.maxEntrySize;
+    }
+
+    /**
+     * Nimm den Content eines Cache-Files in den Speicher auf. 
+     *
+     * @param name
+     * @param file
+     * @param header der Header des Cache-Files
+     * @param hitCount die Anzahl der Anforderungen aus dem Cache
+     * @throws IOException
+     */
+    public synchronized void admit(String name, File file, CacheEntryHeader header, int hitCount) throws IOException
+    {
+        if (this.entries.containsKey(name))
+        {
+            return;
+        }
+
+        ResourceMetaData metaData = header.metaData();
+        ByteBuffer responseHeader = this.copyOf(HttpResponseHeader.forResource(metaData, false).render());
+        ByteBuffer keepAliveHeader = this.copyOf(HttpResponseHeader.forResource(metaData, true).render());
+        ByteBuffer content = this.allocate((int) metaData.contentLength());
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+        {
+            while (content.hasRemaining())
+            {
+                if (channel.read(content, header.bodyOffset() + content.position()) == -1)
+                {
+                    throw new IOException(String.format("truncated cache entry '%1$s'", name));
+                }
+            }
+        }
+        content.flip();
+
+        MemoryEntry entry = new MemoryEntry(metaData, responseHeader.asReadOnlyBuffer(),
+            keepAliveHeader.asReadOnlyBuffer(), content.asReadOnlyBuffer());
+        entry.hits.add(hitCount);
+        if (this.makeRoom(entry.size(), hitCount))
+        {
+            this.entries.put(name, entry);
+            this.usedBytes.addAndGet(entry.size());
+            log.debug(MsgFactory.get(this.getClass(), EMsgIds.ENTRY_ADMITTED, name, entry.size()));
+        }
+    }
+
+    /**
+     * Entferne eine Resource aus dem Speicher.
+     *
+     * @param name
+     */
+    public void remove(String name)
+    {
+        MemoryEntry entry = this.entries.remove(name);
+        if (entry != null)
+        {
+            this.usedBytes.addAndGet(-entry.size());
+        }
+    }
+
+    /**
+     * Verdränge so lange die am seltensten angeforderten Einträge, bis der
+     * benötigte Platz frei ist. Einträge, welche häufiger angefordert wurden
+     * als der neue Eintrag, werden nicht verdrängt.
+     *
+     * @param size
+     * @param hitCount
+     * @return <code>false</code>, wenn der Platz nicht frei gemacht werden kann
+     */
+    private boolean makeRoom(long size, int hitCount)
+    {
+        if (size > this.maxSize)
+        {
+            return false;
+        }
+
+        while (this.usedBytes.get() + size > this.maxSize)
+        {
+            Map.Entry<String, MemoryEntry> victim = null;
+            for (Map.Entry<String, MemoryEntry> entry : this.entries.entrySet())
+            {
+                if (victim == null || entry.getValue().hits.sum() < victim.getValue().hits.sum())
+                {
+                    victim = entry;
+                }
+            }
+
+            if (victim == null || victim.getValue().hits.sum() >= hitCount)
+            {
+                return false;
+            }
+            this.remove(victim.getKey());
+        }
+        return true;
+    }
+
+    /**
+     * @param size
+     * @return
+     */
+    private ByteBuffer allocate(int size)
+    {
+        return this.useDirectBuffers ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /**
+     * @param src
+     * @return
+     */
+    private ByteBuffer copyOf(ByteBuffer src)
+    {
+        return this.allocate(src.remaining()).put(src).flip();
+    }
+
+    /**
+     * 
+     */
+    private void registerMBean()
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(MBEAN_NAME));
+        }
+        catch (JMException e)
+        {
+            log.warn(MsgFactory.get(this.getClass(), EMsgIds.ERR_REGISTER_MBEAN, MBEAN_NAME, e));
+        }
+    }
+
+    /**
+     *
+     */
+    @Override
+    public long getHits()
+    {
+        return this.hits.sum();
+    }
+
+    /**
+     *
+     */
+    @Override
+    public long getMisses()
+    {
+        return this.misses.sum();
+    }
+
+    /**
+     *
+     */
+    @Override
+    public double getHitRatio()
+    {
+        long hitCount = this.hits.sum();
+        long total = hitCount + this.misses.sum();
+        return (total == 0) ? 0.0 : (double) hitCount / total;
+    }
+
+    /**
+     *
+     */
+    @Override
+    public int getEntryCount()
+    {
+        return this.entries.size();
+    }
+
+    /**
+     *
+     */
+    @Override
+    public long getUsedBytes()
+    {
+        return this.usedBytes.get();
+    }
+
+    /**
+     *
+     */
+    @Override
+    public long getMaxBytes()
+    {
+        return this.maxSize;
+    }
+
+    /**
+     * Ein Eintrag im Speicher
+     */
+    private static class MemoryEntry
+    {
+        private ResourceMetaData metaData;
+        private ByteBuffer header;
+        private ByteBuffer keepAliveHeader;
+        private ByteBuffer content;
+        private LongAdder hits;
+
+        /**
+         * @param metaData
+         * @param header
+         * @param keepAliveHeader
+         * @param content
+         */
+        public MemoryEntry(ResourceMetaData metaData, ByteBuffer header, ByteBuffer keepAliveHeader,
+            ByteBuffer content)
+        {
+            this.metaData = metaData;
+            this.header = header;
+            this.keepAliveHeader = keepAliveHeader;
+            this.content = content;
+            this.hits = new LongAdder();
+        }
+
+        /**
+         * @return der belegte Speicher
+         */
+        public long size()
+        {
+            return this.header.capacity() + this.keepAliveHeader.capacity() + this.content.capacity();
+        }
+    }
+
+    /**
+     *
+     */
+    private enum EMsgIds
+    {
+        ENTRY_ADMITTED, //
+        ERR_REGISTER_MBEAN, //
+    }
+}
@@ -0,0 +1,40 @@
+package de.cbfagree.webstart.cache;
+
+/**
+ * Die Management-Schnittstelle des {@link MemoryTier}. Sie wird unter dem
+ * Namen <code>de.cbfagree.webstart:type=MemoryTier</code> im 
+ * Platform-MBeanServer registriert.
+ */
+public interface MemoryTierMXBean
+{
+    /**
+     * @return die Anzahl der Anfragen, welche aus dem Speicher bedient wurden
+     */
+    public long getHits();
+
+    /**
+     * @return die Anzahl der Anfragen, welche nicht aus dem Speicher bedient
+     *         werden konnten
+     */
+    public long getMisses();
+
+    /**
+     * @return der Anteil der Anfragen, welche aus dem Speicher bedient wurden
+     */
+    public double getHitRatio();
+
+    /**
+     * @return die Anzahl der Einträge im Speicher
+     */
+    public int getEntryCount();
+
+    /**
+     * @return der belegte Speicher in Bytes
+     */
+    public long getUsedBytes();
+
+    /**
+     * @return der maximal verwendbare Speicher in Bytes
+     */
+    public long getMaxBytes();
+}
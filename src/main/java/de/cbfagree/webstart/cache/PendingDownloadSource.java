@@ -0,0 +1,114 @@
+package de.cbfagree.webstart.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import de.cbfagree.webstart.backend.IBufferListener;
+import de.cbfagree.webstart.backend.ResourceMetaData;
+import de.cbfagree.webstart.backend.WriteThroughBuffer;
+
+/**
+ * <p>
+ * Die {@link PendingDownloadSource} kapselt den Zugriff auf einen laufenden
+ * Download innerhalb des Proxies.
+ * </p>
+ *
+ * <p>
+ * Sinn und Zweck des ganzen ist es, die bereits verfügbaren Daten eines
+ * Downloads ausliefern zu können. Der Download wird durch eine Instanz
+ * von {@link WriteThroughBuffer} beschrieben.
+ * </p>
+ *
+ * <p>
+ * Sofern der Buffer noch nicht bereit ist oder an der angeforderten Position
+ * noch keine Daten vorliegen, wird einfach 0 geliefert. Die Quelle ist also
+ * zwingend non-blocking.
+ * </p>
+ *
+ * <p>
+ * Da der {@link WriteThroughBuffer} den Download in ein Staging-File schreibt,
+ * werden die bereits empfangenen Daten direkt aus diesem File in den
+ * Ziel-Channel übertragen, der ioBuffer wird also nicht benötigt.
+ * </p>
+ * 
+ * <p>
+ * Die Quelle hält für ihre Lebensdauer eine Referenz auf den Buffer, diese
+ * muss beim erzeugen bereits angefordert worden sein und wird beim schließen
+ * wieder freigegeben.
+ * </p>
+ * 
+ * <p>
+ * Liegen an der aktuellen Position keine Daten vor, so kann sich der Aufrufer
+ * via {@link #awaitData(long, Runnable)} benachrichtigen lassen, sobald der
+ * Download weitere Daten geliefert hat.
+ * </p>
+ */
+class PendingDownloadSource implements IResourceSource
+{
+    private WriteThroughBuffer buffer;
+    private IBufferListener listener;
+
+    /**
+     * @param buffer ein Buffer, auf welchen bereits via 
+     *        {@link WriteThroughBuffer#retain()} eine Referenz angefordert wurde
+     */
+    public PendingDownloadSource(WriteThroughBuffer buffer)
+    {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Die Meta-Daten sind erst bekannt, wenn der Buffer bereit zum lesen ist.
+     */
+    @Override
+    public ResourceMetaData getMetaData()
+    {
+        return this.buffer.getMetaData();
+    }
+
+    /**
+     *
+     */
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target, ByteBuffer ioBuffer)
+        throws IOException
+    {
+        long result = 0;
+        if (this.buffer.isReady())
+        {
+            result = this.buffer.transferTo(position, count, target);
+        }
+        return result;
+    }
+
+    /**
+     *
+     */
+    @Override
+    public boolean awaitData(long position, Runnable callback)
+    {
+        this.listener = buffer -> callback.run();
+        return this.buffer.addListener(position, this.listener);
+    }
+
+    /**
+     * Entferne einen eventuell noch registrierten Listener und gib die 
+     * Referenz auf den Buffer frei.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (this.listener != null)
+        {
+            this.buffer.removeListener(this.listener);
+            this.listener = null;
+        }
+
+        if (this.buffer != null)
+        {
+            this.buffer.release();
+            this.buffer = null;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package de.cbfagree.webstart.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import de.cbfagree.webstart.config.RevalidateConfig;
+
+/**
+ * Liefert die TTL eines Cache-Eintrages anhand der konfigurierten Regeln.
+ *
+ * Die TTL wird nur einmal beim Anlegen eines Eintrages im Repo ermittelt, die
+ * regulären Ausdrücke werden also nicht bei jedem Treffer ausgewertet.
+ */
+class RevalidationPolicy
+{
+    public static final long NEVER = -1;
+
+    private List<Rule> rules;
+
+    /**
+     * @param cfg
+     */
+    public RevalidationPolicy(List<RevalidateConfig> cfg)
+    {
+        this.rules = new ArrayList<>(cfg.size());
+        for (RevalidateConfig ruleCfg : cfg)
+        {
+            this.rules.add(new Rule(Pattern.compile(ruleCfg.getPattern()), ruleCfg.getTtl()));
+        }
+    }
+
+    /**
+     * @param resourceName
+     * @return die TTL der ersten passenden Regel in Millisekunden oder
+     *         {@link #NEVER}, wenn keine Regel passt.
+     */
+    public long getTtl(String resourceName)
+    {
+        for (Rule rule : this.rules)
+        {
+            if (rule.pattern().matcher(resourceName).matches())
+            {
+                return rule.ttl();
+            }
+        }
+        return NEVER;
+    }
+
+    /**
+     *
+     */
+    private static record Rule(Pattern pattern, long ttl)
+    {
+    }
+}
@@ -0,0 +1,73 @@
+package de.cbfagree.webstart.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import de.cbfagree.webstart.backend.ResourceMetaData;
+
+/**
+ * Eine {@link IResourceSource} für eine Response ohne Content, welche nur aus
+ * dem StatusCode bzw. den Meta-Daten besteht. Damit beantwortet das Frontend
+ * Requests, für welche kein Content aus dem Cache gelesen werden muss.
+ * 
+ * Auch gecachte Fehler-Responses des Backends werden so ausgeliefert. Deren
+ * Content wird nicht aufbewahrt, die Clients bekommen sie also ohne Content.
+ */
+public class StatusResponseSource implements IResourceSource
+{
+    private ResourceMetaData metaData;
+
+    /**
+     * @param statusCode
+     */
+    public StatusResponseSource(int statusCode)
+    {
+        this.metaData = new ResourceMetaData(statusCode, null, 0, null, 0);
+    }
+
+    /**
+     * @param metaData die Meta-Daten einer Resource aus dem Cache bzw. einer
+     *        Fehler-Response mit der Content-Länge 0
+     */
+    public StatusResponseSource(ResourceMetaData metaData)
+    {
+        this.metaData = metaData;
+    }
+
+    /**
+     *
+     */
+    @Override
+    public ResourceMetaData getMetaData()
+    {
+        return this.metaData;
+    }
+
+    /**
+     * Es gibt keinen Content
+     */
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target, ByteBuffer ioBuffer)
+        throws IOException
+    {
+        return -1;
+    }
+
+    /**
+     * Es gibt keinen Content, hier muss nie gewartet werden.
+     */
+    @Override
+    public boolean awaitData(long position, Runnable callback)
+    {
+        return false;
+    }
+
+    /**
+     *
+     */
+    @Override
+    public void close() throws IOException
+    {
+    }
+}
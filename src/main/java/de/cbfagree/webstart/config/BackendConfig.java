@@ -3,6 +3,7 @@ package de.cbfagree.webstart.config;
 import java.net.URL;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
 import de.cbfagree.webstart.config.ConfigException.EMsgId;
 import lombok.AccessLevel;
@@ -16,6 +17,36 @@ import lombok.ToString;
 @ToString
 public class BackendConfig
 {
+    /**
+     * Die möglichen Implementierungen der Downloads
+     */
+    public enum EEngine
+    {
+        /**
+         * Jeder Download belegt einen Worker-Thread mit einer blockierenden
+         * HttpURLConnection. Die Anzahl der Threads ist durch die Anzahl der
+         * CPUs begrenzt.
+         */
+        @JsonProperty("threads")
+        THREADS, //
+
+        /**
+         * Die Downloads laufen asynchron über einen HttpClient, ggf. per
+         * HTTP/2 über wenige Connections. maxThreads begrenzt die Anzahl
+         * paralleler Downloads.
+         */
+        @JsonProperty("async")
+        ASYNC, //
+
+        /**
+         * Jeder Download läuft blockierend auf einem eigenen virtuellen 
+         * Thread (ab Java 21, sonst auf Platform-Threads). maxThreads 
+         * begrenzt die Anzahl der Connections zum Backend.
+         */
+        @JsonProperty("virtual")
+        VIRTUAL, //
+    }
+
     @JsonProperty("baseUrl")
     private URL baseUrl;
 
@@ -25,12 +56,81 @@ public class BackendConfig
     @JsonProperty("readTimeout")
     private int readTimeout = 1000;
 
+    @JsonProperty("engine")
+    private EEngine engine = EEngine.THREADS;
+
     @JsonProperty("maxThreads")
     private int maxThreads = 4;
 
+    /**
+     * Soll die Anzahl gleichzeitiger Downloads zur Laufzeit an die Last des
+     * Backends angepasst werden? maxThreads ist dann die Obergrenze.
+     */
+    @JsonProperty("adaptiveLimit")
+    private boolean adaptiveLimit = false;
+
+    /**
+     * Die Untergrenze der Anzahl gleichzeitiger Downloads bei adaptiveLimit
+     */
+    @JsonProperty("minThreads")
+    private int minThreads = 1;
+
     @JsonProperty("httpProxy")
     private String httpProxy = "NONE";
 
+    /**
+     * Die maximale Anzahl von Downloads, welche auf einen freien Worker 
+     * warten. Weitere Downloads werden mit "503 Service Unavailable" 
+     * abgewiesen.
+     */
+    @JsonProperty("queueSize")
+    private int queueSize = 1000;
+
+    /**
+     * Die maximale Größe einer "kleinen" Resource. Kleine Resourcen werden
+     * vor großen Resourcen geladen.
+     */
+    @JsonProperty("smallResourceSize")
+    @JsonDeserialize(using = HumanReadableSizeDeserializer.class)
+    private int smallResourceSize = 256 * 1024;
+
+    /**
+     * Die Anzahl der Worker, welche nur JNLP-Files und kleine Resourcen 
+     * laden. Es bleibt immer mindestens ein Worker für alle Resourcen übrig.
+     */
+    @JsonProperty("reservedWorkers")
+    private int reservedWorkers = 1;
+
+    /**
+     * Die maximale Anzahl der Segmente, in welchen große Resourcen parallel
+     * geladen werden. Jedes weitere Segment belegt einen freien Platz im
+     * Limit der Engine. 1 schaltet segmentierte Downloads ab.
+     */
+    @JsonProperty("segments")
+    private int segments = 4;
+
+    /**
+     * Die minimale Größe einer Resource für einen segmentierten Download
+     */
+    @JsonProperty("segmentThreshold")
+    @JsonDeserialize(using = HumanReadableLongSizeDeserializer.class)
+    private long segmentThreshold = 32 * 1024 * 1024;
+
+    /**
+     * Die maximale Anzahl von Versuchen, einen abgebrochenen Download ohne
+     * Fortschritt fortzusetzen. 0 schaltet das Fortsetzen ab.
+     */
+    @JsonProperty("resumeAttempts")
+    private int resumeAttempts = 3;
+
+    /**
+     * Die Wartezeit in Millisekunden vor dem ersten Versuch, einen 
+     * abgebrochenen Download fortzusetzen. Sie verdoppelt sich mit jedem
+     * weiteren Versuch.
+     */
+    @JsonProperty("resumeBackoff")
+    private long resumeBackoff = 500;
+
     /**
      * validiere das Konfigurations-Objekt.
      * 
@@ -53,11 +153,56 @@ public class BackendConfig
             throw new ConfigException(EMsgId.ERR_INV_BACKEND_READ_TO, this.readTimeout);
         }
 
+        if (this.engine == null)
+        {
+            throw new ConfigException(EMsgId.ERR_INV_BACKEND_ENGINE, this.engine);
+        }
+
         if (this.maxThreads < 1)
         {
             throw new ConfigException(EMsgId.ERR_INV_BACKEND_MAX_THREADS, this.maxThreads);
         }
 
+        if (this.minThreads < 1 || this.minThreads > this.maxThreads)
+        {
+            throw new ConfigException(EMsgId.ERR_INV_BACKEND_MIN_THREADS, this.minThreads, this.maxThreads);
+        }
+
+        if (this.queueSize < 1)
+        {
+            throw new ConfigException(EMsgId.ERR_INV_BACKEND_QUEUE_SIZE, this.queueSize);
+        }
+
+        if (this.smallResourceSize < 0)
+        {
+            throw new ConfigException(EMsgId.ERR_INV_BACKEND_SMALL_RESOURCE_SIZE, this.smallResourceSize);
+        }
+
+        if (this.reservedWorkers < 0)
+        {
+            throw new ConfigException(EMsgId.ERR_INV_BACKEND_RESERVED_WORKERS, this.reservedWorkers);
+        }
+
+        if (this.segments < 1)
+        {
+            throw new ConfigException(EMsgId.ERR_INV_BACKEND_SEGMENTS, this.segments);
+        }
+
+        if (this.segmentThreshold < 1)
+        {
+            throw new ConfigException(EMsgId.ERR_INV_BACKEND_SEGMENT_THRESHOLD, this.segmentThreshold);
+        }
+
+        if (this.resumeAttempts < 0)
+        {
+            throw new ConfigException(EMsgId.ERR_INV_BACKEND_RESUME_ATTEMPTS, this.resumeAttempts);
+        }
+
+        if (this.resumeBackoff < 1)
+        {
+            throw new ConfigException(EMsgId.ERR_INV_BACKEND_RESUME_BACKOFF, this.resumeBackoff);
+        }
+
         // TODO: httpProxy validieren
     }
 }
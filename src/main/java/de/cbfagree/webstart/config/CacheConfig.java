@@ -1,8 +1,10 @@
 package de.cbfagree.webstart.config;
 
 import java.io.File;
+import java.util.List;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 
 import de.cbfagree.webstart.config.ConfigException.EMsgId;
 import lombok.AccessLevel;
@@ -19,6 +21,49 @@ public class CacheConfig
     @JsonProperty("basePath")
     private File basePath;
 
+    /**
+     * Die maximale Größe des Caches auf der Platte. 0 steht für unbegrenzt.
+     */
+    @JsonProperty("maxSize")
+    @JsonDeserialize(using = HumanReadableLongSizeDeserializer.class)
+    private long maxSize = 0;
+
+    /**
+     * Das Budget für kleine, häufig angeforderte Resourcen im Speicher. 0
+     * schaltet den Speicher-Cache ab.
+     */
+    @JsonProperty("memoryTierSize")
+    @JsonDeserialize(using = HumanReadableLongSizeDeserializer.class)
+    private long memoryTierSize = 0;
+
+    /**
+     * Die maximale Größe einer Resource im Speicher-Cache
+     */
+    @JsonProperty("memoryTierMaxEntrySize")
+    @JsonDeserialize(using = HumanReadableSizeDeserializer.class)
+    private int memoryTierMaxEntrySize = 64 * 1024;
+
+    /**
+     * Sollen für den Speicher-Cache direkte ByteBuffer verwendet werden?
+     */
+    @JsonProperty("memoryTierDirect")
+    private boolean memoryTierDirect = false;
+
+    /**
+     * Die Regeln für die Revalidierung von Cache-Einträgen. Es gilt die erste
+     * passende Regel. Resourcen ohne passende Regel werden niemals 
+     * revalidiert.
+     */
+    @JsonProperty("revalidate")
+    private List<RevalidateConfig> revalidate = List.of();
+
+    /**
+     * Die Zeit in Millisekunden, für welche Fehler-Responses des Backends
+     * gecached werden. 0 schaltet das negative Caching ab.
+     */
+    @JsonProperty("negativeTtl")
+    private long negativeTtl = 10000;
+
     /**
      * @throws ConfigException
      */
@@ -29,5 +74,29 @@ public class CacheConfig
             throw new ConfigException(EMsgId.ERR_NO_CACHE_BASE);
         }
 
+        if (this.maxSize < 0)
+        {
+            throw new ConfigException(EMsgId.ERR_INV_CACHE_MAX_SIZE, this.maxSize);
+        }
+
+        if (this.memoryTierSize < 0)
+        {
+            throw new ConfigException(EMsgId.ERR_INV_MEMORY_TIER_SIZE, this.memoryTierSize);
+        }
+
+        if (this.memoryTierMaxEntrySize < 1)
+        {
+            throw new ConfigException(EMsgId.ERR_INV_MEMORY_TIER_ENTRY_SIZE, this.memoryTierMaxEntrySize);
+        }
+
+        if (this.negativeTtl < 0)
+        {
+            throw new ConfigException(EMsgId.ERR_INV_NEGATIVE_TTL, this.negativeTtl);
+        }
+
+        for (RevalidateConfig rule : this.revalidate)
+        {
+            rule.validate();
+        }
     }
 }
@@ -28,12 +28,31 @@ public class ConfigException extends Exception
         ERR_NO_BACKEND_URL, //
         ERR_INV_BACKEND_CONN_TO, //
         ERR_INV_BACKEND_READ_TO, //
+        ERR_INV_BACKEND_ENGINE, //
         ERR_INV_BACKEND_MAX_THREADS, //
+        ERR_INV_BACKEND_MIN_THREADS, //
+        ERR_INV_BACKEND_QUEUE_SIZE, //
+        ERR_INV_BACKEND_SMALL_RESOURCE_SIZE, //
+        ERR_INV_BACKEND_RESERVED_WORKERS, //
+        ERR_INV_BACKEND_SEGMENTS, //
+        ERR_INV_BACKEND_SEGMENT_THRESHOLD, //
+        ERR_INV_BACKEND_RESUME_ATTEMPTS, //
+        ERR_INV_BACKEND_RESUME_BACKOFF, //
         
         ERR_NO_CACHE_BASE, //
+        ERR_INV_CACHE_MAX_SIZE, //
+        ERR_INV_MEMORY_TIER_SIZE, //
+        ERR_INV_MEMORY_TIER_ENTRY_SIZE, //
+        ERR_INV_REVALIDATE_PATTERN, //
+        ERR_INV_REVALIDATE_TTL, //
+        ERR_INV_NEGATIVE_TTL, //
         
         ERR_FRONTEND_BAD_PORT, //
         ERR_FRONTEND_BAD_BACKLOG, //
         ERR_FRONTEND_BAD_IO_BUFFER, //
+        ERR_FRONTEND_BAD_KEEP_ALIVE_TO, //
+        ERR_FRONTEND_BAD_MAX_REQUESTS, //
+        ERR_FRONTEND_BAD_MAX_HEADER_SIZE, //
+        ERR_FRONTEND_BAD_SELECTOR_THREADS, //
     }
 }
@@ -22,6 +22,35 @@ public class FrontendConfig
     @JsonDeserialize(using = HumanReadableSizeDeserializer.class)
     private int ioBufferSize = 0xFFFF;
 
+    /**
+     * Die Zeit in Millisekunden, nach welcher eine Verbindung ohne neuen 
+     * Request geschlossen wird.
+     */
+    @JsonProperty("keepAliveTimeout")
+    private int keepAliveTimeout = 15000;
+
+    /**
+     * Die maximale Anzahl von Requests je Verbindung. 1 schaltet keep-alive ab.
+     */
+    @JsonProperty("maxKeepAliveRequests")
+    private int maxKeepAliveRequests = 100;
+
+    /**
+     * Die maximale Größe eines RequestHeaders. Größere Requests werden mit
+     * "431 Request Header Fields Too Large" abgewiesen.
+     */
+    @JsonProperty("maxRequestHeaderSize")
+    @JsonDeserialize(using = HumanReadableSizeDeserializer.class)
+    private int maxRequestHeaderSize = 8 * 1024;
+
+    /**
+     * Die Anzahl der Selector-Threads. Bei 1 (Default) erledigt ein einziger
+     * Thread alles, bei mehr als 1 nimmt ein eigener Acceptor-Thread die 
+     * Verbindungen an und verteilt sie auf die Selector-Threads.
+     */
+    @JsonProperty("selectorThreads")
+    private int selectorThreads = 1;
+
     public void validate() throws ConfigException
     {
 
@@ -39,5 +68,25 @@ public class FrontendConfig
         {
             throw new ConfigException(EMsgId.ERR_FRONTEND_BAD_IO_BUFFER, this.ioBufferSize);
         }
+
+        if (this.keepAliveTimeout < 1)
+        {
+            throw new ConfigException(EMsgId.ERR_FRONTEND_BAD_KEEP_ALIVE_TO, this.keepAliveTimeout);
+        }
+
+        if (this.maxKeepAliveRequests < 1)
+        {
+            throw new ConfigException(EMsgId.ERR_FRONTEND_BAD_MAX_REQUESTS, this.maxKeepAliveRequests);
+        }
+
+        if (this.maxRequestHeaderSize < 256)
+        {
+            throw new ConfigException(EMsgId.ERR_FRONTEND_BAD_MAX_HEADER_SIZE, this.maxRequestHeaderSize);
+        }
+
+        if (this.selectorThreads < 1)
+        {
+            throw new ConfigException(EMsgId.ERR_FRONTEND_BAD_SELECTOR_THREADS, this.selectorThreads);
+        }
     }
 }
@@ -0,0 +1,51 @@
+package de.cbfagree.webstart.config;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+
+/**
+ * Wie der {@link HumanReadableSizeDeserializer}, allerdings für Größen-Angaben,
+ * welche nicht mehr in einen int passen (etwa "20GB").
+ * 
+ * Um den Deserializer verwenden zu können, ist das entsprechende 
+ * Json-Property zusätzlich folgendermassen zu annotieren:
+ * 
+ * <pre>
+ *  @JsonDeserialize(using = HumanReadableLongSizeDeserializer.class)
+ *  </pre>
+ */
+public class HumanReadableLongSizeDeserializer extends StdDeserializer<Long>
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 
+     */
+    public HumanReadableLongSizeDeserializer()
+    {
+        this(null);
+    }
+
+    /**
+     * @param vc
+     */
+    public HumanReadableLongSizeDeserializer(Class<?> vc)
+    {
+        super(vc);
+    }
+
+    /**
+     *
+     */
+    @Override
+    public Long deserialize(JsonParser jp, DeserializationContext ctxt) throws IOException, JsonProcessingException
+    {
+        JsonNode node = jp.getCodec().readTree(jp);
+        return HumanReadableSizeDeserializer.parseSize(node.asText().toLowerCase());
+    }
+}
@@ -20,7 +20,8 @@ import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
  * reicht auch die Angabe "8MB".
  * 
  * Sollte kein Suffix vorhanden sein, so wird einfach der Wert als solcher
- * verwendet.
+ * verwendet. Werte, welche nicht in einen int passen, werden abgelehnt. Für 
+ * größere Werte ist der {@link HumanReadableLongSizeDeserializer} zu verwenden.
  * 
  * Um den Deserializer verwenden zu können, ist das entsprechende 
  * Json-Property zusätzlich folgendermassen zu annotieren:
@@ -35,14 +36,14 @@ public class HumanReadableSizeDeserializer extends StdDeserializer<Integer>
 
     // Die Map der möglichen Suffixe. Als Wert ist der Multiplikator hinterlegt,
     // welcher bei der Berechnung heran gezogen werden soll. 
-    private static final Map<String, Integer> suffixToMultiplier = Map.ofEntries(//
-        new AbstractMap.SimpleEntry<String, Integer>("", 1), //
-        new AbstractMap.SimpleEntry<String, Integer>("b", 1), //
-        new AbstractMap.SimpleEntry<String, Integer>("kb", 1024), //
-        new AbstractMap.SimpleEntry<String, Integer>("mb", 1024 * 1024), //
-        new AbstractMap.SimpleEntry<String, Integer>("gb", 1024 * 1024 * 1024), //
-        new AbstractMap.SimpleEntry<String, Integer>("tb", 1024 * 1024 * 1024 * 1024), //
-        new AbstractMap.SimpleEntry<String, Integer>("pb", 1024 * 1024 * 1024 * 1024 * 1024) //
+    private static final Map<String, Long> suffixToMultiplier = Map.ofEntries(//
+        new AbstractMap.SimpleEntry<String, Long>("", 1L), //
+        new AbstractMap.SimpleEntry<String, Long>("b", 1L), //
+        new AbstractMap.SimpleEntry<String, Long>("kb", 1024L), //
+        new AbstractMap.SimpleEntry<String, Long>("mb", 1024L * 1024), //
+        new AbstractMap.SimpleEntry<String, Long>("gb", 1024L * 1024 * 1024), //
+        new AbstractMap.SimpleEntry<String, Long>("tb", 1024L * 1024 * 1024 * 1024), //
+        new AbstractMap.SimpleEntry<String, Long>("pb", 1024L * 1024 * 1024 * 1024 * 1024) //
     );
 
     private static final Pattern PARSER_PATTERN = Pattern.compile("([0-9]*)([a-z]*)");
@@ -72,6 +73,23 @@ public class HumanReadableSizeDeserializer extends StdDeserializer<Integer>
         JsonNode node = jp.getCodec().readTree(jp);
         String val = node.asText().toLowerCase();
 
+        long result = HumanReadableSizeDeserializer.parseSize(val);
+        if (result > Integer.MAX_VALUE)
+        {
+            throw new JsonParseException(String.format("Der Wert '%1$s' ist zu groß", val));
+        }
+        return (int) result;
+    }
+
+    /**
+     * Parse eine Menschen-lesbare Größen-Angabe
+     * 
+     * @param val der Wert in Kleinbuchstaben
+     * @return
+     * @throws JsonParseException
+     */
+    static long parseSize(String val) throws JsonParseException
+    {
         Matcher m = PARSER_PATTERN.matcher(val);
         m.find();
 
@@ -83,11 +101,19 @@ public class HumanReadableSizeDeserializer extends StdDeserializer<Integer>
             throw new JsonParseException(String.format("Der Wert '%1$s' enthält keinen numerischen Anteil", val));
         }
 
-        Integer multiplier = suffixToMultiplier.get(suffix);
+        Long multiplier = suffixToMultiplier.get(suffix);
         if (multiplier == null)
         {
             throw new JsonParseException(String.format("Der Suffix '%1$s' im Wert '%2$s' ist ungültig", suffix, val));
         }
-        return Integer.parseInt(numVal) * multiplier.intValue();
+
+        try
+        {
+            return Math.multiplyExact(Long.parseLong(numVal), multiplier.longValue());
+        }
+        catch (ArithmeticException | NumberFormatException e)
+        {
+            throw new JsonParseException(String.format("Der Wert '%1$s' ist zu groß", val));
+        }
     }
 }
@@ -0,0 +1,61 @@
+package de.cbfagree.webstart.config;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import de.cbfagree.webstart.config.ConfigException.EMsgId;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Eine Regel für die Revalidierung von Cache-Einträgen.
+ *
+ * Alle Resourcen, deren Pfad auf das Pattern passt, werden nach Ablauf der
+ * TTL im Hintergrund gegen das Backend geprüft.
+ */
+@Getter(AccessLevel.PUBLIC)
+@ToString
+public class RevalidateConfig
+{
+    /**
+     * Ein regulärer Ausdruck, welcher auf den kompletten Pfad der Resource
+     * passen muss.
+     */
+    @JsonProperty("pattern")
+    private String pattern;
+
+    /**
+     * Die Zeit in Millisekunden, nach welcher ein Cache-Eintrag revalidiert
+     * wird.
+     */
+    @JsonProperty("ttl")
+    private long ttl;
+
+    /**
+     * @throws ConfigException
+     */
+    public void validate() throws ConfigException
+    {
+        if (this.pattern == null)
+        {
+            throw new ConfigException(EMsgId.ERR_INV_REVALIDATE_PATTERN, this.pattern);
+        }
+
+        try
+        {
+            Pattern.compile(this.pattern);
+        }
+        catch (PatternSyntaxException e)
+        {
+            throw new ConfigException(e, EMsgId.ERR_INV_REVALIDATE_PATTERN, this.pattern);
+        }
+
+        if (this.ttl < 1)
+        {
+            throw new ConfigException(EMsgId.ERR_INV_REVALIDATE_TTL, this.pattern, this.ttl);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package de.cbfagree.webstart.frontend;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import de.cbfagree.webstart.config.FrontendConfig;
+import de.cbfagree.webstart.messages.MsgFactory;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Nimmt im Multi-Reactor-Modus die Verbindungen der Clients an und verteilt
+ * sie reihum an die {@link MainSelector}.
+ *
+ * Der Acceptor macht nichts anderes als Verbindungen anzunehmen, er blockiert
+ * also einfach im accept(). Ab der Übergabe gehört eine Verbindung für ihre
+ * gesamte Lebenszeit genau einem Selector.
+ */
+@Log4j2
+class Acceptor implements Runnable
+{
+    /**
+     * Die Wartezeit nach einem gescheiterten accept() in Millisekunden
+     */
+    private static final long ACCEPT_BACKOFF = 100;
+
+    private FrontendConfig config;
+    private MainSelector[] selectors;
+    private int next;
+
+    /**
+     * @param cfg
+     * @param selectors
+     */
+    public Acceptor(FrontendConfig cfg, MainSelector[] selectors)
+    {
+        this.config = cfg;
+        this.selectors = selectors;
+        this.next = 0;
+    }
+
+    /**
+     * Die AcceptLoop
+     * 
+     * Ist der ServerSocket geschlossen, so wird die Loop beendet. Nach allen
+     * anderen Fehlern (etwa wenn keine File-Deskriptoren mehr frei sind)
+     * wird kurz gewartet, da ein sofort wiederholtes accept() in der Regel
+     * gleich wieder scheitert.
+     */
+    @Override
+    public void run()
+    {
+        Thread.currentThread().setName("acceptor-thread");
+        try (ServerSocketChannel serverSocketChannel = MainSelector.openServerSocket(this.config))
+        {
+            // Lädt zugleich die Messages, nach einem EMFILE ginge das nicht mehr
+            log.info(MsgFactory.get(this.getClass(), EMsgIds.ACCEPTOR_STARTED, this.config.getPort(),
+                this.selectors.length));
+            while (!Thread.currentThread().isInterrupted())
+            {
+                try
+                {
+                    SocketChannel channel = serverSocketChannel.accept();
+                    this.selectors[this.next].addConnection(channel);
+                    this.next = (this.next + 1) % this.selectors.length;
+                }
+                catch (ClosedChannelException e)
+                {
+                    log.info(MsgFactory.get(this.getClass(), EMsgIds.SERVER_SOCKET_CLOSED, this.config.getPort()));
+                    break;
+                }
+                catch (IOException e)
+                {
+                    log.error(MsgFactory.get(this.getClass(), EMsgIds.ERR_ACCEPT, e));
+                    this.backOff();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            log.error(MsgFactory.get(this.getClass(), EMsgIds.ERR_OPEN_SERVER_SOCKET, this.config.getPort(), e));
+        }
+    }
+
+    /**
+     * Warte nach einem gescheiterten accept(). Ein Interrupt beendet die
+     * AcceptLoop.
+     */
+    private void backOff()
+    {
+        try
+        {
+            Thread.sleep(ACCEPT_BACKOFF);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 
+     */
+    private enum EMsgIds
+    {
+        ERR_OPEN_SERVER_SOCKET, //
+        ERR_ACCEPT, //
+        SERVER_SOCKET_CLOSED, //
+        ACCEPTOR_STARTED, //
+    }
+}
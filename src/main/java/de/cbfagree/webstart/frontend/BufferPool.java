@@ -0,0 +1,90 @@
+package de.cbfagree.webstart.frontend;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Ein begrenzter Pool von ReceiveBuffern gleicher Größe.
+ *
+ * Eine Verbindung leiht sich einen Buffer nur, solange ein Request noch nicht
+ * komplett verarbeitet wurde. Wartende keep-alive Verbindungen halten also
+ * keinen Buffer. Der Pool selbst hält höchstens eine feste Anzahl freier
+ * Buffer vor, darüber hinaus zurück gegebene Buffer werden dem GC überlassen.
+ *
+ * Der Pool gehört genau einem Selector-Thread und ist <b>nicht</b>
+ * thread-safe.
+ */
+class BufferPool
+{
+    private int bufferSize;
+    private int maxPooled;
+    private ArrayDeque<ByteBuffer> free;
+    private int borrowed;
+
+    /**
+     * @param bufferSize die Größe eines Buffers
+     * @param maxPooled die maximale Anzahl freier Buffer im Pool
+     */
+    public BufferPool(int bufferSize, int maxPooled)
+    {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.free = new ArrayDeque<>();
+        this.borrowed = 0;
+    }
+
+    /**
+     * Leihe einen Buffer aus dem Pool. Ist der Pool leer, so wird ein neuer
+     * Buffer erzeugt.
+     *
+     * @return ein leerer Buffer im "Schreib-Modus"
+     */
+    public ByteBuffer acquire()
+    {
+        ByteBuffer result = this.free.pollFirst();
+        if (result == null)
+        {
+            result = ByteBuffer.allocate(this.bufferSize);
+        }
+        this.borrowed++;
+        return result;
+    }
+
+    /**
+     * Gib einen geliehenen Buffer zurück
+     *
+     * @param buffer
+     */
+    public void release(ByteBuffer buffer)
+    {
+        this.borrowed--;
+        if (this.free.size() < this.maxPooled)
+        {
+            this.free.addFirst(buffer.clear());
+        }
+    }
+
+    /**
+     * @return die Größe eines Buffers
+     */
+    public int getBufferSize()
+    {
+        return this.bufferSize;
+    }
+
+    /**
+     * @return die Anzahl der aktuell verliehenen Buffer
+     */
+    public int getBorrowedCount()
+    {
+        return this.borrowed;
+    }
+
+    /**
+     * @return die Anzahl der freien Buffer im Pool
+     */
+    public int getPooledCount()
+    {
+        return this.free.size();
+    }
+}
@@ -1,18 +1,27 @@
 package de.cbfagree.webstart.frontend;
 
-import java.io.PushbackInputStream;
+import java.io.IOException;
 import java.net.SocketAddress;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
-import de.cbfagree.webstart.backend.PendingDownloadInputStream;
+import de.cbfagree.webstart.backend.ResourceMetaData;
+import de.cbfagree.webstart.cache.IResourceSource;
+import de.cbfagree.webstart.cache.StatusResponseSource;
+import de.cbfagree.webstart.httputils.HttpConditional;
+import de.cbfagree.webstart.httputils.HttpParseException;
+import de.cbfagree.webstart.httputils.HttpRange;
 import de.cbfagree.webstart.httputils.HttpRequestHeader;
 import de.cbfagree.webstart.httputils.HttpRequestHeaderParser;
+import de.cbfagree.webstart.httputils.HttpResponseHeader;
 import de.cbfagree.webstart.messages.MsgFactory;
 import lombok.extern.log4j.Log4j2;
 
 /**
- * Der {@link ChannelTransferContext} hält alle Status-Informationen für einen
- * ProxyTransfer.
+ * Der {@link ChannelTransferContext} hält alle Status-Informationen für eine
+ * Verbindung zu einem Client.
  * 
  * Über die Lebenszeit einer Verbindung wechselt diese zwischen verschieden
  * Zuständen. Zuerst wird eine neue Verbindung akzeptiert, danach wechselt 
@@ -21,15 +30,48 @@ import lombok.extern.log4j.Log4j2;
  * 
  * Diese Zustands-Übergänge werden einfach durch das komplette empfangen eines
  * HttpHeaders gesteuert. Der MainSelector liest Daten vom ClientChannel, solange
- * noch kein kompletter HTTPHeader empfangen wurde. Die empfangenen Daten pumpt 
- * er via {@link ChannelTransferContext#appendRequestData(byte[], int)} in den Context.
+ * noch kein kompletter HTTPHeader empfangen wurde. Die Daten werden via 
+ * {@link ChannelTransferContext#readRequestData(ReadableByteChannel)} direkt in
+ * den ReceiveBuffer des Contexts gelesen und dort von einem fortsetzbaren 
+ * {@link HttpRequestHeaderParser} verarbeitet.
+ * 
+ * Den ReceiveBuffer leiht sich der Context aus einem {@link BufferPool}, und 
+ * zwar nur solange ein Request noch nicht komplett verarbeitet ist. Eine auf
+ * den nächsten Request wartende Verbindung hält also keinen Buffer. Da der 
+ * Buffer genau die maximale Größe eines RequestHeaders hat, muss er nie 
+ * vergrößert werden.
+ * 
+ * Ist der Request fehlerhaft oder der Header zu groß, so beantwortet der 
+ * Context den Request selbst mit einem passenden StatusCode und die Verbindung
+ * wird danach geschlossen. Das gleiche gilt für alle Methoden außer GET und 
+ * HEAD ("501 Not Implemented").
  * 
  * Sobald der Context "got it!" meldet, schaltet der {@link MainSelector} das
  * InterestingSet des SelectorKey für den Channel auf OP_WRITE und setzt die
- * resource auf einen passenden InputStream. Dies ist entweder ein File-
- * InputStream (wenn die Resource im Cache gefunden wurde) oder ein
- * {@link PendingDownloadInputStream}, wenn ein Download vom Parent angefordert
- * wurde.
+ * resource auf eine passende {@link IResourceSource}. Dies ist entweder ein
+ * Bereich eines Cache-Files (wenn die Resource im Cache gefunden wurde) oder 
+ * ein laufender Download vom Parent.
+ * 
+ * Bevor der Content übertragen wird, sendet der Context den HTTP-ResponseHeader.
+ * Dieser wird erst hier aus den Meta-Daten der Quelle erzeugt, sobald diese 
+ * bekannt sind. Liegt die Resource komplett im Speicher, so liefert die Quelle
+ * Header und Content fertig als Buffer, beides wird dann mit einem einzigen
+ * gathering write übertragen.
+ * 
+ * Die Quelle selbst hat keine Lese-Position, der Context merkt sich also
+ * wieviele Bytes bereits an den Client übertragen wurden. Fordert der Client
+ * nur einen Bereich der Resource an (Range), so beginnt der Transfer einfach
+ * an dessen Anfang und endet an dessen Ende. Bei einem laufenden Download 
+ * wartet die Verbindung dabei ggf. geparkt, bis die Daten angekommen sind. Bei einem nur 
+ * teilweise erfolgreichen write wird einfach beim nächsten Durchlauf ab
+ * dieser Position weiter übertragen.
+ * 
+ * Ist die Response komplett übertragen, so kehrt die Verbindung in den 
+ * Zustand "lesend" zurück, sofern Client und Response das zulassen (keep-alive).
+ * Request-Bodies werden nicht gelesen, ein Request mit Body beendet die 
+ * Verbindung also nach der Response.
+ * Hat der Client bereits weitere Requests hinterher geschickt (pipelining),
+ * so liegen diese schon im ReceiveBuffer und werden sofort verarbeitet.
  * 
  * Der TransferContext wird als Attachment an den SelectorKey gehängt, somit
  * steht der Context für jede Operation am SelectorKey zur Verfügung.
@@ -38,121 +80,461 @@ import lombok.extern.log4j.Log4j2;
 @Log4j2
 class ChannelTransferContext
 {
-    private static final int INITIAL_RECV_BUFFER_SIZE = 8 * 1024;
+    /**
+     * Die Zustände einer Verbindung
+     */
+    private enum EState
+    {
+        READ_REQUEST, //
+        WRITE_RESPONSE, //
+    }
 
     private SocketAddress remoteAddress;
-    private byte[] recvBuffer = new byte[INITIAL_RECV_BUFFER_SIZE];
-    private int recvBufferWritePos = 0;
+    private int maxRequests;
+    private int requestCount = 0;
+    private EState state = EState.READ_REQUEST;
+    private long lastActivity;
+
+    /**
+     * Der ReceiveBuffer steht immer im "Lese-Modus": Die Position markiert den
+     * Beginn des nächsten (noch nicht komplett geparsten) Requests, das Limit
+     * das Ende der empfangenen Daten. Ohne unverarbeitete Daten ist er 
+     * <code>null</code>.
+     */
+    private ByteBuffer recvBuffer;
+    private BufferPool recvBufferPool;
+    private HttpRequestHeaderParser parser;
 
     private HttpRequestHeader reqHeader;
-    private PushbackInputStream dataSource;
+    private IResourceSource dataSource;
+    private boolean keepAlive;
+    private boolean sendContent;
+    private ByteBuffer responseHeader;
+    private int renderedHeaderSize;
+    private ByteBuffer[] gatherBuffers;
+    private long transferPos = 0;
+    private long transferEnd = Long.MAX_VALUE;
 
     /**
      * 
      * @param remote
+     * @param maxRequests die maximale Anzahl von Requests über diese Verbindung
+     * @param recvBufferPool der Pool für die ReceiveBuffer. Die Größe der
+     *        Buffer ist zugleich die maximale Größe eines RequestHeaders.
      */
-    public ChannelTransferContext(SocketAddress remote)
+    public ChannelTransferContext(SocketAddress remote, int maxRequests, BufferPool recvBufferPool)
     {
         this.remoteAddress = remote;
+        this.maxRequests = maxRequests;
+        this.recvBufferPool = recvBufferPool;
+        this.parser = new HttpRequestHeaderParser(recvBufferPool.getBufferSize());
+        this.lastActivity = System.currentTimeMillis();
         log.debug(MsgFactory.get(this.getClass(), EMsgIds.CREATE_CONTEXT, remote));
     }
 
     /**
-     * Füge Daten an den RequestBuffer an.
+     * Lese Daten vom Client direkt in den ReceiveBuffer.
      * 
-     * Wenn der RequestBuffer voll ist, so wird er mit mindestens der doppelten
-     * Kapazität realloziert. Falls das für die Menge der neuen Daten nicht reicht,
-     * so wird er um die aktuelle Größe + Länge der neuen Daten reallokiert.
+     * Hält der Context noch keinen Buffer, so wird einer aus dem Pool 
+     * geliehen. Ist am Ende des Buffers kein Platz mehr, so wird der noch 
+     * nicht verarbeitete Rest an den Anfang geschoben. Ein kompletter Buffer
+     * ohne kompletten Header wurde bereits vom Parser abgewiesen.
      * 
-     * Es wird geprüft, ob bereits ein kompletter HTTPRequestHeader empfangen wurde.
-     * Sollte dies der Fall sein, so werden weitere appends ignoriert und der 
-     * HttpRequestHeader geparsed und in den TransferContext gesetzt.
+     * @param channel
+     * @return die Anzahl gelesener Bytes oder -1 bei EOF
+     * @throws IOException
+     */
+    public int readRequestData(ReadableByteChannel channel) throws IOException
+    {
+        this.lastActivity = System.currentTimeMillis();
+
+        if (this.recvBuffer == null)
+        {
+            this.recvBuffer = this.recvBufferPool.acquire().flip();
+        }
+        else
+        {
+            if (this.recvBuffer.limit() == this.recvBuffer.capacity() && this.recvBuffer.position() > 0)
+            {
+                this.recvBuffer.compact().flip();
+            }
+        }
+
+        int start = this.recvBuffer.position();
+        this.recvBuffer.position(this.recvBuffer.limit()).limit(this.recvBuffer.capacity());
+        int read = channel.read(this.recvBuffer);
+        this.recvBuffer.limit(this.recvBuffer.position()).position(start);
+
+        this.releaseRecvBufferIfEmpty();
+        return read;
+    }
+
+    /**
+     * Gib den ReceiveBuffer an den Pool zurück, sobald keine unverarbeiteten
+     * Daten mehr darin liegen.
+     */
+    private void releaseRecvBufferIfEmpty()
+    {
+        if (this.recvBuffer != null && !this.recvBuffer.hasRemaining())
+        {
+            this.recvBufferPool.release(this.recvBuffer);
+            this.recvBuffer = null;
+        }
+    }
+
+    /**
+     * Versuche, den nächsten Request aus dem ReceiveBuffer zu lesen. Das ist 
+     * nur im Zustand "lesend" möglich. Weitere Daten bleiben für den nächsten
+     * Request im Buffer.
      * 
-     * @param array
-     * @param len
+     * Ein fehlerhafter Request wird sofort mit einer passenden Response 
+     * beantwortet, die Daten-Quelle ist dann bereits gesetzt.
      * 
-     * @return <code>true</code> wenn ein kompletter HTTPRequestHeader empfangen wurde.
+     * @return <code>true</code> wenn ein kompletter HTTPRequestHeader im 
+     *         Buffer lag. Die Verbindung ist dann im Zustand "schreibend".
      */
-    public boolean appendRequestData(byte[] array, int len)
+    public boolean parseNextRequest()
     {
-        boolean result = false;
-        if (this.recvBuffer != null)
+        if (this.state != EState.READ_REQUEST)
+        {
+            return false;
+        }
+
+        if (this.recvBuffer == null)
+        {
+            return false;
+        }
+
+        try
         {
-            int remainingCapacity = this.recvBuffer.length - this.recvBufferWritePos;
-            if (remainingCapacity < len)
+            this.reqHeader = this.parser.parse(this.recvBuffer);
+            if (this.reqHeader == null)
             {
-                int newCapacity = Math.max(this.recvBuffer.length * 2, len + remainingCapacity);
-                this.recvBuffer = Arrays.copyOf(this.recvBuffer, newCapacity);
+                return false;
             }
-            System.arraycopy(array, 0, this.recvBuffer, this.recvBufferWritePos, len);
-            this.recvBufferWritePos += len;
+            this.releaseRecvBufferIfEmpty();
+            log.debug(MsgFactory.get(this.getClass(), EMsgIds.HDR_COMPLETED, this.remoteAddress, this.reqHeader));
 
-            result = this.isHttpRequestHeaderComplete();
-            if (result)
+            String method = this.reqHeader.getMethod();
+            if (!"GET".equals(method) && !"HEAD".equals(method))
             {
-                this.reqHeader = new HttpRequestHeaderParser().parse(this.recvBuffer, this.recvBufferWritePos);
-                this.recvBuffer = null;
-                log.debug(MsgFactory.get(this.getClass(), EMsgIds.HDR_COMPLETED, this.remoteAddress, this.reqHeader));
+                log.info(MsgFactory.get(this.getClass(), EMsgIds.ERR_METHOD_NOT_IMPLEMENTED, this.remoteAddress,
+                    method));
+                this.initResponse(new StatusResponseSource(501), false);
             }
         }
-        return result;
+        catch (HttpParseException e)
+        {
+            log.info(MsgFactory.get(this.getClass(), EMsgIds.ERR_PARSE_REQUEST, this.remoteAddress, e.getMessage()));
+            this.initResponse(new StatusResponseSource(e.getStatusCode()), false);
+        }
+
+        this.state = EState.WRITE_RESPONSE;
+        return true;
     }
 
     /**
-     * @return
+     * @return der aktuelle Request oder <code>null</code>, wenn dieser 
+     *         fehlerhaft war.
      */
     public HttpRequestHeader getRequestHeader()
     {
         return this.reqHeader;
     }
 
+    private static enum EMsgIds
+    {
+        CREATE_CONTEXT, //
+        HDR_COMPLETED, //
+        RESPONSE_COMPLETED, //
+        ERR_PARSE_REQUEST, //
+        ERR_METHOD_NOT_IMPLEMENTED, //
+    }
+
     /**
-     * Wurde der HTTP-RequestHeader komplett gelesen? Dies wird durch
-     * die Existenz einer "\r\n\r\n"-Sequenz definiert.
+     * Setze die Daten-Quelle für den Transfer des Response-Contents
+     * 
+     * Hier wird auch entschieden, ob die Verbindung nach der Response weiter 
+     * verwendet werden kann, siehe {@link #isReusable()}. Ob die Länge des 
+     * Contents bekannt ist, entscheidet sich erst beim erzeugen des
+     * ResponseHeaders.
      * 
-     * Wir durchsuchen das ByteArray von hinten her. Der Delimiter 
-     * (falls vorhanden) steht am Ende des Buffers! 
+     * @param dataSource
+     */
+    public void setDataSrc(IResourceSource dataSource)
+    {
+        this.initResponse(dataSource, this.isReusable());
+    }
+
+    /**
+     * Beantworte den Request mit "503 Service Unavailable", weil die 
+     * Resource im Moment nicht geladen werden kann. Der Header wird sofort
+     * erzeugt, da er zusätzlich "Retry-After" enthält.
      * 
-     * Einfach nur die letzten 4 Byte zu testen funktioniert leider nicht,
-     * gegebenenfalls wird illegalerweise noch ein Body gesendet. Den treten 
-     * wir zwar in die Tonne, er würde aber das Scan-Ergebniss beeinflussen.
+     * @param retryAfter die Anzahl Sekunden, nach welcher der Client es erneut
+     *        versuchen soll
+     */
+    public void setServiceUnavailable(int retryAfter)
+    {
+        this.initResponse(new StatusResponseSource(503), this.isReusable());
+        this.responseHeader = HttpResponseHeader.serviceUnavailable(retryAfter, this.keepAlive).render();
+        this.renderedHeaderSize = this.responseHeader.capacity();
+    }
+
+    /**
+     * Kann die Verbindung nach der Response weiter verwendet werden? Das ist
+     * der Fall, wenn der Client es möchte, die maximale Anzahl von Requests 
+     * noch nicht erreicht ist und kein (ungelesener) Request-Body vor dem 
+     * nächsten Request liegt.
      * 
      * @return
      */
-    private boolean isHttpRequestHeaderComplete()
+    private boolean isReusable()
+    {
+        return this.reqHeader.isKeepAlive() && !this.reqHeader.hasBody() && this.requestCount + 1 < this.maxRequests;
+    }
+
+    /**
+     * @param dataSource
+     * @param keepAlive
+     */
+    private void initResponse(IResourceSource dataSource, boolean keepAlive)
+    {
+        this.dataSource = dataSource;
+        this.keepAlive = keepAlive;
+        this.sendContent = this.reqHeader == null || this.reqHeader.isContentRequested();
+        this.transferPos = 0;
+        this.transferEnd = Long.MAX_VALUE;
+
+        // Der fertige Header aus dem Speicher passt nur für einen unbedingten
+        // Request der kompletten Resource
+        boolean hasPreconditions = this.reqHeader != null && HttpConditional.hasPreconditions(this.reqHeader);
+        this.responseHeader = hasPreconditions ? null : dataSource.getResponseHeader(this.keepAlive);
+
+        ByteBuffer content = dataSource.getContentBuffer();
+        this.gatherBuffers = (content != null && this.responseHeader != null && this.sendContent) //
+            ? new ByteBuffer[] { this.responseHeader, content } //
+            : null;
+    }
+
+    /**
+     * Die Response wurde komplett übertragen. Die Daten-Quelle wird 
+     * geschlossen und die Verbindung kehrt in den Zustand "lesend" zurück.
+     * 
+     * @return <code>true</code>, wenn die Verbindung weiter verwendet werden 
+     *         kann. Andernfalls muss sie geschlossen werden.
+     * @throws IOException
+     */
+    public boolean responseCompleted() throws IOException
+    {
+        this.requestCount++;
+        this.lastActivity = System.currentTimeMillis();
+        log.debug(MsgFactory.get(this.getClass(), EMsgIds.RESPONSE_COMPLETED, this.remoteAddress, this.requestCount,
+            this.keepAlive));
+
+        IResourceSource source = this.dataSource;
+        this.dataSource = null;
+        this.reqHeader = null;
+        this.responseHeader = null;
+        this.renderedHeaderSize = 0;
+        this.gatherBuffers = null;
+        this.state = EState.READ_REQUEST;
+        source.close();
+
+        return this.keepAlive;
+    }
+
+    /**
+     * Die Verbindung wurde geschlossen. Eine noch offene Quelle wird 
+     * geschlossen und der ReceiveBuffer an den Pool zurück gegeben.
+     */
+    public void close()
     {
-        boolean result = false;
-        for (int pos = this.recvBufferWritePos - 4; !result && pos >= 0; --pos)
+        if (this.recvBuffer != null)
         {
-            result = (this.recvBuffer[pos + 0] == '\r') //
-                && (this.recvBuffer[pos + 1] == '\n') //
-                && (this.recvBuffer[pos + 2] == '\r') //
-                && (this.recvBuffer[pos + 3] == '\n');
+            this.recvBufferPool.release(this.recvBuffer);
+            this.recvBuffer = null;
+        }
+
+        if (this.dataSource != null)
+        {
+            try
+            {
+                this.dataSource.close();
+            }
+            catch (IOException e)
+            {
+                // nix mehr zu retten
+            }
+            this.dataSource = null;
         }
-        return result;
     }
 
-    private static enum EMsgIds
+    /**
+     * Liefere die Anzahl der Bytes, welche der Context aktuell in eigenen
+     * Buffern hält. Buffer, welche mit anderen Verbindungen geteilt werden
+     * (etwa aus dem MemoryTier), werden nicht gezählt.
+     * 
+     * @return
+     */
+    public long getBufferedBytes()
     {
-        CREATE_CONTEXT, //
-        HDR_COMPLETED, //
+        return ((this.recvBuffer == null) ? 0 : this.recvBuffer.capacity()) + this.renderedHeaderSize;
     }
 
     /**
-     * Setze die Daten-Quelle für den Transfer des Response-Contents
+     * @return <code>true</code>, solange eine Response übertragen wird
+     */
+    public boolean isWritingResponse()
+    {
+        return this.state == EState.WRITE_RESPONSE;
+    }
+
+    /**
+     * Wartet die Verbindung bereits länger als die angegebene Zeit auf einen
+     * neuen Request?
      * 
-     * @param dataSource
+     * @param now
+     * @param timeout
+     * @return
      */
-    public void setDataSrc(PushbackInputStream dataSource)
+    public boolean isIdle(long now, long timeout)
     {
-        this.dataSource = dataSource;
+        return this.state == EState.READ_REQUEST && now - this.lastActivity > timeout;
     }
 
     /**
      * @return
      */
-    public PushbackInputStream getDataSrc()
+    public IResourceSource getDataSrc()
     {
         return this.dataSource;
     }
+
+    /**
+     * Übertrage ab der aktuellen Transfer-Position Daten aus der Quelle
+     * in den Ziel-Channel und zähle die Position um die Anzahl der
+     * geschriebenen Bytes weiter.
+     * 
+     * Solange der ResponseHeader noch nicht komplett übertragen wurde, wird
+     * zuerst dieser geschrieben. Sind die Meta-Daten der Quelle noch nicht 
+     * bekannt, so wird nichts übertragen. Auf einen HEAD-Request wird nur
+     * der ResponseHeader übertragen.
+     * 
+     * @param target
+     * @param ioBuffer der gemeinsame ioBuffer des Selectors
+     * 
+     * @return die Anzahl geschriebener Bytes oder -1 wenn die Quelle
+     *         komplett übertragen wurde.
+     * 
+     * @throws IOException
+     */
+    public long transferData(WritableByteChannel target, ByteBuffer ioBuffer) throws IOException
+    {
+        if (this.gatherBuffers != null && target instanceof GatheringByteChannel gatheringTarget)
+        {
+            return this.transferGathered(gatheringTarget);
+        }
+
+        long written = 0;
+        if (this.responseHeader == null)
+        {
+            ResourceMetaData metaData = this.dataSource.getMetaData();
+            if (metaData != null)
+            {
+                HttpResponseHeader header = this.createResponseHeader(metaData);
+                this.keepAlive = header.isKeepAlive();
+                this.responseHeader = header.render();
+                this.renderedHeaderSize = this.responseHeader.capacity();
+            }
+        }
+
+        if (this.responseHeader != null)
+        {
+            if (this.responseHeader.hasRemaining())
+            {
+                written = target.write(this.responseHeader);
+            }
+
+            if (!this.responseHeader.hasRemaining())
+            {
+                long transferred = (this.sendContent && this.transferPos < this.transferEnd) //
+                    ? this.dataSource.transferTo(this.transferPos, this.transferEnd - this.transferPos, target, ioBuffer)
+                    : -1;
+                if (transferred > 0)
+                {
+                    this.transferPos += transferred;
+                    written += transferred;
+                }
+                else
+                {
+                    if (transferred == -1 && written == 0)
+                    {
+                        written = -1;
+                    }
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Erzeuge den ResponseHeader passend zum Request und lege den zu 
+     * übertragenden Bereich der Quelle fest. Ist die Resource beim Client 
+     * unverändert, so wird nur "304 Not Modified" ohne Content gesendet. 
+     * 
+     * @param metaData
+     * @return
+     */
+    private HttpResponseHeader createResponseHeader(ResourceMetaData metaData)
+    {
+        if (this.reqHeader != null && HttpConditional.isNotModified(this.reqHeader, metaData))
+        {
+            this.transferEnd = 0;
+            return HttpResponseHeader.notModified(metaData, this.keepAlive);
+        }
+
+        HttpRange range = (this.reqHeader == null) ? null : HttpRange.forRequest(this.reqHeader, metaData);
+        if (range != null)
+        {
+            this.transferPos = range.isSatisfiable() ? range.start() : 0;
+            this.transferEnd = range.isSatisfiable() ? range.end() + 1 : 0;
+        }
+        return HttpResponseHeader.forResource(metaData, this.keepAlive, range);
+    }
+
+    /**
+     * Übertrage Header und Content aus dem Speicher mit einem einzigen 
+     * gathering write.
+     * 
+     * @param target
+     * @return die Anzahl geschriebener Bytes oder -1 wenn alles übertragen 
+     *         wurde.
+     * @throws IOException
+     */
+    private long transferGathered(GatheringByteChannel target) throws IOException
+    {
+        ByteBuffer content = this.gatherBuffers[1];
+        if (!this.responseHeader.hasRemaining() && !content.hasRemaining())
+        {
+            return -1;
+        }
+
+        long written = target.write(this.gatherBuffers);
+        this.transferPos = content.position();
+        return written;
+    }
+
+    /**
+     * Lasse dich benachrichtigen, sobald an der aktuellen Transfer-Position
+     * wieder Daten in der Quelle bereit stehen.
+     * 
+     * @param callback
+     * @return <code>true</code> wenn der Callback registriert wurde, 
+     *         <code>false</code> wenn bereits Daten bereit stehen.
+     */
+    public boolean awaitData(Runnable callback)
+    {
+        return this.dataSource.awaitData(this.transferPos, callback);
+    }
 }
@@ -0,0 +1,74 @@
+package de.cbfagree.webstart.frontend;
+
+import java.io.IOException;
+
+import de.cbfagree.webstart.cache.CacheRepository;
+import de.cbfagree.webstart.config.FrontendConfig;
+import de.cbfagree.webstart.messages.MsgFactory;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Startet das Frontend in dem konfigurierten Modus.
+ *
+ * Im Default-Modus (<code>selectorThreads: 1</code>) erledigt ein einzelner
+ * {@link MainSelector} alles: accept, read und write für alle Clients. Das
+ * reicht für den Einsatz auf einer Workstation völlig aus.
+ *
+ * Auf dedizierten Maschinen mit mehreren Kernen kann stattdessen der 
+ * Multi-Reactor-Modus verwendet werden. Ein {@link Acceptor} nimmt dann die 
+ * Verbindungen an und verteilt sie reihum auf mehrere MainSelector, welche
+ * jeweils in einem eigenen Thread laufen. Jeder Selector hat dabei seine 
+ * eigenen Verbindungen, seinen eigenen ioBuffer und seinen eigenen
+ * BufferPool, zwischen den Selectoren wird also nichts synchronisiert.
+ */
+@Log4j2
+public class Frontend
+{
+    private FrontendConfig config;
+    private CacheRepository cacheRepo;
+
+    /**
+     * @param cfg
+     * @param cacheRepo
+     */
+    public Frontend(FrontendConfig cfg, CacheRepository cacheRepo)
+    {
+        this.config = cfg;
+        this.cacheRepo = cacheRepo;
+    }
+
+    /**
+     * Starte das Frontend. Der Aufruf kehrt erst zurück, wenn das Frontend 
+     * beendet wird.
+     * 
+     * @throws IOException
+     */
+    public void run() throws IOException
+    {
+        int selectorThreads = this.config.getSelectorThreads();
+        if (selectorThreads == 1)
+        {
+            new MainSelector(this.config, this.cacheRepo).run();
+        }
+        else
+        {
+            log.info(MsgFactory.get(this.getClass(), EMsgIds.START_MULTI_REACTOR, selectorThreads));
+
+            MainSelector[] selectors = new MainSelector[selectorThreads];
+            for (int i = 0; i < selectors.length; i++)
+            {
+                selectors[i] = new MainSelector(this.config, this.cacheRepo, "selector-thread-" + i, false);
+                new Thread(selectors[i]).start();
+            }
+            new Acceptor(this.config, selectors).run();
+        }
+    }
+
+    /**
+     * 
+     */
+    private enum EMsgIds
+    {
+        START_MULTI_REACTOR, //
+    }
+}
@@ -0,0 +1,57 @@
+package de.cbfagree.webstart.frontend;
+
+/**
+ * Die Management-Schnittstelle des Frontends. Sie wird unter dem Namen
+ * <code>de.cbfagree.webstart:type=Frontend</code> im Platform-MBeanServer
+ * registriert. Im Multi-Reactor-Modus registriert jeder Selector eine eigene
+ * MBean, der Name wird dann um <code>selector=&lt;Name&gt;</code> erweitert.
+ *
+ * Die Werte werden vom Selector-Thread periodisch (etwa einmal pro Sekunde)
+ * ermittelt. Als "wartend" gelten Verbindungen, welche auf einen (weiteren)
+ * Request warten, als "aktiv" Verbindungen, welche gerade eine Response
+ * übertragen.
+ */
+public interface FrontendMXBean
+{
+    /**
+     * @return die Anzahl der offenen Verbindungen
+     */
+    public int getOpenConnections();
+
+    /**
+     * @return die Anzahl der Verbindungen, welche auf einen Request warten
+     */
+    public int getIdleConnections();
+
+    /**
+     * @return die Anzahl der Verbindungen, welche eine Response übertragen
+     */
+    public int getActiveConnections();
+
+    /**
+     * @return die durchschnittlich von einer wartenden Verbindung belegten
+     *         Bytes in Buffern
+     */
+    public long getBytesPerIdleConnection();
+
+    /**
+     * @return die durchschnittlich von einer aktiven Verbindung belegten
+     *         Bytes in Buffern
+     */
+    public long getBytesPerActiveConnection();
+
+    /**
+     * @return die Anzahl der aktuell an Verbindungen verliehenen ReceiveBuffer
+     */
+    public int getBorrowedBuffers();
+
+    /**
+     * @return die Anzahl der freien ReceiveBuffer im Pool
+     */
+    public int getPooledBuffers();
+
+    /**
+     * @return die insgesamt vom Pool gehaltenen Bytes (verliehen und frei)
+     */
+    public long getPoolBytes();
+}
@@ -0,0 +1,132 @@
+package de.cbfagree.webstart.frontend;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import de.cbfagree.webstart.messages.MsgFactory;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Hält die zuletzt vom Selector-Thread ermittelten Werte des Frontends und
+ * stellt sie via JMX bereit.
+ *
+ * Der Selector-Thread sammelt die Werte bei seinem periodischen Durchlauf 
+ * über alle Verbindungen und übergibt sie als unveränderlichen Snapshot. Die
+ * JMX-Zugriffe lesen also nie den Zustand der Verbindungen selbst.
+ */
+@Log4j2
+class FrontendStats implements FrontendMXBean
+{
+    private static final String MBEAN_NAME = "de.cbfagree.webstart:type=Frontend";
+
+    private volatile Snapshot snapshot = new Snapshot(0, 0, 0, 0, 0, 0, 0);
+
+    /**
+     * @param selectorName der Name des Selectors im Multi-Reactor-Modus oder
+     *        <code>null</code> im Single-Thread-Modus
+     */
+    public FrontendStats(String selectorName)
+    {
+        this.registerMBean((selectorName == null) ? MBEAN_NAME : MBEAN_NAME + ",selector=" + selectorName);
+    }
+
+    /**
+     * Übernimm die Werte eines Durchlaufes über alle Verbindungen
+     * 
+     * @param idle die Anzahl wartender Verbindungen
+     * @param idleBytes die von allen wartenden Verbindungen belegten Bytes
+     * @param active die Anzahl aktiver Verbindungen
+     * @param activeBytes die von allen aktiven Verbindungen belegten Bytes
+     * @param pool
+     */
+    public void update(int idle, long idleBytes, int active, long activeBytes, BufferPool pool)
+    {
+        this.snapshot = new Snapshot(idle, idleBytes, active, activeBytes, pool.getBorrowedCount(),
+            pool.getPooledCount(), pool.getBufferSize());
+    }
+
+    /**
+     * 
+     */
+    private void registerMBean(String name)
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+        }
+        catch (JMException e)
+        {
+            log.warn(MsgFactory.get(this.getClass(), EMsgIds.ERR_REGISTER_MBEAN, name, e));
+        }
+    }
+
+    @Override
+    public int getOpenConnections()
+    {
+        Snapshot s = this.snapshot;
+        return s.idle() + s.active();
+    }
+
+    @Override
+    public int getIdleConnections()
+    {
+        return this.snapshot.idle();
+    }
+
+    @Override
+    public int getActiveConnections()
+    {
+        return this.snapshot.active();
+    }
+
+    @Override
+    public long getBytesPerIdleConnection()
+    {
+        Snapshot s = this.snapshot;
+        return (s.idle() == 0) ? 0 : s.idleBytes() / s.idle();
+    }
+
+    @Override
+    public long getBytesPerActiveConnection()
+    {
+        Snapshot s = this.snapshot;
+        return (s.active() == 0) ? 0 : s.activeBytes() / s.active();
+    }
+
+    @Override
+    public int getBorrowedBuffers()
+    {
+        return this.snapshot.borrowed();
+    }
+
+    @Override
+    public int getPooledBuffers()
+    {
+        return this.snapshot.pooled();
+    }
+
+    @Override
+    public long getPoolBytes()
+    {
+        Snapshot s = this.snapshot;
+        return (long) (s.borrowed() + s.pooled()) * s.bufferSize();
+    }
+
+    /**
+     * Die Werte eines Durchlaufes
+     */
+    private static record Snapshot(int idle, long idleBytes, int active, long activeBytes, int borrowed, int pooled,
+        int bufferSize)
+    {
+    }
+
+    /**
+     * 
+     */
+    private enum EMsgIds
+    {
+        ERR_REGISTER_MBEAN, //
+    }
+}
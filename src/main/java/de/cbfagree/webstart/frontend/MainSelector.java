@@ -1,7 +1,6 @@
 package de.cbfagree.webstart.frontend;
 
 import java.io.IOException;
-import java.io.PushbackInputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.SocketAddress;
@@ -12,28 +11,146 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import de.cbfagree.webstart.backend.EngineOverloadException;
+import de.cbfagree.webstart.backend.ResourceMetaData;
 import de.cbfagree.webstart.cache.CacheRepository;
+import de.cbfagree.webstart.cache.IResourceSource;
+import de.cbfagree.webstart.cache.StatusResponseSource;
 import de.cbfagree.webstart.config.FrontendConfig;
+import de.cbfagree.webstart.httputils.HttpConditional;
+import de.cbfagree.webstart.httputils.HttpRequestHeader;
+import de.cbfagree.webstart.messages.MsgFactory;
+import lombok.extern.log4j.Log4j2;
 
 /**
+ * Die SelectorLoop des Frontends.
  * 
+ * Pro Verbindung wird nur der {@link ChannelTransferContext} gehalten, also im
+ * wesentlichen die Position innerhalb der Quelle. Buffer belegt eine 
+ * Verbindung nur kurzzeitig: Der ReceiveBuffer wird aus einem begrenzten 
+ * {@link BufferPool} geliehen, solange ein Request unvollständig ist. Auf der
+ * Schreib-Seite gibt es gar keine Buffer je Verbindung. Konnte ein write nur 
+ * teilweise ausgeführt werden, so wird beim nächsten Mal einfach ab der 
+ * erreichten Position erneut aus der Quelle übertragen, ggf. über den einen
+ * gemeinsamen ioBuffer des Selectors.
+ * 
+ * Im Default-Modus nimmt ein einzelner MainSelector auch die Verbindungen 
+ * an. Im Multi-Reactor-Modus (siehe {@link Frontend}) übergibt ein 
+ * {@link Acceptor} die angenommenen Verbindungen via 
+ * {@link #addConnection(SocketChannel)} an mehrere MainSelector, welche 
+ * dann jeweils in einem eigenen Thread laufen.
  */
+@Log4j2
 public class MainSelector implements Runnable
 {
-    private byte[] ioBuffer;
+    /**
+     * Das Intervall, in welchem nach Verbindungen gesucht wird, welche das
+     * keep-alive Timeout überschritten haben.
+     */
+    private static final long IDLE_CHECK_INTERVAL = 1000;
+
+    /**
+     * Die maximale Anzahl freier ReceiveBuffer im Pool
+     */
+    private static final int MAX_POOLED_RECV_BUFFERS = 256;
+
+    /**
+     * Nach wievielen Sekunden soll ein Client es erneut versuchen, wenn die
+     * Download-Queue voll ist?
+     */
+    private static final int RETRY_AFTER_SECONDS = 5;
+
+    private String name;
+    private boolean acceptConnections;
+    private Selector selector;
+
+    private ByteBuffer ioBuffer;
+    private BufferPool recvBufferPool;
+    private FrontendStats stats;
     private CacheRepository cacheRepo;
 
     private FrontendConfig config;
 
     /**
+     * Die Queue der SelectionKeys, welche auf Daten eines laufenden Downloads
+     * gewartet haben und nun wieder auf OP_WRITE gesetzt werden sollen. Die 
+     * Queue wird aus den Download-Threads befüllt und in der SelectorLoop
+     * abgearbeitet.
+     */
+    private ConcurrentLinkedQueue<SelectionKey> wakeupQueue;
+
+    /**
+     * Die Queue der Verbindungen, welche ein {@link Acceptor} an diesen 
+     * Selector übergeben hat.
+     */
+    private ConcurrentLinkedQueue<SocketChannel> registerQueue;
+
+    /**
+     * Erzeuge einen MainSelector, welcher auch die Verbindungen annimmt 
+     * (Single-Thread-Modus).
+     * 
      * @throws IOException
      */
     public MainSelector(FrontendConfig cfg, CacheRepository cacheRepo) throws IOException
+    {
+        this(cfg, cacheRepo, "main-selector-thread", true);
+    }
+
+    /**
+     * @param cfg
+     * @param cacheRepo
+     * @param name der Name des Selector-Threads
+     * @param acceptConnections soll der Selector selbst die Verbindungen 
+     *        annehmen?
+     * @throws IOException
+     */
+    MainSelector(FrontendConfig cfg, CacheRepository cacheRepo, String name, boolean acceptConnections)
+        throws IOException
     {
         this.config = cfg;
-        this.ioBuffer = new byte[cfg.getIoBufferSize()];
+        this.name = name;
+        this.acceptConnections = acceptConnections;
+        this.selector = Selector.open();
+        this.ioBuffer = ByteBuffer.allocate(cfg.getIoBufferSize());
+        this.recvBufferPool = new BufferPool(cfg.getMaxRequestHeaderSize(), MAX_POOLED_RECV_BUFFERS);
+        this.stats = new FrontendStats(acceptConnections ? null : name);
         this.cacheRepo = cacheRepo;
+        this.wakeupQueue = new ConcurrentLinkedQueue<>();
+        this.registerQueue = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Öffne den ServerSocket des Frontends
+     * 
+     * @param cfg
+     * @return
+     * @throws IOException
+     */
+    static ServerSocketChannel openServerSocket(FrontendConfig cfg) throws IOException
+    {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        ServerSocket socket = serverSocketChannel.socket();
+        socket.bind(new InetSocketAddress(cfg.getPort()), cfg.getBacklog());
+        socket.setReceiveBufferSize(cfg.getIoBufferSize());
+        return serverSocketChannel;
+    }
+
+    /**
+     * Übergib eine bereits angenommene Verbindung an diesen Selector.
+     * 
+     * Der Aufruf erfolgt aus dem Thread des {@link Acceptor}. Ein Channel kann
+     * nicht registriert werden, während der Selector im select() hängt. Die
+     * Verbindung wird also nur in die RegisterQueue gestellt und der Selector
+     * aus dem select() geholt.
+     * 
+     * @param channel
+     */
+    void addConnection(SocketChannel channel)
+    {
+        this.registerQueue.add(channel);
+        this.selector.wakeup();
     }
 
     /**
@@ -44,19 +161,30 @@ public class MainSelector implements Runnable
     {
         try
         {
-            Thread.currentThread().setName("main-selector-thread");
-            ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
-            ServerSocket socket = serverSocketChannel.socket();
-            socket.bind(new InetSocketAddress(this.config.getPort()), this.config.getBacklog());
-            socket.setReceiveBufferSize(this.config.getIoBufferSize());
-            serverSocketChannel.configureBlocking(false);
-
-            Selector selector = Selector.open();
-            SelectionKey key = serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+            Thread.currentThread().setName(this.name);
+            Selector selector = this.selector;
+            if (this.acceptConnections)
+            {
+                ServerSocketChannel serverSocketChannel = MainSelector.openServerSocket(this.config);
+                serverSocketChannel.configureBlocking(false);
+                serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+            }
 
+            long lastIdleCheck = System.currentTimeMillis();
             while (!Thread.currentThread().isInterrupted())
             {
-                if (selector.select() > 0)
+                int selected = selector.select(IDLE_CHECK_INTERVAL);
+                this.processRegisterQueue();
+                this.processWakeupQueue();
+
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL)
+                {
+                    this.checkChannels(selector, now);
+                    lastIdleCheck = now;
+                }
+
+                if (selected > 0)
                 {
 
                     Set<SelectionKey> selectedKeys = selector.selectedKeys();
@@ -64,7 +192,7 @@ public class MainSelector implements Runnable
 
                     while (keyIterator.hasNext())
                     {
-                        key = keyIterator.next();
+                        SelectionKey key = keyIterator.next();
                         keyIterator.remove();
 
                         if (key.isAcceptable())
@@ -95,6 +223,107 @@ public class MainSelector implements Runnable
         }
     }
 
+    /**
+     * Schließe alle Verbindungen, welche länger als das keep-alive Timeout 
+     * auf einen neuen Request warten. Nebenbei wird ermittelt, wieviel 
+     * Speicher die wartenden und die aktiven Verbindungen belegen.
+     * 
+     * @param selector
+     * @param now
+     */
+    private void checkChannels(Selector selector, long now)
+    {
+        int idle = 0;
+        long idleBytes = 0;
+        int active = 0;
+        long activeBytes = 0;
+
+        for (SelectionKey key : selector.keys())
+        {
+            if (key.attachment() instanceof ChannelTransferContext ctx)
+            {
+                if (ctx.isIdle(now, this.config.getKeepAliveTimeout()))
+                {
+                    this.closeChannel(key);
+                }
+                else
+                {
+                    if (ctx.isWritingResponse())
+                    {
+                        active++;
+                        activeBytes += ctx.getBufferedBytes();
+                    }
+                    else
+                    {
+                        idle++;
+                        idleBytes += ctx.getBufferedBytes();
+                    }
+                }
+            }
+        }
+        this.stats.update(idle, idleBytes, active, activeBytes, this.recvBufferPool);
+    }
+
+    /**
+     * Registriere alle Verbindungen, welche der {@link Acceptor} in der 
+     * Zwischenzeit übergeben hat.
+     */
+    private void processRegisterQueue()
+    {
+        SocketChannel channel = this.registerQueue.poll();
+        while (channel != null)
+        {
+            try
+            {
+                this.registerConnection(channel);
+            }
+            catch (IOException e)
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch (IOException e1)
+                {
+                    // nix mehr zu retten
+                }
+            }
+            channel = this.registerQueue.poll();
+        }
+    }
+
+    /**
+     * Alle Channels, welche in der Zwischenzeit durch einen Download wieder
+     * aufgeweckt wurden, werden wieder auf OP_WRITE gesetzt.
+     */
+    private void processWakeupQueue()
+    {
+        SelectionKey key = this.wakeupQueue.poll();
+        while (key != null)
+        {
+            if (key.isValid() && ((ChannelTransferContext) key.attachment()).isWritingResponse())
+            {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            key = this.wakeupQueue.poll();
+        }
+    }
+
+    /**
+     * Wecke einen geparkten Channel wieder auf. 
+     * 
+     * Der Aufruf erfolgt aus einem Download-Thread, die InterestOps dürfen
+     * hier also nicht angefasst werden. Der Key wird nur in die WakeupQueue
+     * gestellt und der Selector aus dem select() geholt.
+     * 
+     * @param key
+     */
+    private void wakeupChannel(SelectionKey key)
+    {
+        this.wakeupQueue.add(key);
+        key.selector().wakeup();
+    }
+
     /**
      * Behandle eine neu hereinkommende Verbindung.
      * 
@@ -113,25 +342,42 @@ public class MainSelector implements Runnable
         try
         {
             SocketChannel newChannel = channel.accept();
-            newChannel.configureBlocking(false);
-            SelectionKey newKey = newChannel.register(key.selector(), SelectionKey.OP_READ);
-
-            SocketAddress remote = newChannel.socket().getRemoteSocketAddress();
-            newKey.attach(new ChannelTransferContext(remote));
+            if (newChannel != null)
+            {
+                this.registerConnection(newChannel);
+            }
         }
         catch (IOException e)
         {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            log.error(MsgFactory.get(this.getClass(), EMsgIds.ERR_ACCEPT, e));
         }
     }
 
     /**
-     * Auf einer Verbindung sind Daten herein gekommen. Wir benutzen hier einen
-     * gemeinsammen ReadBuffer über alle Channels, einfach um Speicherplatz
-     * zu sparen. Die Channels werden ohnehin sequentiell verarbeitet.
+     * Registriere eine neue Verbindung an diesem Selector
+     * 
+     * Nagle wird abgeschaltet: ResponseHeader und Content werden (außer aus 
+     * dem MemoryTier) mit getrennten writes übertragen. Bei kleinen Resourcen
+     * würde der Content sonst auf das (verzögerte) ACK des Clients für den
+     * Header warten, bei keep-alive kostet das pro Request bis zu 40ms.
      * 
-     * Wir übertragen die empfangenen Daten in den TransferContext. Sollte
+     * @param channel
+     * @throws IOException
+     */
+    private void registerConnection(SocketChannel channel) throws IOException
+    {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey newKey = channel.register(this.selector, SelectionKey.OP_READ);
+
+        SocketAddress remote = channel.socket().getRemoteSocketAddress();
+        newKey.attach(new ChannelTransferContext(remote, this.config.getMaxKeepAliveRequests(),
+            this.recvBufferPool));
+    }
+
+    /**
+     * Auf einer Verbindung sind Daten herein gekommen. Diese werden direkt in
+     * den ReceiveBuffer des TransferContext gelesen und dort geparsed. Sollte
      * damit ein kompletter HTTP-Header empfangen sein, so wechseln wir das
      * InterestSet auf Write.
      * 
@@ -145,108 +391,202 @@ public class MainSelector implements Runnable
         try
         {
             SocketChannel channel = (SocketChannel) key.channel();
-            ByteBuffer byteBuf = ByteBuffer.wrap(this.ioBuffer);
+            ChannelTransferContext ctx = (ChannelTransferContext) key.attachment();
 
-            int read = channel.read(byteBuf);
+            int read = ctx.readRequestData(channel);
             if (read == -1)
             {
-                // TODO: unexpected eof!
-                channel.socket().close();
-                key.cancel();
+                this.closeChannel(key);
             }
             else
             {
-                if (read > 0)
+                if (read > 0 && ctx.parseNextRequest())
                 {
-                    byteBuf.flip();
+                    this.startResponse(key, ctx);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            this.closeChannel(key);
+        }
+    }
 
-                    ChannelTransferContext ctx = (ChannelTransferContext) key.attachment();
-                    if (ctx.appendRequestData(byteBuf.array(), read))
-                    {
-                        String resName = ctx.getRequestHeader().getUrl();
-                        PushbackInputStream pushbackStream = new PushbackInputStream( //
-                            this.cacheRepo.getResource(resName), //
-                            this.config.getIoBufferSize());
+    /**
+     * Ein kompletter Request liegt vor. Die Quelle für die Response wird aus
+     * dem Cache angefordert und der Channel auf OP_WRITE geschaltet. Einen 
+     * fehlerhaften Request hat der Context bereits selbst beantwortet.
+     * 
+     * Muss die Resource geladen werden, ist die Download-Queue aber voll, so 
+     * wird der Request sofort mit "503 Service Unavailable" beantwortet.
+     * 
+     * @param key
+     * @param ctx
+     * @throws IOException
+     */
+    private void startResponse(SelectionKey key, ChannelTransferContext ctx) throws IOException
+    {
+        if (ctx.getDataSrc() == null)
+        {
+            HttpRequestHeader reqHeader = ctx.getRequestHeader();
+            String resName = reqHeader.getUrl();
 
-                        ctx.setDataSrc(pushbackStream);
-                        key.interestOps(SelectionKey.OP_WRITE);
-                    }
+            // Update-Checks der Clients ohne Zugriff auf das Cache-File beantworten
+            IResourceSource source = null;
+            if (HttpConditional.isConditional(reqHeader))
+            {
+                ResourceMetaData cachedMetaData = this.cacheRepo.getCachedMetaData(resName);
+                if (cachedMetaData != null && HttpConditional.isNotModified(reqHeader, cachedMetaData))
+                {
+                    source = new StatusResponseSource(cachedMetaData);
                 }
             }
+
+            try
+            {
+                if (source == null)
+                {
+                    source = this.cacheRepo.getResource(resName);
+                }
+                ctx.setDataSrc(source);
+            }
+            catch (EngineOverloadException e)
+            {
+                ctx.setServiceUnavailable(RETRY_AFTER_SECONDS);
+            }
         }
-        catch (IOException e)
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Die Response wurde komplett übertragen.
+     * 
+     * Kann die Verbindung weiter verwendet werden, so wird entweder sofort der
+     * nächste bereits empfangene Request (pipelining) bedient oder wieder auf 
+     * den nächsten Request gewartet. Andernfalls wird die Verbindung 
+     * geschlossen.
+     * 
+     * @param key
+     * @param ctx
+     * @throws IOException
+     */
+    private void completeResponse(SelectionKey key, ChannelTransferContext ctx) throws IOException
+    {
+        if (!ctx.responseCompleted())
         {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            this.closeChannel(key);
         }
-        catch (InterruptedException e)
+        else
         {
-            e.printStackTrace();
-            Thread.currentThread().interrupt();
+            if (ctx.parseNextRequest())
+            {
+                this.startResponse(key, ctx);
+            }
+            else
+            {
+                key.interestOps(SelectionKey.OP_READ);
+            }
         }
+    }
 
+    /**
+     * Schließe eine Verbindung und gib eine ggf. noch offene Quelle sowie den
+     * ReceiveBuffer frei.
+     * 
+     * @param key
+     */
+    private void closeChannel(SelectionKey key)
+    {
+        key.cancel();
+        try
+        {
+            key.channel().close();
+        }
+        catch (IOException e)
+        {
+            // nix mehr zu retten
+        }
+
+        ((ChannelTransferContext) key.attachment()).close();
     }
 
     /**
      * Der Channel ist bereit zum schreiben.
      * 
-     * Wir lesen aus dem SourceStream des TransferContextes in den gemeinsammen
-     * ioBuffer. 
+     * Wir übertragen ab der aktuellen Position des TransferContextes Daten aus
+     * der Quelle in den Channel. Für Resourcen aus dem Cache passiert das 
+     * zero-copy via {@link java.nio.channels.FileChannel#transferTo}, für 
+     * laufende Downloads über den gemeinsammen ioBuffer.
      * 
-     * Sollte dabei EOF des SourceStreams erkannt werden, dann wird der Channel 
+     * Sollte dabei EOF der Quelle erkannt werden, so ist die Response komplett.
+     * Die Verbindung wird dann entweder für den nächsten Request verwendet oder
      * geschlossen und aus dem Selector entfernt.
      * 
-     * Sollten aktuell keine Daten am SourceStream anliegen, so wird nichts 
-     * gemacht.
+     * Sollten aktuell keine Daten an der Quelle anliegen, so wird der Channel
+     * "geparkt": Das InterestSet wird geleert und die Quelle weckt den Channel
+     * über die WakeupQueue wieder auf, sobald neue Daten vorliegen. Damit 
+     * dreht der Selector nicht im Leerlauf, solange ein Download vom Parent
+     * noch keine Daten geliefert hat.
+     * 
+     * Sollten weniger Bytes geschrieben werden können als bereit stehen, so
+     * merkt sich der TransferContext einfach die erreichte Position. 
      * 
-     * Sollten weniger Bytes geschrieben werden können als gelesen wurden, so
-     * werden die "restlichen" Daten in den SourceStream zurück gepushed.
+     * Ein Fehler beim schreiben ist der Normalfall, wenn der Client eine 
+     * Verbindung schließt (etwa eine nicht mehr benötigte keep-alive 
+     * Verbindung), und wird deshalb nur im debug-Level protokolliert.
      * 
      * @param key
      */
     private void handleWritableChannel(SelectionKey key)
     {
         SocketChannel channel = (SocketChannel) key.channel();
+        ChannelTransferContext ctx = (ChannelTransferContext) key.attachment();
         try
         {
-            ChannelTransferContext ctx = (ChannelTransferContext) key.attachment();
-            PushbackInputStream dataIn = ctx.getDataSrc();
-
-            int read = dataIn.read(this.ioBuffer);
-            
-            switch (read)
+            long written = ctx.transferData(channel, this.ioBuffer);
+            if (written == -1)
             {
-                case -1 :
-                    channel.socket().close();
-                    key.cancel();
-                    dataIn.close();
-                    break;
-
-                case 0 :
-                    break;
-
-                default :
-                    ByteBuffer buf = ByteBuffer.wrap(this.ioBuffer, 0, read);
-                    int written = channel.write(buf);
-                    if (read > written)
-                    {
-                        dataIn.unread(ioBuffer, written, read - written);
-                    }
-                    break;
+                this.completeResponse(key, ctx);
+            }
+            else
+            {
+                if (written == 0)
+                {
+                    this.parkChannel(key, ctx);
+                }
             }
         }
         catch (IOException e)
         {
-            try
-            {
-                e.printStackTrace();
-                key.cancel();
-                channel.socket().close();
-            }
-            catch (IOException ex)
-            {
+            log.debug(MsgFactory.get(this.getClass(), EMsgIds.ERR_WRITE_CHANNEL, key.channel(), e));
+            this.closeChannel(key);
+        }
+    }
 
-            }
+    /**
+     * Parke einen Channel, bis an der Quelle wieder Daten bereit stehen. 
+     * 
+     * Stehen bereits Daten bereit (der Socket konnte also nur nichts 
+     * aufnehmen), so bleibt der Channel auf OP_WRITE.
+     * 
+     * @param key
+     * @param ctx
+     */
+    private void parkChannel(SelectionKey key, ChannelTransferContext ctx)
+    {
+        key.interestOps(0);
+        if (!ctx.awaitData(() -> this.wakeupChannel(key)))
+        {
+            key.interestOps(SelectionKey.OP_WRITE);
         }
     }
+
+    /**
+     * 
+     */
+    private enum EMsgIds
+    {
+        ERR_ACCEPT, //
+        ERR_WRITE_CHANNEL, //
+    }
 }
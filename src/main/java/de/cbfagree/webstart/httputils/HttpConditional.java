@@ -0,0 +1,107 @@
+package de.cbfagree.webstart.httputils;
+
+import de.cbfagree.webstart.backend.ResourceMetaData;
+
+/**
+ * Auswertung bedingter Requests (If-None-Match, If-Modified-Since).
+ *
+ * Java Webstart prüft bei jedem Start einer Anwendung, ob sich JNLP und JARs
+ * geändert haben. Hält der Client eine aktuelle Version, so wird nur mit
+ * "304 Not Modified" geantwortet und kein Content übertragen.
+ */
+public class HttpConditional
+{
+    /**
+     * Ist die Resource seit der Version des Clients unverändert?
+     *
+     * Schickt der Client If-None-Match, so entscheidet nur dieses (schwacher
+     * Vergleich der ETags, "*" passt immer). Andernfalls wird If-Modified-Since
+     * mit dem Zeitpunkt der letzten Änderung verglichen. Bedingungen werden
+     * nur für GET/HEAD auf komplette Resourcen (StatusCode 200) ausgewertet.
+     *
+     * @param request
+     * @param metaData
+     * @return <code>true</code>, wenn mit "304 Not Modified" geantwortet
+     *         werden kann.
+     */
+    public static boolean isNotModified(HttpRequestHeader request, ResourceMetaData metaData)
+    {
+        if (metaData.statusCode() != 200 || !("GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod())))
+        {
+            return false;
+        }
+
+        String ifNoneMatch = request.getIfNoneMatch();
+        if (ifNoneMatch != null)
+        {
+            return HttpConditional.matchesAnyETag(ifNoneMatch, metaData.etag());
+        }
+
+        String ifModifiedSince = request.getIfModifiedSince();
+        if (ifModifiedSince != null && metaData.lastModified() > 0)
+        {
+            long since = HttpDate.parse(ifModifiedSince);
+            return since != -1 && HttpDate.truncate(metaData.lastModified()) <= since;
+        }
+        return false;
+    }
+
+    /**
+     * @param request
+     * @return <code>true</code>, wenn der Request If-None-Match oder
+     *         If-Modified-Since enthält.
+     */
+    public static boolean isConditional(HttpRequestHeader request)
+    {
+        return request.getIfNoneMatch() != null || request.getIfModifiedSince() != null;
+    }
+
+    /**
+     * Muss der Header für einen Request individuell erzeugt werden, weil das
+     * Ergebnis von Bedingungen oder einem Range abhängt?
+     *
+     * @param request
+     * @return
+     */
+    public static boolean hasPreconditions(HttpRequestHeader request)
+    {
+        return HttpConditional.isConditional(request) || request.getRange() != null;
+    }
+
+    /**
+     * @param ifNoneMatch eine durch Kommas getrennte Liste von ETags oder "*"
+     * @param etag
+     * @return
+     */
+    private static boolean matchesAnyETag(String ifNoneMatch, String etag)
+    {
+        if (ifNoneMatch.trim().equals("*"))
+        {
+            return true;
+        }
+
+        if (etag == null)
+        {
+            return false;
+        }
+
+        String opaque = HttpConditional.stripWeak(etag);
+        for (String candidate : ifNoneMatch.split(","))
+        {
+            if (HttpConditional.stripWeak(candidate.trim()).equals(opaque))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param etag
+     * @return
+     */
+    private static String stripWeak(String etag)
+    {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+}
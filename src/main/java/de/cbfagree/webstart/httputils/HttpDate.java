@@ -0,0 +1,66 @@
+package de.cbfagree.webstart.httputils;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Formatieren und parsen von Zeitpunkten im HTTP-Format (RFC 1123), etwa
+ * "Tue, 15 Nov 1994 08:12:31 GMT".
+ *
+ * Formatiert wird immer im IMF-fixdate Format (RFC 7231, Abschnitt 7.1.1.1)
+ * mit zweistelligem Tag. Das RFC 1123 Format der JDK lässt die führende Null
+ * weg ("Tue, 3 Jun 2008 ..."), wird aber beim parsen weiterhin akzeptiert.
+ *
+ * HTTP-Zeitpunkte haben nur eine Auflösung von Sekunden. Beim Vergleich mit
+ * Zeitpunkten in Millisekunden müssen diese also vorher abgeschnitten werden,
+ * siehe {@link #truncate(long)}.
+ */
+public class HttpDate
+{
+    private static final DateTimeFormatter IMF_FIXDATE_FORMAT = DateTimeFormatter
+        .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+        .withZone(ZoneOffset.UTC);
+
+    private static final DateTimeFormatter HTTP_DATE_FORMAT = DateTimeFormatter.RFC_1123_DATE_TIME
+        .withZone(ZoneOffset.UTC);
+
+    /**
+     * @param millis Millisekunden seit der Epoche
+     * @return
+     */
+    public static String format(long millis)
+    {
+        return IMF_FIXDATE_FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * @param value
+     * @return die Millisekunden seit der Epoche oder -1, wenn der Wert nicht
+     *         geparsed werden konnte.
+     */
+    public static long parse(String value)
+    {
+        try
+        {
+            return Instant.from(HTTP_DATE_FORMAT.parse(value.trim())).toEpochMilli();
+        }
+        catch (DateTimeParseException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Schneide einen Zeitpunkt auf die Auflösung von HTTP-Zeitpunkten ab
+     * 
+     * @param millis
+     * @return
+     */
+    public static long truncate(long millis)
+    {
+        return millis - Math.floorMod(millis, 1000L);
+    }
+}
@@ -0,0 +1,32 @@
+package de.cbfagree.webstart.httputils;
+
+import de.cbfagree.webstart.messages.MsgFactory;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+/**
+ * Ein RequestHeader konnte nicht geparsed werden. Die Exception trägt den
+ * StatusCode, mit welchem der Request beantwortet werden soll.
+ */
+@Getter(AccessLevel.PUBLIC)
+public class HttpParseException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    public HttpParseException(int statusCode, EMsgId msgId, Object... args)
+    {
+        super( //
+            MsgFactory.get(HttpParseException.class, msgId, args).getFormattedMessage() //
+        );
+        this.statusCode = statusCode;
+    }
+
+    public enum EMsgId
+    {
+        ERR_HEADER_TOO_LARGE, //
+        ERR_BAD_REQUEST_LINE, //
+        ERR_BAD_HEADER_FIELD, //
+    }
+}
@@ -0,0 +1,141 @@
+package de.cbfagree.webstart.httputils;
+
+import de.cbfagree.webstart.backend.ResourceMetaData;
+
+/**
+ * Ein einzelner Byte-Bereich aus dem Range-Header eines Requests.
+ *
+ * Unterstützt werden nur einzelne Bereiche der Formen "bytes=500-999",
+ * "bytes=500-" und "bytes=-500". Mehrere Bereiche oder syntaktisch ungültige
+ * Angaben werden ignoriert, die Resource wird dann komplett ausgeliefert. Das
+ * ist laut RFC 7233 zulässig.
+ *
+ * @param start die Position des ersten Bytes
+ * @param end die Position des letzten Bytes (inklusive)
+ */
+public record HttpRange(long start, long end)
+{
+    /**
+     * Der angeforderte Bereich liegt komplett hinter dem Ende der Resource
+     */
+    public static final HttpRange UNSATISFIABLE = new HttpRange(-1, -1);
+
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * Ermittle den auszuliefernden Bereich für einen Request.
+     *
+     * Ein Bereich wird nur für komplette Resourcen (StatusCode 200) bekannter
+     * Länge ausgeliefert. Schickt der Client einen If-Range Header, so muss
+     * dieser zum ETag (starker Vergleich) bzw. zum Zeitpunkt der letzten 
+     * Änderung passen. Andernfalls hat sich die Resource seit dem 
+     * abgebrochenen Download geändert und wird komplett ausgeliefert.
+     *
+     * @param request
+     * @param metaData
+     * @return der Bereich, {@link #UNSATISFIABLE} oder <code>null</code>, 
+     *         wenn die komplette Resource ausgeliefert werden soll.
+     */
+    public static HttpRange forRequest(HttpRequestHeader request, ResourceMetaData metaData)
+    {
+        if (request.getRange() == null || metaData.statusCode() != 200 || metaData.contentLength() < 0)
+        {
+            return null;
+        }
+
+        String ifRange = request.getIfRange();
+        if (ifRange != null && !HttpRange.matchesIfRange(ifRange, metaData))
+        {
+            return null;
+        }
+        return HttpRange.parse(request.getRange(), metaData.contentLength());
+    }
+
+    /**
+     * Parse den Wert eines Range-Headers
+     *
+     * @param value
+     * @param length die Länge der kompletten Resource
+     * @return der Bereich, {@link #UNSATISFIABLE} oder <code>null</code>, wenn
+     *         die Angabe ignoriert werden soll.
+     */
+    public static HttpRange parse(String value, long length)
+    {
+        if (!value.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length()) || value.indexOf(',') != -1)
+        {
+            return null;
+        }
+
+        String spec = value.substring(BYTES_UNIT.length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1)
+        {
+            return null;
+        }
+
+        try
+        {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty())
+            {
+                // Suffix: die letzten n Bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || length == 0)
+                {
+                    return UNSATISFIABLE;
+                }
+                return new HttpRange(Math.max(0, length - suffix), length - 1);
+            }
+
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (start < 0 || end < start)
+            {
+                return null;
+            }
+
+            if (start >= length)
+            {
+                return UNSATISFIABLE;
+            }
+            return new HttpRange(start, Math.min(end, length - 1));
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * @param ifRange
+     * @param metaData
+     * @return
+     */
+    private static boolean matchesIfRange(String ifRange, ResourceMetaData metaData)
+    {
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+        {
+            return !ifRange.startsWith("W/") && ifRange.equals(metaData.etag());
+        }
+
+        long date = HttpDate.parse(ifRange);
+        return date != -1 && metaData.lastModified() > 0 && date == HttpDate.truncate(metaData.lastModified());
+    }
+
+    /**
+     * @return
+     */
+    public boolean isSatisfiable()
+    {
+        return this.start >= 0;
+    }
+
+    /**
+     * @return die Anzahl der Bytes im Bereich
+     */
+    public long length()
+    {
+        return this.end - this.start + 1;
+    }
+}
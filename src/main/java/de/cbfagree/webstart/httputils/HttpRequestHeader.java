@@ -6,6 +6,14 @@ import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
 
+/**
+ * Beschreibt den HTTP-RequestHeader eines Clients.
+ *
+ * Es werden nur die HeaderFields gehalten, welche der Proxy tatsächlich
+ * auswertet. Alle anderen HeaderFields werden bereits vom
+ * {@link HttpRequestHeaderParser} verworfen. Nicht gesendete HeaderFields
+ * sind <code>null</code>.
+ */
 @Getter(AccessLevel.PUBLIC)
 @Setter(AccessLevel.NONE)
 @Builder()
@@ -15,4 +23,57 @@ public class HttpRequestHeader
     private String method;
     private String url;
     private String version;
+
+    private String host;
+    private String range;
+    private String ifRange;
+    private String ifNoneMatch;
+    private String ifModifiedSince;
+    private String acceptEncoding;
+    private String connection;
+    private String contentLength;
+    private String transferEncoding;
+
+    /**
+     * Möchte der Client die Verbindung nach dem Request weiter verwenden?
+     *
+     * Für HTTP/1.1 ist das der Default, solange der Client nicht explizit
+     * "Connection: close" sendet. Für HTTP/1.0 muss der Client explizit
+     * "Connection: keep-alive" senden.
+     *
+     * @return
+     */
+    public boolean isKeepAlive()
+    {
+        if (HttpRequestHeaderParser.HTTP_1_1.equals(this.version))
+        {
+            return this.connection == null || !this.connection.equalsIgnoreCase("close");
+        }
+        return this.connection != null && this.connection.equalsIgnoreCase("keep-alive");
+    }
+
+    /**
+     * Hat der Client einen Body an den Request gehängt?
+     *
+     * Der Proxy liest keine Bodies. Ein solcher Body liegt also noch vor dem
+     * nächsten Request auf der Verbindung, diese kann nach der Response nicht
+     * weiter verwendet werden.
+     *
+     * @return
+     */
+    public boolean hasBody()
+    {
+        return this.transferEncoding != null || (this.contentLength != null && !this.contentLength.equals("0"));
+    }
+
+    /**
+     * Enthält die Response auf diesen Request einen Content? Das ist für
+     * alle Methoden außer HEAD der Fall.
+     *
+     * @return
+     */
+    public boolean isContentRequested()
+    {
+        return !"HEAD".equals(this.method);
+    }
 }
@@ -1,35 +1,340 @@
 package de.cbfagree.webstart.httputils;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import de.cbfagree.webstart.httputils.HttpParseException.EMsgId;
 import de.cbfagree.webstart.httputils.HttpRequestHeader.HttpRequestHeaderBuilder;
 
+/**
+ * Ein fortsetzbarer Parser für HTTP-RequestHeader.
+ *
+ * Der Parser arbeitet direkt auf dem ReceiveBuffer einer Verbindung. Jeder
+ * Aufruf von {@link #parse(ByteBuffer)} verarbeitet nur die seit dem letzten
+ * Aufruf neu empfangenen Bytes, bereits verarbeitete Zeilen werden also nicht
+ * erneut durchsucht. Ein langsam eintröpfelnder Header kostet damit nicht mehr
+ * als ein am Stück empfangener.
+ *
+ * Es werden nur die RequestLine und die HeaderFields ausgewertet, welche der
+ * Proxy tatsächlich benötigt. Die Namen der HeaderFields werden byteweise
+ * verglichen, Strings werden nur für die Werte der benötigten HeaderFields
+ * erzeugt. Für die üblichen Methoden und Versionen werden Konstanten
+ * verwendet.
+ *
+ * Pro Verbindung wird genau ein Parser verwendet, dieser ist <b>nicht</b>
+ * thread-safe.
+ */
 public class HttpRequestHeaderParser
 {
-    public HttpRequestHeader parse(byte[] buffer, int len)
+    public static final String HTTP_1_0 = "HTTP/1.0";
+    public static final String HTTP_1_1 = "HTTP/1.1";
+
+    private static final String[] METHODS = { "GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "TRACE" };
+    private static final String[] VERSIONS = { HTTP_1_1, HTTP_1_0 };
+
+    private static final int FIELD_HOST = 0;
+    private static final int FIELD_RANGE = 1;
+    private static final int FIELD_IF_NONE_MATCH = 2;
+    private static final int FIELD_IF_MODIFIED_SINCE = 3;
+    private static final int FIELD_ACCEPT_ENCODING = 4;
+    private static final int FIELD_CONNECTION = 5;
+    private static final int FIELD_IF_RANGE = 6;
+    private static final int FIELD_CONTENT_LENGTH = 7;
+    private static final int FIELD_TRANSFER_ENCODING = 8;
+
+    private static final byte[][] FIELD_NAMES = { //
+        ascii("host"), //
+        ascii("range"), //
+        ascii("if-none-match"), //
+        ascii("if-modified-since"), //
+        ascii("accept-encoding"), //
+        ascii("connection"), //
+        ascii("if-range"), //
+        ascii("content-length"), //
+        ascii("transfer-encoding"), //
+    };
+
+    private int maxHeaderSize;
+
+    private int scanPos;
+    private int lineStart;
+    private HttpRequestHeaderBuilder builder;
+
+    /**
+     * @param maxHeaderSize die maximale Länge eines RequestHeaders inklusive
+     *        der abschließenden Leerzeile
+     */
+    public HttpRequestHeaderParser(int maxHeaderSize)
+    {
+        this.maxHeaderSize = maxHeaderSize;
+        this.reset();
+    }
+
+    /**
+     * Setze das Parsen mit den neu empfangenen Daten fort.
+     *
+     * Der Header beginnt an der aktuellen Position des Buffers, die gültigen
+     * Daten enden am Limit. Zwischen zwei Aufrufen darf der Buffer erweitert
+     * oder kopiert werden, die Position des Header-Beginns muss dabei aber
+     * erhalten bleiben.
+     *
+     * Ist der Header komplett, so wird die Position des Buffers hinter die
+     * abschließende Leerzeile gesetzt. Dort beginnt ggf. bereits der nächste
+     * Request (pipelining). Der Parser ist danach bereit für diesen nächsten
+     * Request.
+     *
+     * @param buffer
+     * @return der komplette Header oder <code>null</code>, wenn noch Daten
+     *         fehlen. Die Position des Buffers bleibt dann unverändert.
+     * @throws HttpParseException wenn der Header fehlerhaft oder zu groß ist
+     */
+    public HttpRequestHeader parse(ByteBuffer buffer) throws HttpParseException
+    {
+        int start = buffer.position();
+        int end = Math.min(buffer.limit(), start + this.maxHeaderSize);
+
+        for (int pos = start + this.scanPos; pos < end; pos++)
+        {
+            if (buffer.get(pos) == '\n')
+            {
+                int lineEnd = (pos > start + this.lineStart && buffer.get(pos - 1) == '\r') ? pos - 1 : pos;
+                int lineBegin = start + this.lineStart;
+                this.lineStart = pos + 1 - start;
+
+                if (this.builder == null)
+                {
+                    // Leerzeilen vor der RequestLine werden ignoriert
+                    if (lineEnd > lineBegin)
+                    {
+                        this.builder = HttpRequestHeader.builder();
+                        this.parseRequestLine(buffer, lineBegin, lineEnd);
+                    }
+                }
+                else
+                {
+                    if (lineEnd == lineBegin)
+                    {
+                        HttpRequestHeader result = this.builder.build();
+                        buffer.position(pos + 1);
+                        this.reset();
+                        return result;
+                    }
+                    this.parseHeaderField(buffer, lineBegin, lineEnd);
+                }
+            }
+        }
+
+        this.scanPos = end - start;
+        if (this.scanPos >= this.maxHeaderSize)
+        {
+            throw new HttpParseException(431, EMsgId.ERR_HEADER_TOO_LARGE, this.maxHeaderSize);
+        }
+        return null;
+    }
+
+    /**
+     * Setze den Parser für einen neuen Request zurück
+     */
+    private void reset()
     {
-        String[] lines = new String(buffer, 0, len).split("\r\n\r\n"); // CharSet US-ASCII?
-        if (lines.length == 0)
+        this.scanPos = 0;
+        this.lineStart = 0;
+        this.builder = null;
+    }
+
+    /**
+     * parse die RequestLine der Form "METHOD URL VERSION"
+     *
+     * @param buffer
+     * @param from
+     * @param to
+     * @throws HttpParseException
+     */
+    private void parseRequestLine(ByteBuffer buffer, int from, int to) throws HttpParseException
+    {
+        int firstSpace = indexOf(buffer, from, to, (byte) ' ');
+        int secondSpace = indexOf(buffer, firstSpace + 1, to, (byte) ' ');
+        if (firstSpace <= from || secondSpace <= firstSpace + 1 || secondSpace + 1 >= to)
         {
-            // TODO: throw something
+            throw new HttpParseException(400, EMsgId.ERR_BAD_REQUEST_LINE, toString(buffer, from, to));
         }
 
-        HttpRequestHeaderBuilder builder = HttpRequestHeader.builder();
-        this.parseHeaderLine(lines[0], builder);
-        
-        return builder.build();
+        this.builder //
+            .method(toConstant(buffer, from, firstSpace, METHODS)) //
+            .url(toString(buffer, firstSpace + 1, secondSpace)) //
+            .version(toConstant(buffer, secondSpace + 1, to, VERSIONS));
     }
 
     /**
-     * parse die RequestLine
-     * 
-     * @param line
-     * @param builder
+     * parse ein HeaderField der Form "Name: Wert". Nicht benötigte
+     * HeaderFields werden ignoriert.
+     *
+     * @param buffer
+     * @param from
+     * @param to
+     * @throws HttpParseException
      */
-    private void parseHeaderLine(String line, HttpRequestHeaderBuilder builder)
+    private void parseHeaderField(ByteBuffer buffer, int from, int to) throws HttpParseException
+    {
+        int colon = indexOf(buffer, from, to, (byte) ':');
+        if (colon <= from)
+        {
+            throw new HttpParseException(400, EMsgId.ERR_BAD_HEADER_FIELD, toString(buffer, from, to));
+        }
+
+        int field = findField(buffer, from, colon);
+        if (field == -1)
+        {
+            return;
+        }
+
+        int valueFrom = colon + 1;
+        int valueTo = to;
+        while (valueFrom < valueTo && isWhitespace(buffer.get(valueFrom)))
+        {
+            valueFrom++;
+        }
+        while (valueTo > valueFrom && isWhitespace(buffer.get(valueTo - 1)))
+        {
+            valueTo--;
+        }
+
+        String value = toString(buffer, valueFrom, valueTo);
+        switch (field)
+        {
+            case FIELD_HOST -> this.builder.host(value);
+            case FIELD_RANGE -> this.builder.range(value);
+            case FIELD_IF_NONE_MATCH -> this.builder.ifNoneMatch(value);
+            case FIELD_IF_MODIFIED_SINCE -> this.builder.ifModifiedSince(value);
+            case FIELD_ACCEPT_ENCODING -> this.builder.acceptEncoding(value);
+            case FIELD_CONNECTION -> this.builder.connection(value);
+            case FIELD_IF_RANGE -> this.builder.ifRange(value);
+            case FIELD_CONTENT_LENGTH -> this.builder.contentLength(value);
+            case FIELD_TRANSFER_ENCODING -> this.builder.transferEncoding(value);
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Suche den Namen eines HeaderFields (ohne Beachtung der Groß/Klein
+     * Schreibung) in der Liste der benötigten HeaderFields.
+     *
+     * @param buffer
+     * @param from
+     * @param to
+     * @return der Index des HeaderFields oder -1
+     */
+    private static int findField(ByteBuffer buffer, int from, int to)
+    {
+        int len = to - from;
+        for (int i = 0; i < FIELD_NAMES.length; i++)
+        {
+            byte[] name = FIELD_NAMES[i];
+            if (name.length == len)
+            {
+                int j = 0;
+                while (j < len && toLower(buffer.get(from + j)) == name[j])
+                {
+                    j++;
+                }
+
+                if (j == len)
+                {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Liefere eine der angegebenen Konstanten, sofern diese (ohne Beachtung
+     * der Groß/Klein-Schreibung) dem Bereich entspricht. Andernfalls wird ein
+     * neuer String in Großbuchstaben erzeugt.
+     *
+     * @param buffer
+     * @param from
+     * @param to
+     * @param constants
+     * @return
+     */
+    private static String toConstant(ByteBuffer buffer, int from, int to, String[] constants)
+    {
+        int len = to - from;
+        for (String constant : constants)
+        {
+            if (constant.length() == len)
+            {
+                int j = 0;
+                while (j < len && toUpper(buffer.get(from + j)) == constant.charAt(j))
+                {
+                    j++;
+                }
+
+                if (j == len)
+                {
+                    return constant;
+                }
+            }
+        }
+        return toString(buffer, from, to).toUpperCase();
+    }
+
+    /**
+     * @param buffer
+     * @param from
+     * @param to
+     * @param b
+     * @return der Index des ersten Vorkommens oder -1
+     */
+    private static int indexOf(ByteBuffer buffer, int from, int to, byte b)
+    {
+        for (int i = from; i < to; i++)
+        {
+            if (buffer.get(i) == b)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param buffer
+     * @param from
+     * @param to
+     * @return
+     */
+    private static String toString(ByteBuffer buffer, int from, int to)
+    {
+        if (buffer.hasArray())
+        {
+            return new String(buffer.array(), buffer.arrayOffset() + from, to - from, StandardCharsets.ISO_8859_1);
+        }
+
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isWhitespace(byte b)
+    {
+        return b == ' ' || b == '\t';
+    }
+
+    private static byte toLower(byte b)
+    {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static byte toUpper(byte b)
+    {
+        return (b >= 'a' && b <= 'z') ? (byte) (b - ('a' - 'A')) : b;
+    }
+
+    private static byte[] ascii(String s)
     {
-        String[] parts = line.split(" ");
-        builder //
-            .method(parts[0].toUpperCase()) //
-            .url(parts[1]) //
-            .version(parts[2].toUpperCase());
+        return s.getBytes(StandardCharsets.US_ASCII);
     }
 }
@@ -0,0 +1,220 @@
+package de.cbfagree.webstart.httputils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import de.cbfagree.webstart.backend.ResourceMetaData;
+import lombok.AccessLevel;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Beschreibt den HTTP-ResponseHeader, welcher an einen Client gesendet wird.
+ *
+ * Der Header wird erst beim ausliefern aus den Meta-Daten der Resource
+ * erzeugt. Ist die Länge des Contents bekannt, so wird ein Content-Length
+ * Header gesetzt. Andernfalls wird das Ende des Contents durch das schließen
+ * der Verbindung signalisiert, die Verbindung kann dann also nicht weiter
+ * verwendet werden.
+ *
+ * Wurde nur ein Bereich der Resource angefordert, so wird dieser mit
+ * "206 Partial Content" und einem Content-Range Header ausgeliefert.
+ */
+@Getter(AccessLevel.PUBLIC)
+@Setter(AccessLevel.NONE)
+@Builder()
+@ToString()
+public class HttpResponseHeader
+{
+    private int statusCode;
+    private String contentType;
+
+    @Builder.Default
+    private long contentLength = -1;
+
+    private String etag;
+    private long lastModified;
+    private boolean keepAlive;
+    private boolean acceptRanges;
+    private String contentRange;
+    private int retryAfter;
+
+    /**
+     * Erzeuge den Header für die Auslieferung einer Resource mit den 
+     * angegebenen Meta-Daten.
+     *
+     * @param metaData
+     * @param keepAlive soll die Verbindung weiter verwendet werden?
+     * @return
+     */
+    public static HttpResponseHeader forResource(ResourceMetaData metaData, boolean keepAlive)
+    {
+        return HttpResponseHeader.forResource(metaData, keepAlive, null);
+    }
+
+    /**
+     * Erzeuge den Header für die Auslieferung eines Bereiches einer Resource.
+     *
+     * @param metaData
+     * @param keepAlive soll die Verbindung weiter verwendet werden?
+     * @param range der angeforderte Bereich, {@link HttpRange#UNSATISFIABLE}
+     *        oder <code>null</code> für die komplette Resource
+     * @return
+     */
+    public static HttpResponseHeader forResource(ResourceMetaData metaData, boolean keepAlive, HttpRange range)
+    {
+        HttpResponseHeaderBuilder builder = HttpResponseHeader.builder() //
+            .statusCode(metaData.statusCode()) //
+            .contentType(metaData.contentType()) //
+            .contentLength(metaData.contentLength()) //
+            .etag(metaData.etag()) //
+            .lastModified(metaData.lastModified()) //
+            .keepAlive(keepAlive && metaData.contentLength() >= 0) //
+            .acceptRanges(metaData.statusCode() == 200 && metaData.contentLength() >= 0);
+
+        if (range != null)
+        {
+            if (range.isSatisfiable())
+            {
+                builder //
+                    .statusCode(206) //
+                    .contentLength(range.length()) //
+                    .contentRange(String.format("bytes %1$d-%2$d/%3$d", range.start(), range.end(),
+                        metaData.contentLength()));
+            }
+            else
+            {
+                builder //
+                    .statusCode(416) //
+                    .contentType(null) //
+                    .contentLength(0) //
+                    .contentRange(String.format("bytes */%1$d", metaData.contentLength()));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Erzeuge den Header für "304 Not Modified". Dieser enthält nur die 
+     * Validatoren der Resource und niemals einen Content.
+     *
+     * @param metaData
+     * @param keepAlive soll die Verbindung weiter verwendet werden?
+     * @return
+     */
+    public static HttpResponseHeader notModified(ResourceMetaData metaData, boolean keepAlive)
+    {
+        return HttpResponseHeader.builder() //
+            .statusCode(304) //
+            .etag(metaData.etag()) //
+            .lastModified(metaData.lastModified()) //
+            .keepAlive(keepAlive) //
+            .build();
+    }
+
+    /**
+     * Erzeuge den Header für "503 Service Unavailable" ohne Content.
+     *
+     * @param retryAfter die Anzahl Sekunden, nach welcher der Client es erneut
+     *        versuchen soll
+     * @param keepAlive soll die Verbindung weiter verwendet werden?
+     * @return
+     */
+    public static HttpResponseHeader serviceUnavailable(int retryAfter, boolean keepAlive)
+    {
+        return HttpResponseHeader.builder() //
+            .statusCode(503) //
+            .contentLength(0) //
+            .retryAfter(retryAfter) //
+            .keepAlive(keepAlive) //
+            .build();
+    }
+
+    /**
+     * Erzeuge die Byte-Repräsentation des Headers
+     *
+     * @return
+     */
+    public ByteBuffer render()
+    {
+        StringBuilder hdr = new StringBuilder() //
+            .append(String.format("HTTP/1.1 %1$d %2$s\r\n", this.statusCode, reasonPhrase(this.statusCode))) //
+            .append(this.keepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+
+        if (this.contentType != null)
+        {
+            hdr.append(String.format("Content-Type: %1$s\r\n", this.contentType));
+        }
+
+        if (this.contentLength >= 0)
+        {
+            hdr.append(String.format("Content-Length: %1$d\r\n", this.contentLength));
+        }
+
+        if (this.acceptRanges)
+        {
+            hdr.append("Accept-Ranges: bytes\r\n");
+        }
+
+        if (this.contentRange != null)
+        {
+            hdr.append(String.format("Content-Range: %1$s\r\n", this.contentRange));
+        }
+
+        if (this.etag != null)
+        {
+            hdr.append(String.format("ETag: %1$s\r\n", this.etag));
+        }
+
+        if (this.lastModified > 0)
+        {
+            hdr.append(String.format("Last-Modified: %1$s\r\n", HttpDate.format(this.lastModified)));
+        }
+
+        if (this.retryAfter > 0)
+        {
+            hdr.append(String.format("Retry-After: %1$d\r\n", this.retryAfter));
+        }
+
+        hdr.append("\r\n");
+        return ByteBuffer.wrap(hdr.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Liefere die ReasonPhrase zu einem StatusCode. Für unbekannte StatusCodes
+     * wird nur die Klasse des Codes geliefert.
+     *
+     * @param statusCode
+     * @return
+     */
+    public static String reasonPhrase(int statusCode)
+    {
+        return switch (statusCode)
+        {
+            case 200 -> "OK";
+            case 206 -> "Partial Content";
+            case 301 -> "Moved Permanently";
+            case 302 -> "Found";
+            case 304 -> "Not Modified";
+            case 400 -> "Bad Request";
+            case 403 -> "Forbidden";
+            case 404 -> "Not Found";
+            case 416 -> "Range Not Satisfiable";
+            case 431 -> "Request Header Fields Too Large";
+            case 500 -> "Internal Server Error";
+            case 501 -> "Not Implemented";
+            case 502 -> "Bad Gateway";
+            case 503 -> "Service Unavailable";
+            case 504 -> "Gateway Timeout";
+            default -> switch (statusCode / 100)
+            {
+                case 2 -> "Success";
+                case 3 -> "Redirection";
+                case 4 -> "Client Error";
+                default -> "Server Error";
+            };
+        };
+    }
+}
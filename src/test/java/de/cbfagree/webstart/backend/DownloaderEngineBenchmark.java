@@ -0,0 +1,272 @@
+package de.cbfagree.webstart.backend;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import javax.management.ObjectName;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import de.cbfagree.webstart.config.BackendConfig;
+import de.cbfagree.webstart.config.BackendConfig.EEngine;
+
+/**
+ * Ein einfacher Benchmark für die Download-Engines, insbesondere für den
+ * virtual-Modus.
+ *
+ * Als Backend dient ein lokaler HttpServer, welcher jede Anfrage erst nach
+ * einer festen Latenz beantwortet und den Content dann in kleinen Stücken
+ * mit Pausen liefert (ein langsames Download-Portal). Pro Engine werden
+ * gleichzeitig viele Downloads eingestellt und die Zeit gemessen, bis alle
+ * abgeschlossen sind. Zusätzlich wird gemeldet, wie viele Platform-Threads
+ * die Engine dafür zusätzlich gestartet hat. Die Threads des Backends sind
+ * vorab gestartet und zählen nicht mit, virtuelle Threads zählen ebenfalls
+ * nicht mit.
+ *
+ * Die threads-Engine ist durch die Anzahl der CPUs begrenzt, die async- und
+ * die virtual-Engine nur durch maxThreads.
+ *
+ * Aufruf: <code>DownloaderEngineBenchmark [downloads] [latenz-ms] [maxThreads]</code>
+ */
+public class DownloaderEngineBenchmark
+{
+    private static final int CONTENT_SIZE = 100 * 1024;
+    private static final int CHUNKS = 4;
+    private static final String MBEAN_NAME = "de.cbfagree.webstart:type=DownloaderEngine";
+
+    private int downloads;
+    private long latency;
+    private int maxThreads;
+    private HttpServer backend;
+    private Path stagingDir;
+
+    /**
+     * @param downloads
+     * @param latency
+     * @param maxThreads
+     * @param stagingDir
+     */
+    public DownloaderEngineBenchmark(int downloads, long latency, int maxThreads, Path stagingDir)
+    {
+        this.downloads = downloads;
+        this.latency = latency;
+        this.maxThreads = maxThreads;
+        this.stagingDir = stagingDir;
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int downloads = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+        long latency = (args.length > 1) ? Long.parseLong(args[1]) : 200;
+        int maxThreads = (args.length > 2) ? Integer.parseInt(args[2]) : 32;
+
+        Path stagingDir = Files.createTempDirectory("engine-bench");
+        DownloaderEngineBenchmark bench = new DownloaderEngineBenchmark(downloads, latency, maxThreads, stagingDir);
+        try
+        {
+            bench.startBackend();
+            System.out.printf("%1$d downloads of %2$d bytes, latency %3$d ms, maxThreads %4$d, %5$d CPUs%n",
+                downloads, CONTENT_SIZE, latency, maxThreads, Runtime.getRuntime().availableProcessors());
+            System.out.printf("%1$-10s %2$10s %3$10s %4$10s%n", "engine", "time [ms]", "failed", "threads");
+            for (EEngine engine : EEngine.values())
+            {
+                // Der erste Lauf dient nur dem Aufwärmen
+                bench.run(engine);
+                bench.report(engine, bench.run(engine));
+            }
+        }
+        finally
+        {
+            bench.stopBackend();
+            try (Stream<Path> files = Files.walk(stagingDir))
+            {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Lasse alle Downloads mit der angegebenen Engine laufen.
+     *
+     * @param engine
+     * @return das Ergebnis des Laufs
+     * @throws Exception
+     */
+    private Result run(EEngine engine) throws Exception
+    {
+        BackendConfig cfg = new ObjectMapper().readValue(String.format(
+            "{\"baseUrl\": \"http://127.0.0.1:%1$d/\", \"engine\": \"%2$s\", \"maxThreads\": %3$d, "
+                + "\"queueSize\": %4$d, \"readTimeout\": 30000}",
+            this.backend.getAddress().getPort(), engine.name().toLowerCase(), this.maxThreads, this.downloads),
+            BackendConfig.class);
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        threadBean.resetPeakThreadCount();
+        int baseThreads = threadBean.getThreadCount();
+
+        CountDownLatch done = new CountDownLatch(this.downloads);
+        Observer observer = new Observer(done);
+        DownloaderEngine downloader = new DownloaderEngine(cfg);
+        try
+        {
+            long start = System.nanoTime();
+            for (int i = 0; i < this.downloads; i++)
+            {
+                String name = String.format("/bench/%1$s/lib-%2$04d.jar", engine.name().toLowerCase(), i);
+                Path stagingFile = this.stagingDir.resolve(engine.name() + "-" + i + ".part");
+                Files.deleteIfExists(stagingFile);
+                WriteThroughBuffer buffer = new WriteThroughBuffer(name, stagingFile, 1024);
+                downloader.submit(new DownloadTask(name, buffer, observer));
+            }
+
+            if (!done.await(5, TimeUnit.MINUTES))
+            {
+                throw new IllegalStateException("downloads did not finish in time");
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            return new Result(millis, observer.failed.get(), threadBean.getPeakThreadCount() - baseThreads);
+        }
+        finally
+        {
+            downloader.shutdown();
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(MBEAN_NAME));
+        }
+    }
+
+    /**
+     * @param engine
+     * @param result
+     */
+    private void report(EEngine engine, Result result)
+    {
+        System.out.printf("%1$-10s %2$10d %3$10d %4$10d%n", engine.name().toLowerCase(), result.millis(),
+            result.failed(), result.threads());
+    }
+
+    /**
+     * Starte das langsame Backend. Der Pool ist groß genug für alle
+     * gleichzeitigen Downloads und bereits komplett gestartet.
+     *
+     * @throws IOException
+     */
+    private void startBackend() throws IOException
+    {
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(this.downloads);
+        pool.prestartAllCoreThreads();
+
+        this.backend = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.backend.setExecutor(pool);
+        this.backend.createContext("/", this::serve);
+        this.backend.start();
+    }
+
+    /**
+     *
+     */
+    private void stopBackend()
+    {
+        if (this.backend != null)
+        {
+            this.backend.stop(0);
+            ((ThreadPoolExecutor) this.backend.getExecutor()).shutdownNow();
+        }
+    }
+
+    /**
+     * Beantworte eine Anfrage nach der Latenz, der Content kommt in
+     * {@link #CHUNKS} Stücken mit Pausen.
+     *
+     * @param exchange
+     * @throws IOException
+     */
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        try (exchange)
+        {
+            Thread.sleep(this.latency);
+            exchange.getResponseHeaders().add("Content-Type", "application/java-archive");
+            exchange.sendResponseHeaders(200, CONTENT_SIZE);
+
+            byte[] chunk = new byte[CONTENT_SIZE / CHUNKS];
+            OutputStream out = exchange.getResponseBody();
+            for (int i = 0; i < CHUNKS; i++)
+            {
+                out.write(chunk);
+                out.flush();
+                Thread.sleep(this.latency / CHUNKS);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param millis die Zeit bis alle Downloads abgeschlossen waren
+     * @param failed die Anzahl gescheiterter Downloads
+     * @param threads die Anzahl zusätzlich gestarteter Platform-Threads
+     */
+    private record Result(long millis, int failed, int threads)
+    {
+    }
+
+    /**
+     * Zählt die abgeschlossenen Downloads.
+     */
+    private static class Observer implements IDownloadObserver
+    {
+        private CountDownLatch done;
+        private AtomicInteger failed = new AtomicInteger(0);
+
+        /**
+         * @param done
+         */
+        Observer(CountDownLatch done)
+        {
+            this.done = done;
+        }
+
+        @Override
+        public void downloadCompleted(String resourceName, WriteThroughBuffer buffer)
+        {
+            if (buffer.getTotalLength() != CONTENT_SIZE)
+            {
+                this.failed.incrementAndGet();
+            }
+            this.done.countDown();
+        }
+
+        @Override
+        public void downloadRejected(String resourceName, WriteThroughBuffer buffer)
+        {
+            this.failed.incrementAndGet();
+            this.done.countDown();
+        }
+
+        @Override
+        public void downloadFailed(String resourceName, WriteThroughBuffer buffer, Exception cause)
+        {
+            this.failed.incrementAndGet();
+            this.done.countDown();
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package de.cbfagree.webstart.backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Ein einfacher Benchmark für den {@link WriteThroughBuffer}: gemessen wird
+ * die Zeit, bis der Schreiber (append inkl. Digest und Benachrichtigung) und
+ * alle parallelen Leser fertig sind, bei unterschiedlicher Anzahl Leser und
+ * Block-Größen.
+ *
+ * Die Leser übertragen per transferTo in einen verwerfenden Channel und
+ * warten als {@link IBufferListener}, genau wie die Frontend-Connections.
+ * Jede Konfiguration läuft zuerst einige Runden zum Aufwärmen, gemeldet wird
+ * der Median der gemessenen Runden.
+ *
+ * Zum Vergleich läuft jede Konfiguration auch mit einer Referenz-
+ * Implementierung, welche wie der ursprüngliche Buffer arbeitet: Chunks im
+ * Speicher, geschützt durch einen ReentrantReadWriteLock, ein Chunk wird erst
+ * lesbar, wenn er voll ist. Hinzugefügt wurden dort nur die Listener, damit
+ * die Leser auf die gleiche Weise warten. Die Referenz schreibt weder ein
+ * Staging-File noch berechnet sie eine Prüfsumme, die Leser kopieren die
+ * Bytes wie früher in einen eigenen Buffer.
+ *
+ * Aufruf: <code>WriteThroughBufferBenchmark [mb-pro-runde] [runden]</code>
+ */
+public class WriteThroughBufferBenchmark
+{
+    private static final int[] READERS = { 0, 1, 4, 16 };
+    private static final int[] BLOCK_SIZES = { 8 * 1024, 64 * 1024 };
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int IO_BUFFER_SIZE = 0xffff;
+
+    private long length;
+    private Path stagingDir;
+
+    /**
+     * @param length
+     * @param stagingDir
+     */
+    public WriteThroughBufferBenchmark(long length, Path stagingDir)
+    {
+        this.length = length;
+        this.stagingDir = stagingDir;
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        long megaBytes = (args.length > 0) ? Long.parseLong(args[0]) : 64;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        Path stagingDir = Files.createTempDirectory("wtb-bench");
+        try
+        {
+            WriteThroughBufferBenchmark bench = new WriteThroughBufferBenchmark(megaBytes * 1024 * 1024, stagingDir);
+            System.out.printf("%1$-8s %2$8s %3$8s %4$12s%n", "impl", "readers", "block", "MB/s");
+            for (int blockSize : BLOCK_SIZES)
+            {
+                for (int readers : READERS)
+                {
+                    bench.measure("current", rounds, () -> bench.runRound(readers, blockSize), readers, blockSize);
+                    bench.measure("rwlock", rounds, () -> bench.runReferenceRound(readers, blockSize), readers,
+                        blockSize);
+                }
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(stagingDir);
+        }
+    }
+
+    /**
+     * @param impl
+     * @param rounds
+     * @param round
+     * @param readers
+     * @param blockSize
+     * @throws Exception
+     */
+    private void measure(String impl, int rounds, IRound round, int readers, int blockSize) throws Exception
+    {
+        for (int i = 0; i < WARMUP_ROUNDS; i++)
+        {
+            round.run();
+        }
+
+        long[] nanos = new long[rounds];
+        for (int i = 0; i < rounds; i++)
+        {
+            nanos[i] = round.run();
+        }
+        Arrays.sort(nanos);
+        double mbPerSec = (this.length * 1e9) / (1024 * 1024) / nanos[rounds / 2];
+        System.out.printf("%1$-8s %2$8d %3$8d %4$12.1f%n", impl, readers, blockSize, mbPerSec);
+    }
+
+    /**
+     * Schreibe {@link #length} Bytes mit der angegebenen Anzahl Leser.
+     *
+     * @param readers
+     * @param blockSize
+     * @return die Dauer bis alle Leser fertig sind in Nanosekunden
+     * @throws Exception
+     */
+    private long runRound(int readers, int blockSize) throws Exception
+    {
+        Path stagingFile = this.stagingDir.resolve("bench.part");
+        WriteThroughBuffer buffer = new WriteThroughBuffer("/bench", stagingFile, 1024);
+        buffer.setMetaData(new ResourceMetaData(200, null, this.length, null, 0));
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < readers; i++)
+        {
+            buffer.retain();
+            Thread reader = new Thread(() -> this.read(buffer), "reader-" + i);
+            threads.add(reader);
+        }
+
+        byte[] block = new byte[blockSize];
+        long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        for (long pos = 0; pos < this.length; pos += blockSize)
+        {
+            buffer.append(block, (int) Math.min(blockSize, this.length - pos));
+        }
+        buffer.close();
+        for (Thread reader : threads)
+        {
+            reader.join();
+        }
+        long nanos = System.nanoTime() - start;
+
+        buffer.getDigest();
+        buffer.release();
+        return nanos;
+    }
+
+    /**
+     * Wie {@link #runRound(int, int)}, aber mit der Referenz-Implementierung.
+     *
+     * @param readers
+     * @param blockSize
+     * @return die Dauer bis alle Leser fertig sind in Nanosekunden
+     * @throws Exception
+     */
+    private long runReferenceRound(int readers, int blockSize) throws Exception
+    {
+        RwLockChunkBuffer buffer = new RwLockChunkBuffer();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < readers; i++)
+        {
+            Thread reader = new Thread(() -> this.readReference(buffer), "reader-" + i);
+            threads.add(reader);
+        }
+
+        byte[] block = new byte[blockSize];
+        long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        for (long pos = 0; pos < this.length; pos += blockSize)
+        {
+            buffer.append(block, (int) Math.min(blockSize, this.length - pos));
+        }
+        buffer.close();
+        for (Thread reader : threads)
+        {
+            reader.join();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Ein Leser, welcher bis EOF in einen verwerfenden Channel überträgt.
+     *
+     * @param buffer
+     */
+    private void read(WriteThroughBuffer buffer)
+    {
+        Thread self = Thread.currentThread();
+        IBufferListener wakeup = b -> LockSupport.unpark(self);
+        WritableByteChannel sink = new NullChannel();
+        try
+        {
+            long pos = 0;
+            long transferred = 0;
+            while (transferred >= 0)
+            {
+                transferred = buffer.transferTo(pos, 256 * 1024, sink);
+                if (transferred > 0)
+                {
+                    pos += transferred;
+                }
+                else if (transferred == 0 && buffer.addListener(pos, wakeup))
+                {
+                    // Eine Registrierung gilt nur für eine Benachrichtigung,
+                    // danach wird einfach erneut versucht
+                    LockSupport.park();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        finally
+        {
+            try
+            {
+                buffer.release();
+            }
+            catch (IOException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Ein Leser der Referenz-Implementierung, welcher wie früher über einen
+     * eigenen Buffer in einen verwerfenden Channel kopiert.
+     *
+     * @param buffer
+     */
+    private void readReference(RwLockChunkBuffer buffer)
+    {
+        Thread self = Thread.currentThread();
+        Runnable wakeup = () -> LockSupport.unpark(self);
+        NullChannel sink = new NullChannel();
+        byte[] target = new byte[IO_BUFFER_SIZE];
+        try
+        {
+            int pos = 0;
+            int read = 0;
+            while (read >= 0)
+            {
+                read = buffer.getBytes(pos, target, 0, target.length);
+                if (read > 0)
+                {
+                    sink.write(ByteBuffer.wrap(target, 0, read));
+                    pos += read;
+                }
+                else if (read == 0 && buffer.addListener(pos, wakeup))
+                {
+                    LockSupport.park();
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Eine Runde des Benchmarks
+     */
+    @FunctionalInterface
+    private interface IRound
+    {
+        /**
+         * @return die Dauer in Nanosekunden
+         * @throws Exception
+         */
+        public long run() throws Exception;
+    }
+
+    /**
+     * Die Referenz: der ursprüngliche, durch einen ReentrantReadWriteLock
+     * geschützte Chunk-Buffer. Der aktuelle WriteChunk wird erst lesbar, wenn
+     * er voll ist oder der Buffer geschlossen wird. Die Listener werden
+     * benachrichtigt, sobald ein Chunk lesbar wird.
+     */
+    private static class RwLockChunkBuffer
+    {
+        private static final int CHUNK_SIZE = 0xffff;
+
+        private ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+        private List<byte[]> chunks = new ArrayList<>();
+        private int writePos;
+        private byte[] currWriteChunk = new byte[CHUNK_SIZE];
+        private boolean isClosed;
+        private ConcurrentLinkedQueue<Runnable> listeners = new ConcurrentLinkedQueue<>();
+
+        /**
+         * @param src
+         * @param len
+         * @throws InterruptedException
+         */
+        void append(byte[] src, int len) throws InterruptedException
+        {
+            boolean published = false;
+            this.rwLock.writeLock().lockInterruptibly();
+            try
+            {
+                int remaining = len;
+                int srcPos = 0;
+                while (remaining > 0)
+                {
+                    int copyable = Math.min(remaining, this.currWriteChunk.length - this.writePos);
+                    System.arraycopy(src, srcPos, this.currWriteChunk, this.writePos, copyable);
+                    remaining -= copyable;
+                    srcPos += copyable;
+                    this.writePos += copyable;
+
+                    if (this.writePos == this.currWriteChunk.length)
+                    {
+                        this.chunks.add(this.currWriteChunk);
+                        this.currWriteChunk = new byte[CHUNK_SIZE];
+                        this.writePos = 0;
+                        published = true;
+                    }
+                }
+            }
+            finally
+            {
+                this.rwLock.writeLock().unlock();
+            }
+
+            if (published)
+            {
+                this.fireBufferChanged();
+            }
+        }
+
+        /**
+         * Übernimm den angefangenen Chunk gekürzt in die Liste.
+         *
+         * @throws InterruptedException
+         */
+        void close() throws InterruptedException
+        {
+            this.rwLock.writeLock().lockInterruptibly();
+            try
+            {
+                if (this.writePos > 0)
+                {
+                    this.chunks.add(Arrays.copyOf(this.currWriteChunk, this.writePos));
+                }
+                this.isClosed = true;
+            }
+            finally
+            {
+                this.rwLock.writeLock().unlock();
+            }
+            this.fireBufferChanged();
+        }
+
+        /**
+         * @param pos
+         * @param target
+         * @param targetPos
+         * @param len
+         * @return die Anzahl gelesener Bytes, 0 wenn noch nichts lesbar ist,
+         *         oder -1 bei EOF
+         * @throws InterruptedException
+         */
+        int getBytes(int pos, byte[] target, int targetPos, int len) throws InterruptedException
+        {
+            this.rwLock.readLock().lockInterruptibly();
+            try
+            {
+                int chunkIdx = pos / CHUNK_SIZE;
+                if (chunkIdx < this.chunks.size())
+                {
+                    byte[] chunk = this.chunks.get(chunkIdx);
+                    int chunkOff = pos % CHUNK_SIZE;
+                    if (chunkOff < chunk.length)
+                    {
+                        int read = Math.min(chunk.length - chunkOff, len);
+                        System.arraycopy(chunk, chunkOff, target, targetPos, read);
+                        return read;
+                    }
+                }
+                return this.isClosed ? -1 : 0;
+            }
+            finally
+            {
+                this.rwLock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Registriere einen Listener wie beim {@link WriteThroughBuffer}.
+         *
+         * @param pos
+         * @param listener
+         * @return <code>false</code>, wenn bereits gelesen werden kann
+         * @throws InterruptedException
+         */
+        boolean addListener(int pos, Runnable listener) throws InterruptedException
+        {
+            this.listeners.add(listener);
+            if (this.isReadable(pos))
+            {
+                return !this.listeners.remove(listener);
+            }
+            return true;
+        }
+
+        /**
+         * @param pos
+         * @return
+         * @throws InterruptedException
+         */
+        private boolean isReadable(int pos) throws InterruptedException
+        {
+            this.rwLock.readLock().lockInterruptibly();
+            try
+            {
+                return this.isClosed || pos / CHUNK_SIZE < this.chunks.size();
+            }
+            finally
+            {
+                this.rwLock.readLock().unlock();
+            }
+        }
+
+        /**
+         *
+         */
+        private void fireBufferChanged()
+        {
+            Runnable listener = this.listeners.poll();
+            while (listener != null)
+            {
+                listener.run();
+                listener = this.listeners.poll();
+            }
+        }
+    }
+
+    /**
+     * Ein Channel, welcher alle Bytes verwirft.
+     */
+    private static class NullChannel implements WritableByteChannel
+    {
+        @Override
+        public int write(ByteBuffer src)
+        {
+            int len = src.remaining();
+            src.position(src.limit());
+            return len;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package de.cbfagree.webstart.backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ein Stress-Test für den lock-freien {@link WriteThroughBuffer}.
+ *
+ * Pro Runde schreibt genau ein Schreiber ein bekanntes Muster in Blöcken
+ * zufälliger Größe (abwechselnd über byte[] und ByteBuffer), während mehrere
+ * Leser parallel per {@link WriteThroughBuffer#transferTo(long, long, WritableByteChannel)}
+ * lesen. Finden die Leser keine Daten vor, so warten sie als
+ * {@link IBufferListener} und werden nur vom Schreiber geweckt. Eine verlorene
+ * Benachrichtigung fällt damit als Timeout auf.
+ *
+ * Geprüft wird:
+ * <ul>
+ * <li>jeder Leser sieht jedes Byte an der richtigen Position</li>
+ * <li>kein Leser meldet EOF, bevor alle Bytes veröffentlicht wurden</li>
+ * <li>der Digest entspricht dem des Musters</li>
+ * <li>nach der letzten Freigabe ist das Staging-File gelöscht</li>
+ * </ul>
+ *
+ * Aufruf: <code>WriteThroughBufferStressTest [runden] [leser] [bytes]</code>,
+ * der Exit-Code ist 0 wenn alle Runden erfolgreich waren.
+ */
+public class WriteThroughBufferStressTest
+{
+    // Wie lange ein Leser maximal auf eine Benachrichtigung wartet
+    private static final long READER_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+    private int readers;
+    private int length;
+    private Path stagingDir;
+    private AtomicInteger failures;
+
+    /**
+     * @param readers
+     * @param length
+     * @param stagingDir
+     */
+    public WriteThroughBufferStressTest(int readers, int length, Path stagingDir)
+    {
+        this.readers = readers;
+        this.length = length;
+        this.stagingDir = stagingDir;
+        this.failures = new AtomicInteger(0);
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        int readers = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        int length = (args.length > 2) ? Integer.parseInt(args[2]) : 1024 * 1024;
+
+        Path stagingDir = Files.createTempDirectory("wtb-stress");
+        try
+        {
+            WriteThroughBufferStressTest test = new WriteThroughBufferStressTest(readers, length, stagingDir);
+            for (int round = 0; round < rounds; round++)
+            {
+                test.runRound(round);
+            }
+
+            System.out.printf("%1$d rounds, %2$d readers, %3$d bytes: %4$d failures%n", rounds, readers, length,
+                test.failures.get());
+            System.exit((test.failures.get() == 0) ? 0 : 1);
+        }
+        finally
+        {
+            Files.deleteIfExists(stagingDir);
+        }
+    }
+
+    /**
+     * Eine Runde: ein Schreiber, {@link #readers} Leser auf einem neuen
+     * Buffer.
+     *
+     * @param round
+     * @throws Exception
+     */
+    private void runRound(int round) throws Exception
+    {
+        Path stagingFile = this.stagingDir.resolve(round + ".part");
+        int dataOffset = ThreadLocalRandom.current().nextInt(0, 512);
+        WriteThroughBuffer buffer = new WriteThroughBuffer("/stress/" + round, stagingFile, dataOffset);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < this.readers; i++)
+        {
+            Thread reader = new Thread(() -> this.read(buffer), "reader-" + i);
+            reader.start();
+            threads.add(reader);
+        }
+
+        byte[] expectedDigest = this.write(buffer);
+        for (Thread reader : threads)
+        {
+            reader.join();
+        }
+
+        // Der Schreiber gibt seine Referenz als letzter frei
+        buffer.release();
+        if (!Arrays.equals(expectedDigest, buffer.getDigest()))
+        {
+            this.fail(round, "digest mismatch");
+        }
+        if (Files.exists(stagingFile))
+        {
+            this.fail(round, "staging file not deleted after the last release");
+            Files.delete(stagingFile);
+        }
+    }
+
+    /**
+     * Der (einzige) Schreiber.
+     *
+     * @param buffer
+     * @return der erwartete Digest über das Muster
+     * @throws Exception
+     */
+    private byte[] write(WriteThroughBuffer buffer) throws Exception
+    {
+        MessageDigest expected = MessageDigest.getInstance(WriteThroughBuffer.DIGEST_ALGORITHM);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        buffer.setMetaData(new ResourceMetaData(200, null, this.length, null, 0));
+        int pos = 0;
+        boolean useArray = true;
+        while (pos < this.length)
+        {
+            int len = Math.min(random.nextInt(1, 16 * 1024), this.length - pos);
+            byte[] block = new byte[len];
+            for (int i = 0; i < len; i++)
+            {
+                block[i] = patternAt(pos + i);
+            }
+            expected.update(block);
+
+            if (useArray)
+            {
+                buffer.append(block, len);
+            }
+            else
+            {
+                buffer.append(ByteBuffer.wrap(block));
+            }
+            useArray = !useArray;
+            pos += len;
+
+            if (random.nextInt(8) == 0)
+            {
+                Thread.yield();
+            }
+        }
+        buffer.close();
+        return expected.digest();
+    }
+
+    /**
+     * Ein Leser. Er holt sich eine Referenz und liest bis EOF, jedes Byte
+     * wird gegen das Muster geprüft.
+     *
+     * @param buffer
+     */
+    private void read(WriteThroughBuffer buffer)
+    {
+        if (!buffer.retain())
+        {
+            this.fail(-1, "retain failed on a live buffer");
+            return;
+        }
+
+        Waiter waiter = new Waiter(Thread.currentThread());
+        try
+        {
+            VerifyingChannel target = new VerifyingChannel();
+            long transferred = 0;
+            while (transferred >= 0)
+            {
+                if (!buffer.isReadable(target.pos))
+                {
+                    waiter.await(buffer, target.pos);
+                    continue;
+                }
+                transferred = buffer.transferTo(target.pos, 64 * 1024, target);
+            }
+
+            if (target.pos != this.length)
+            {
+                this.fail(-1, "EOF after " + target.pos + " of " + this.length + " bytes");
+            }
+            if (target.mismatch >= 0)
+            {
+                this.fail(-1, "wrong byte at position " + target.mismatch);
+            }
+        }
+        catch (IOException e)
+        {
+            this.fail(-1, e.toString());
+        }
+        finally
+        {
+            try
+            {
+                buffer.release();
+            }
+            catch (IOException e)
+            {
+                this.fail(-1, e.toString());
+            }
+        }
+    }
+
+    /**
+     * @param round
+     * @param msg
+     */
+    private void fail(int round, String msg)
+    {
+        this.failures.incrementAndGet();
+        System.err.printf("round %1$d / %2$s: %3$s%n", round, Thread.currentThread().getName(), msg);
+    }
+
+    /**
+     * @param pos
+     * @return das Byte des Musters an der Position
+     */
+    private static byte patternAt(long pos)
+    {
+        return (byte) ((pos * 31) ^ (pos >>> 8));
+    }
+
+    /**
+     * Der Listener eines Lesers. Wie bei den Frontend-Connections gilt eine
+     * Registrierung nur für genau eine Benachrichtigung, danach prüft der
+     * Leser erneut und registriert sich ggf. wieder.
+     */
+    private static class Waiter implements IBufferListener
+    {
+        private Thread reader;
+        private volatile boolean notified;
+
+        /**
+         * @param reader
+         */
+        Waiter(Thread reader)
+        {
+            this.reader = reader;
+        }
+
+        @Override
+        public void bufferChanged(WriteThroughBuffer buffer)
+        {
+            this.notified = true;
+            LockSupport.unpark(this.reader);
+        }
+
+        /**
+         * Warte auf die nächste Benachrichtigung, sofern an der Position
+         * noch nicht gelesen werden kann.
+         *
+         * @param buffer
+         * @param pos
+         * @throws IOException wenn der Schreiber nicht innerhalb des Timeouts
+         *         benachrichtigt
+         */
+        void await(WriteThroughBuffer buffer, long pos) throws IOException
+        {
+            this.notified = false;
+            if (buffer.addListener(pos, this))
+            {
+                long deadline = System.nanoTime() + READER_TIMEOUT;
+                while (!this.notified)
+                {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                    {
+                        buffer.removeListener(this);
+                        throw new IOException("lost wakeup at position " + pos);
+                    }
+                    LockSupport.parkNanos(remaining);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ein Ziel-Channel, welcher jedes empfangene Byte gegen das Muster prüft.
+     */
+    private static class VerifyingChannel implements WritableByteChannel
+    {
+        private long pos = 0;
+        private long mismatch = -1;
+
+        @Override
+        public int write(ByteBuffer src)
+        {
+            int len = src.remaining();
+            while (src.hasRemaining())
+            {
+                if (src.get() != patternAt(this.pos) && this.mismatch < 0)
+                {
+                    this.mismatch = this.pos;
+                }
+                this.pos++;
+            }
+            return len;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
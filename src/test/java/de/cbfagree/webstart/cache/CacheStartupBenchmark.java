@@ -0,0 +1,251 @@
+package de.cbfagree.webstart.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.cbfagree.webstart.backend.ResourceMetaData;
+import de.cbfagree.webstart.backend.WriteThroughBuffer;
+import de.cbfagree.webstart.config.CacheConfig;
+
+/**
+ * Ein einfacher Benchmark für den Start des {@link CacheRepository}s mit
+ * einem großen Cache (Default: 100.000 Einträge).
+ *
+ * Angelegt wird ein Cache-Verzeichnis mit echten Cache-Files (je 1000 pro
+ * Unterverzeichnis) und dem passenden {@link CacheIndexJournal}. Gemessen
+ * wird
+ * <ul>
+ * <li>das reine Laden des Journals</li>
+ * <li>der Start des Repos bis zum komplett befüllten Index aus dem
+ * Journal</li>
+ * <li>der Start des Repos ohne Journal, also über den Scan des
+ * Cache-Verzeichnisses (der Fallback)</li>
+ * </ul>
+ *
+ * Der erste Lauf entspricht dem Start einer frischen JVM und wird separat
+ * ausgewiesen, für die weiteren Läufe wird der Median gemeldet. Der
+ * Page-Cache des Betriebssystems ist bei allen Läufen warm.
+ *
+ * Aufruf: <code>CacheStartupBenchmark [einträge] [läufe]</code>. Die
+ * log4j2.xml der Tests gehört dabei nicht in den Classpath, das DEBUG-Logging
+ * pro Eintrag würde den Scan dominieren.
+ */
+public class CacheStartupBenchmark
+{
+    private static final int ENTRIES_PER_DIR = 1000;
+    private static final byte[] BODY = new byte[64];
+
+    private File cacheDir;
+    private int entryCount;
+
+    /**
+     * @param cacheDir
+     * @param entryCount
+     */
+    public CacheStartupBenchmark(File cacheDir, int entryCount)
+    {
+        this.cacheDir = cacheDir;
+        this.entryCount = entryCount;
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 100_000;
+        int runs = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        Path cacheDir = Files.createTempDirectory("cache-startup");
+        try
+        {
+            CacheStartupBenchmark bench = new CacheStartupBenchmark(cacheDir.toFile(), entries);
+            long setupStart = System.nanoTime();
+            bench.createCache();
+            System.out.printf("created %1$d entries in %2$d ms%n", entries, millis(System.nanoTime() - setupStart));
+
+            System.out.printf("%1$-20s %2$12s %3$12s%n", "scenario", "first [ms]", "median [ms]");
+            report("journal load", bench.measure(runs, bench::loadJournal));
+            report("repo from journal", bench.measure(runs, bench::startFromJournal));
+            report("repo from scan", bench.measure(runs, bench::startFromScan));
+        }
+        finally
+        {
+            try (Stream<Path> files = Files.walk(cacheDir))
+            {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Lege die Cache-Files und das Journal an.
+     *
+     * @throws IOException
+     */
+    private void createCache() throws IOException
+    {
+        Map<String, CacheEntryHeader> entries = new HashMap<>();
+        long storedAt = System.currentTimeMillis() - this.entryCount;
+        for (int i = 0; i < this.entryCount; i++)
+        {
+            String name = String.format("/app/d%1$03d/lib-%2$06d.jar", i / ENTRIES_PER_DIR, i);
+            byte[] digest = new byte[32];
+            Arrays.fill(digest, (byte) i);
+            ResourceMetaData meta = new ResourceMetaData(200, "application/java-archive", BODY.length,
+                "\"" + Integer.toHexString(i) + "\"", storedAt);
+            CacheEntryHeader header = new CacheEntryHeader(meta, CacheEntryFormat.HEADER_SIZE, storedAt + i,
+                WriteThroughBuffer.DIGEST_ALGORITHM, digest);
+
+            File file = new File(this.cacheDir, name + CacheEntryFormat.SUFFIX);
+            file.getParentFile().mkdirs();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE))
+            {
+                CacheEntryFormat.write(channel, header);
+                channel.write(ByteBuffer.wrap(BODY), header.bodyOffset());
+            }
+            entries.put(name, header);
+        }
+
+        try (CacheIndexJournal journal = new CacheIndexJournal(this.getJournalFile()))
+        {
+            journal.rewrite(entries);
+        }
+    }
+
+    /**
+     * @return die Anzahl der geladenen Einträge
+     * @throws Exception
+     */
+    private int loadJournal() throws Exception
+    {
+        try (CacheIndexJournal journal = new CacheIndexJournal(this.getJournalFile()))
+        {
+            return journal.load().size();
+        }
+    }
+
+    /**
+     * @return die Anzahl der geladenen Einträge
+     * @throws Exception
+     */
+    private int startFromJournal() throws Exception
+    {
+        return this.startRepository();
+    }
+
+    /**
+     * Ohne Journal muss das Repo das Cache-Verzeichnis durchsuchen. Danach
+     * schreibt es das Journal neu, dieses wird für den nächsten Lauf wieder
+     * gelöscht.
+     *
+     * @return die Anzahl der geladenen Einträge
+     * @throws Exception
+     */
+    private int startFromScan() throws Exception
+    {
+        Files.deleteIfExists(this.getJournalFile());
+        return this.startRepository();
+    }
+
+    /**
+     * Starte ein Repo auf dem Cache-Verzeichnis und warte, bis der Index
+     * komplett ist.
+     *
+     * @return die Anzahl der geladenen Einträge
+     * @throws Exception
+     */
+    private int startRepository() throws Exception
+    {
+        CacheConfig cfg = new ObjectMapper().readValue(
+            String.format("{\"basePath\": \"%1$s\"}", this.cacheDir.getAbsolutePath()), CacheConfig.class);
+        CacheRepository repo = new CacheRepository(cfg, null);
+        while (!repo.isIndexComplete())
+        {
+            Thread.sleep(1);
+        }
+
+        String lastName = String.format("/app/d%1$03d/lib-%2$06d.jar", (this.entryCount - 1) / ENTRIES_PER_DIR,
+            this.entryCount - 1);
+        if (repo.getCachedMetaData(lastName) == null)
+        {
+            throw new IllegalStateException("index incomplete: " + lastName + " is missing");
+        }
+        return this.entryCount;
+    }
+
+    /**
+     * @param runs
+     * @param scenario
+     * @return die Dauer jedes Laufs in Nanosekunden
+     * @throws Exception
+     */
+    private long[] measure(int runs, IScenario scenario) throws Exception
+    {
+        long[] nanos = new long[runs];
+        for (int i = 0; i < runs; i++)
+        {
+            long start = System.nanoTime();
+            int loaded = scenario.run();
+            nanos[i] = System.nanoTime() - start;
+            if (loaded != this.entryCount)
+            {
+                throw new IllegalStateException(String.format("loaded %1$d of %2$d entries", loaded,
+                    this.entryCount));
+            }
+        }
+        return nanos;
+    }
+
+    /**
+     * @param name
+     * @param nanos
+     */
+    private static void report(String name, long[] nanos)
+    {
+        long first = nanos[0];
+        long[] rest = Arrays.copyOfRange(nanos, Math.min(1, nanos.length - 1), nanos.length);
+        Arrays.sort(rest);
+        System.out.printf("%1$-20s %2$12d %3$12d%n", name, millis(first), millis(rest[rest.length / 2]));
+    }
+
+    /**
+     * @param nanos
+     * @return
+     */
+    private static long millis(long nanos)
+    {
+        return nanos / 1_000_000;
+    }
+
+    /**
+     * @return
+     */
+    private Path getJournalFile()
+    {
+        return new File(this.cacheDir, CacheIndexJournal.JOURNAL_FILE).toPath();
+    }
+
+    /**
+     * Ein zu messendes Szenario
+     */
+    @FunctionalInterface
+    private interface IScenario
+    {
+        public int run() throws Exception;
+    }
+}
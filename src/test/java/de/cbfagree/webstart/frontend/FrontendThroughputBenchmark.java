@@ -0,0 +1,424 @@
+package de.cbfagree.webstart.frontend;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import de.cbfagree.webstart.backend.DownloaderEngine;
+import de.cbfagree.webstart.cache.CacheRepository;
+import de.cbfagree.webstart.config.BackendConfig;
+import de.cbfagree.webstart.config.CacheConfig;
+import de.cbfagree.webstart.config.FrontendConfig;
+
+/**
+ * Ein einfacher Lasttest für das {@link Frontend}: ein einzelner
+ * {@link MainSelector} im Vergleich zum Multi-Reactor-Modus.
+ *
+ * Als Backend dient ein lokaler HttpServer, der Cache liegt in einem
+ * temporären Verzeichnis. Jede Resource wird vorab einmal geladen, gemessen
+ * wird also nur die Auslieferung aus dem (warmen) Cache. Der Memory-Tier ist
+ * abgeschaltet.
+ *
+ * Pro Modus wird ein Frontend auf einem eigenen Port gestartet. Für jede
+ * Resource laufen dann die Clients über Keep-Alive-Verbindungen: Request
+ * senden, Response komplett lesen, nächster Request. Schließt das Frontend
+ * eine Verbindung (maxKeepAliveRequests), so baut der Client eine neue auf.
+ * Vor jeder Messung läuft die gleiche Last zum Aufwärmen.
+ *
+ * Ein Frontend lässt sich nicht beenden, der Benchmark beendet deshalb am
+ * Ende die JVM.
+ *
+ * Aufruf: <code>FrontendThroughputBenchmark [clients] [sekunden] [selectorThreads]</code>.
+ * Die log4j2.xml der Tests gehört dabei nicht in den Classpath.
+ */
+public class FrontendThroughputBenchmark
+{
+    private static final long WARMUP_MILLIS = 2000;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private int clients;
+    private long millis;
+    private Path baseDir;
+    private Map<String, byte[]> resources;
+    private HttpServer backend;
+    private CacheRepository cacheRepo;
+
+    /**
+     * @param clients
+     * @param millis
+     * @param baseDir
+     */
+    public FrontendThroughputBenchmark(int clients, long millis, Path baseDir)
+    {
+        this.clients = clients;
+        this.millis = millis;
+        this.baseDir = baseDir;
+        this.resources = new LinkedHashMap<>();
+        this.resources.put("/app/app.jnlp", new byte[8]);
+        this.resources.put("/app/lib-100k.jar", new byte[100 * 1024]);
+        this.resources.put("/app/lib-300k.jar", new byte[300 * 1024]);
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int clients = (args.length > 0) ? Integer.parseInt(args[0]) : 32;
+        int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+        int selectorThreads = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+
+        Path baseDir = Files.createTempDirectory("frontend-bench");
+        FrontendThroughputBenchmark bench = new FrontendThroughputBenchmark(clients, seconds * 1000L, baseDir);
+        try
+        {
+            bench.startBackend();
+            bench.startCache();
+            System.out.printf("%1$d keep-alive clients, %2$d s per run, %3$d CPUs%n", clients, seconds,
+                Runtime.getRuntime().availableProcessors());
+            System.out.printf("%1$-18s %2$9s %3$12s %4$10s %5$8s%n", "resource", "reactors", "req/s", "MB/s",
+                "failed");
+            for (int reactors : new int[] { 1, selectorThreads })
+            {
+                int port = bench.startFrontend(reactors);
+                for (String resource : bench.resources.keySet())
+                {
+                    bench.warmCache(port, resource);
+                    bench.runLoad(port, resource, WARMUP_MILLIS);
+                    bench.report(resource, reactors, bench.runLoad(port, resource, bench.millis));
+                }
+            }
+        }
+        finally
+        {
+            bench.stopBackend();
+            try (Stream<Path> files = Files.walk(baseDir))
+            {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Lasse alle Clients für die angegebene Dauer die Resource laden.
+     *
+     * @param port
+     * @param resource
+     * @param duration in Millisekunden
+     * @return das Ergebnis des Laufs
+     * @throws InterruptedException
+     */
+    private Result runLoad(int port, String resource, long duration) throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + duration;
+        List<Client> threads = new ArrayList<>(this.clients);
+        for (int i = 0; i < this.clients; i++)
+        {
+            Client client = new Client(port, resource, end);
+            threads.add(client);
+            client.start();
+        }
+
+        long requests = 0;
+        long bytes = 0;
+        int failed = 0;
+        for (Client client : threads)
+        {
+            client.join();
+            requests += client.requests;
+            bytes += client.bytes;
+            failed += client.failed;
+        }
+        return new Result(requests, bytes, failed, duration);
+    }
+
+    /**
+     * @param resource
+     * @param reactors
+     * @param result
+     */
+    private void report(String resource, int reactors, Result result)
+    {
+        double seconds = result.millis() / 1000.0;
+        System.out.printf("%1$-18s %2$9d %3$12.0f %4$10.1f %5$8d%n", resource, reactors,
+            result.requests() / seconds, result.bytes() / seconds / (1024 * 1024), result.failed());
+    }
+
+    /**
+     * Lade die Resource einmal über das Frontend und warte, bis sie im Cache
+     * angekommen ist.
+     *
+     * @param port
+     * @param resource
+     * @throws Exception
+     */
+    private void warmCache(int port, String resource) throws Exception
+    {
+        Client client = new Client(port, resource, 0);
+        try (Socket socket = new Socket("127.0.0.1", port))
+        {
+            client.request(socket.getOutputStream(), new BufferedInputStream(socket.getInputStream()),
+                new byte[IO_BUFFER_SIZE]);
+        }
+
+        while (this.cacheRepo.getCachedMetaData(resource) == null)
+        {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Starte ein Frontend auf einem freien Port und warte, bis es
+     * Verbindungen annimmt.
+     *
+     * @param reactors
+     * @return der Port
+     * @throws Exception
+     */
+    private int startFrontend(int reactors) throws Exception
+    {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0))
+        {
+            port = probe.getLocalPort();
+        }
+
+        FrontendConfig cfg = new ObjectMapper().readValue(
+            String.format("{\"port\": %1$d, \"selectorThreads\": %2$d}", port, reactors), FrontendConfig.class);
+        Frontend frontend = new Frontend(cfg, this.cacheRepo);
+        Thread thread = new Thread(() -> {
+            try
+            {
+                frontend.run();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }, "frontend-" + reactors);
+        thread.setDaemon(true);
+        thread.start();
+
+        while (true)
+        {
+            try
+            {
+                new Socket("127.0.0.1", port).close();
+                return port;
+            }
+            catch (IOException e)
+            {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * @throws Exception
+     */
+    private void startCache() throws Exception
+    {
+        ObjectMapper mapper = new ObjectMapper();
+        BackendConfig backendCfg = mapper.readValue(
+            String.format("{\"baseUrl\": \"http://127.0.0.1:%1$d\"}", this.backend.getAddress().getPort()),
+            BackendConfig.class);
+        CacheConfig cacheCfg = mapper.readValue(
+            String.format("{\"basePath\": \"%1$s\"}", this.baseDir.resolve("cache").toAbsolutePath()),
+            CacheConfig.class);
+        this.cacheRepo = new CacheRepository(cacheCfg, new DownloaderEngine(backendCfg));
+    }
+
+    /**
+     * @throws IOException
+     */
+    private void startBackend() throws IOException
+    {
+        this.backend = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.backend.createContext("/", this::serve);
+        this.backend.start();
+    }
+
+    /**
+     *
+     */
+    private void stopBackend()
+    {
+        if (this.backend != null)
+        {
+            this.backend.stop(0);
+        }
+    }
+
+    /**
+     * @param exchange
+     * @throws IOException
+     */
+    private void serve(HttpExchange exchange) throws IOException
+    {
+        try (exchange)
+        {
+            byte[] content = this.resources.get(exchange.getRequestURI().getPath());
+            if (content == null)
+            {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+
+            exchange.getResponseHeaders().add("Content-Type", "application/java-archive");
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream out = exchange.getResponseBody())
+            {
+                out.write(content);
+            }
+        }
+    }
+
+    /**
+     * @param requests die Anzahl vollständiger Responses
+     * @param bytes die Summe der empfangenen Content-Längen
+     * @param failed die Anzahl abgebrochener Verbindungen
+     * @param millis die Dauer des Laufs
+     */
+    private record Result(long requests, long bytes, int failed, long millis)
+    {
+    }
+
+    /**
+     * Ein Client, welcher bis zum Ende des Laufs Requests über eine
+     * Keep-Alive-Verbindung sendet.
+     */
+    private static class Client extends Thread
+    {
+        private int port;
+        private byte[] request;
+        private long end;
+        private long requests;
+        private long bytes;
+        private int failed;
+
+        /**
+         * @param port
+         * @param resource
+         * @param end das Ende des Laufs (System.currentTimeMillis())
+         */
+        Client(int port, String resource, long end)
+        {
+            this.port = port;
+            this.request = String.format("GET %1$s HTTP/1.1\r\nHost: 127.0.0.1:%2$d\r\n\r\n", resource, port)
+                .getBytes(StandardCharsets.ISO_8859_1);
+            this.end = end;
+            this.setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            byte[] buf = new byte[IO_BUFFER_SIZE];
+            while (System.currentTimeMillis() < this.end)
+            {
+                try (Socket socket = new Socket("127.0.0.1", this.port))
+                {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = socket.getOutputStream();
+                    InputStream in = new BufferedInputStream(socket.getInputStream(), IO_BUFFER_SIZE);
+
+                    boolean keepAlive = true;
+                    while (keepAlive && System.currentTimeMillis() < this.end)
+                    {
+                        keepAlive = this.request(out, in, buf);
+                        this.requests++;
+                    }
+                }
+                catch (IOException e)
+                {
+                    this.failed++;
+                }
+            }
+        }
+
+        /**
+         * Sende den Request und lies die komplette Response.
+         *
+         * @param out
+         * @param in
+         * @param buf
+         * @return <code>false</code>, wenn das Frontend die Verbindung schließt
+         * @throws IOException
+         */
+        boolean request(OutputStream out, InputStream in, byte[] buf) throws IOException
+        {
+            out.write(this.request);
+            out.flush();
+
+            long contentLength = 0;
+            boolean keepAlive = true;
+            for (String line : readHeader(in).split("\r\n"))
+            {
+                String lower = line.toLowerCase();
+                if (lower.startsWith("content-length:"))
+                {
+                    contentLength = Long.parseLong(line.substring(15).trim());
+                }
+                else if (lower.startsWith("connection:") && lower.contains("close"))
+                {
+                    keepAlive = false;
+                }
+            }
+
+            long remaining = contentLength;
+            while (remaining > 0)
+            {
+                int read = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (read < 0)
+                {
+                    throw new EOFException("premature EOF");
+                }
+                remaining -= read;
+            }
+            this.bytes += contentLength;
+            return keepAlive;
+        }
+
+        /**
+         * @param in
+         * @return der ResponseHeader bis zur Leerzeile
+         * @throws IOException
+         */
+        private static String readHeader(InputStream in) throws IOException
+        {
+            StringBuilder header = new StringBuilder();
+            int lastFour = 0;
+            while (lastFour != 0x0d0a0d0a)
+            {
+                int c = in.read();
+                if (c < 0)
+                {
+                    throw new EOFException("premature EOF in header");
+                }
+                header.append((char) c);
+                lastFour = (lastFour << 8) | c;
+            }
+            return header.toString();
+        }
+    }
+}
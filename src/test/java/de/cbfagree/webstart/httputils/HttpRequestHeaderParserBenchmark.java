@@ -0,0 +1,281 @@
+package de.cbfagree.webstart.httputils;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Ein einfacher Benchmark für den {@link HttpRequestHeaderParser}.
+ *
+ * Gemessen werden Zeit und allokierte Bytes pro Request für einen typischen
+ * RequestHeader eines Java Web Start Clients, und zwar
+ * <ul>
+ * <li>am Stück empfangen</li>
+ * <li>in kleinen Stücken eintröpfelnd, der Parser wird nach jedem Stück
+ * aufgerufen</li>
+ * <li>mehrere Requests per pipelining in einem Buffer</li>
+ * </ul>
+ *
+ * Zum Vergleich läuft jedes Szenario auch mit einer Referenz-Implementierung,
+ * welche wie der frühere Parser arbeitet: den Buffer (ab dem Ende der letzten
+ * Suche) nach dem Header-Ende durchsuchen, den kompletten Header als String
+ * dekodieren, an den Zeilenenden splitten und alle HeaderFields in eine Map
+ * übernehmen.
+ *
+ * Aufruf: <code>HttpRequestHeaderParserBenchmark [iterationen]</code>
+ */
+public class HttpRequestHeaderParserBenchmark
+{
+    private static final String REQUEST = "GET /app/lib/jackson-databind-2.19.2.jar HTTP/1.1\r\n" //
+        + "User-Agent: JNLP/6.0 javaws/11.381.2.11 (<internal>) Java/1.8.0_381\r\n" //
+        + "UA-Java-Version: 1.8.0_381\r\n" //
+        + "Accept-Encoding: pack200-gzip,gzip\r\n" //
+        + "Content-Type: application/x-java-archive\r\n" //
+        + "If-None-Match: \"5f3c-60a1b2c3d4e5f\"\r\n" //
+        + "If-Modified-Since: Tue, 03 Jun 2008 11:05:30 GMT\r\n" //
+        + "Cache-Control: no-cache\r\n" //
+        + "Pragma: no-cache\r\n" //
+        + "Host: webstart.example.com:8080\r\n" //
+        + "Accept: text/html, image/gif, image/jpeg, *; q=.2, */*; q=.2\r\n" //
+        + "Connection: keep-alive\r\n" //
+        + "\r\n";
+
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+    private static final int CHUNK_SIZE = 16;
+    private static final int PIPELINED = 8;
+
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN = //
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Verhindert, dass der JIT die Ergebnisse als unbenutzt wegoptimiert
+    private static long sink;
+
+    private byte[] request;
+    private byte[] pipelined;
+
+    /**
+     *
+     */
+    public HttpRequestHeaderParserBenchmark()
+    {
+        this.request = REQUEST.getBytes(StandardCharsets.ISO_8859_1);
+        this.pipelined = REQUEST.repeat(PIPELINED).getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @param args
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception
+    {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 200_000;
+
+        HttpRequestHeaderParserBenchmark bench = new HttpRequestHeaderParserBenchmark();
+        System.out.printf("%1$-22s %2$12s %3$12s%n", "scenario", "ns/req", "bytes/req");
+        for (int pass = 0; pass < 2; pass++)
+        {
+            // Der erste Durchlauf dient nur dem Aufwärmen
+            boolean report = (pass == 1);
+            bench.measure("complete", iterations, 1, bench::parseComplete, report);
+            bench.measure("complete (strings)", iterations, 1, bench::parseCompleteStrings, report);
+            bench.measure("trickle", iterations, 1, bench::parseTrickle, report);
+            bench.measure("trickle (strings)", iterations, 1, bench::parseTrickleStrings, report);
+            bench.measure("pipelined", iterations / PIPELINED, PIPELINED, bench::parsePipelined, report);
+            bench.measure("pipelined (strings)", iterations / PIPELINED, PIPELINED, bench::parsePipelinedStrings,
+                report);
+        }
+        System.out.println((sink == 42) ? "" : "done");
+    }
+
+    /**
+     * @param name
+     * @param iterations
+     * @param requestsPerIteration
+     * @param scenario
+     * @param report
+     * @throws Exception
+     */
+    private void measure(String name, int iterations, int requestsPerIteration, IScenario scenario, boolean report)
+        throws Exception
+    {
+        long threadId = Thread.currentThread().getId();
+        long allocStart = THREAD_BEAN.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+        {
+            sink += scenario.run();
+        }
+        long nanos = System.nanoTime() - start;
+        long allocated = THREAD_BEAN.getThreadAllocatedBytes(threadId) - allocStart;
+
+        if (report)
+        {
+            long requests = (long) iterations * requestsPerIteration;
+            System.out.printf("%1$-22s %2$12.1f %3$12d%n", name, (double) nanos / requests, allocated / requests);
+        }
+    }
+
+    /**
+     * Der komplette Header liegt bereits im Buffer.
+     *
+     * @return
+     * @throws HttpParseException
+     */
+    private long parseComplete() throws HttpParseException
+    {
+        HttpRequestHeaderParser parser = new HttpRequestHeaderParser(MAX_HEADER_SIZE);
+        return consume(parser.parse(ByteBuffer.wrap(this.request)));
+    }
+
+    /**
+     * Der Header trifft in Stücken von {@link #CHUNK_SIZE} Bytes ein.
+     *
+     * @return
+     * @throws HttpParseException
+     */
+    private long parseTrickle() throws HttpParseException
+    {
+        HttpRequestHeaderParser parser = new HttpRequestHeaderParser(MAX_HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.wrap(this.request);
+        HttpRequestHeader header = null;
+        for (int limit = CHUNK_SIZE; header == null; limit += CHUNK_SIZE)
+        {
+            buffer.limit(Math.min(limit, this.request.length));
+            header = parser.parse(buffer);
+        }
+        return consume(header);
+    }
+
+    /**
+     * {@link #PIPELINED} Requests liegen hintereinander im Buffer.
+     *
+     * @return
+     * @throws HttpParseException
+     */
+    private long parsePipelined() throws HttpParseException
+    {
+        HttpRequestHeaderParser parser = new HttpRequestHeaderParser(MAX_HEADER_SIZE);
+        ByteBuffer buffer = ByteBuffer.wrap(this.pipelined);
+        long result = 0;
+        for (int i = 0; i < PIPELINED; i++)
+        {
+            result += consume(parser.parse(buffer));
+        }
+        return result;
+    }
+
+    /**
+     * @return
+     */
+    private long parseCompleteStrings()
+    {
+        return consume(parseStrings(this.request, 0, findHeaderEnd(this.request, 0, this.request.length)));
+    }
+
+    /**
+     * @return
+     */
+    private long parseTrickleStrings()
+    {
+        int headerEnd = -1;
+        for (int limit = CHUNK_SIZE; headerEnd < 0; limit += CHUNK_SIZE)
+        {
+            // Die Suche wird dort fortgesetzt, wo die letzte aufgehört hat
+            int scanFrom = Math.max(0, limit - CHUNK_SIZE - 3);
+            headerEnd = findHeaderEnd(this.request, scanFrom, Math.min(limit, this.request.length));
+        }
+        return consume(parseStrings(this.request, 0, headerEnd));
+    }
+
+    /**
+     * @return
+     */
+    private long parsePipelinedStrings()
+    {
+        long result = 0;
+        int start = 0;
+        for (int i = 0; i < PIPELINED; i++)
+        {
+            int headerEnd = findHeaderEnd(this.pipelined, start, this.pipelined.length);
+            result += consume(parseStrings(this.pipelined, start, headerEnd));
+            start = headerEnd;
+        }
+        return result;
+    }
+
+    /**
+     * Die Referenz: suche "\r\n\r\n" im angegebenen Bereich.
+     *
+     * @param buffer
+     * @param from
+     * @param to
+     * @return die Position hinter der Leerzeile oder -1
+     */
+    private static int findHeaderEnd(byte[] buffer, int from, int to)
+    {
+        for (int i = from; i + 3 < to; i++)
+        {
+            if (buffer[i] == '\r' && buffer[i + 1] == '\n' && buffer[i + 2] == '\r' && buffer[i + 3] == '\n')
+            {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Die Referenz: String dekodieren, splitten und alle HeaderFields in eine
+     * Map übernehmen.
+     *
+     * @param buffer
+     * @param from
+     * @param to
+     * @return
+     */
+    private static HttpRequestHeader parseStrings(byte[] buffer, int from, int to)
+    {
+        String[] lines = new String(buffer, from, to - from, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] parts = lines[0].split(" ");
+
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 1; i < lines.length; i++)
+        {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0)
+            {
+                headers.put(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+        }
+
+        return HttpRequestHeader.builder() //
+            .method(parts[0].toUpperCase()) //
+            .url(parts[1]) //
+            .version(parts[2].toUpperCase()) //
+            .host(headers.get("Host")) //
+            .ifNoneMatch(headers.get("If-None-Match")) //
+            .ifModifiedSince(headers.get("If-Modified-Since")) //
+            .acceptEncoding(headers.get("Accept-Encoding")) //
+            .connection(headers.get("Connection")) //
+            .build();
+    }
+
+    /**
+     * @param header
+     * @return
+     */
+    private static long consume(HttpRequestHeader header)
+    {
+        return header.getUrl().length() + header.getHost().length() + (header.isKeepAlive() ? 1 : 0);
+    }
+
+    /**
+     * Ein zu messendes Szenario
+     */
+    @FunctionalInterface
+    private interface IScenario
+    {
+        public long run() throws Exception;
+    }
+}